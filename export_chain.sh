@@ -0,0 +1 @@
+java -cp nxt.jar:lib/*:conf nxt.ChainExport
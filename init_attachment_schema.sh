@@ -1,2 +1 @@
-java -cp nxt.jar:lib/*:conf nxt.AttachmentSchema
-
+java -cp nxt.jar:lib/*:conf nxt.AttachmentSchema "$@"
@@ -1,12 +1,14 @@
 package nxt;
 
-import nxt.crypto.Crypto;
+import nxt.crypto.PublicKeyCache;
 import nxt.util.Convert;
 import nxt.util.Listener;
 import nxt.util.Listeners;
 import nxt.util.Logger;
 
-import java.math.BigInteger;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -76,10 +78,7 @@ public final class Account {
     }
 
     public static Long getId(byte[] publicKey) {
-        byte[] publicKeyHash = Crypto.sha256().digest(publicKey);
-        BigInteger bigInteger = new BigInteger(1, new byte[] {publicKeyHash[7], publicKeyHash[6], publicKeyHash[5],
-                publicKeyHash[4], publicKeyHash[3], publicKeyHash[2], publicKeyHash[1], publicKeyHash[0]});
-        return bigInteger.longValue();
+        return PublicKeyCache.getAccountId(publicKey);
     }
 
     static Account addOrGetAccount(Long id) {
@@ -92,6 +91,69 @@ public final class Account {
         accounts.clear();
     }
 
+    static void writeSnapshot(DataOutputStream out, Map<Long, Long> unconfirmedAmounts,
+                              Map<Long, Map<Long, Long>> unconfirmedAssetQuantities) throws IOException {
+        List<Account> accountList = new ArrayList<>(accounts.values());
+        out.writeInt(accountList.size());
+        for (Account account : accountList) {
+            synchronized (account) {
+                out.writeLong(account.id);
+                out.writeInt(account.height);
+                Snapshot.writeBytes(out, account.publicKey);
+                out.writeInt(account.keyHeight);
+                out.writeLong(account.balance);
+                // unconfirmed balances are saved without the amounts reserved by the pending unconfirmed transactions
+                out.writeLong(account.unconfirmedBalance + Convert.nullToZero(unconfirmedAmounts.get(account.id)));
+                out.writeInt(account.guaranteedBalances.size());
+                for (GuaranteedBalance gb : account.guaranteedBalances) {
+                    out.writeInt(gb.height);
+                    out.writeLong(gb.balance);
+                    out.writeBoolean(gb.ignore);
+                }
+                out.writeInt(account.assetBalances.size());
+                for (Map.Entry<Long, Integer> entry : account.assetBalances.entrySet()) {
+                    out.writeLong(entry.getKey());
+                    out.writeInt(entry.getValue());
+                }
+                Map<Long, Long> unconfirmedAccountAssetQuantities = unconfirmedAssetQuantities.get(account.id);
+                out.writeInt(account.unconfirmedAssetBalances.size());
+                for (Map.Entry<Long, Integer> entry : account.unconfirmedAssetBalances.entrySet()) {
+                    Long unconfirmedQuantity = unconfirmedAccountAssetQuantities == null ? null : unconfirmedAccountAssetQuantities.get(entry.getKey());
+                    out.writeLong(entry.getKey());
+                    out.writeInt(entry.getValue() + (int)Convert.nullToZero(unconfirmedQuantity));
+                }
+            }
+        }
+    }
+
+    static void readSnapshot(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Account account = new Account(in.readLong(), in.readInt());
+            account.publicKey = Snapshot.readBytes(in);
+            account.keyHeight = in.readInt();
+            account.balance = in.readLong();
+            account.unconfirmedBalance = in.readLong();
+            int guaranteedBalancesCount = in.readInt();
+            for (int j = 0; j < guaranteedBalancesCount; j++) {
+                GuaranteedBalance gb = new GuaranteedBalance(in.readInt(), in.readLong());
+                gb.ignore = in.readBoolean();
+                account.guaranteedBalances.add(gb);
+            }
+            int assetBalancesCount = in.readInt();
+            for (int j = 0; j < assetBalancesCount; j++) {
+                account.assetBalances.put(in.readLong(), in.readInt());
+            }
+            int unconfirmedAssetBalancesCount = in.readInt();
+            for (int j = 0; j < unconfirmedAssetBalancesCount; j++) {
+                account.unconfirmedAssetBalances.put(in.readLong(), in.readInt());
+            }
+            if (accounts.putIfAbsent(account.id, account) != null) {
+                throw new IOException("Duplicate account " + Convert.toUnsignedLong(account.id) + " in snapshot");
+            }
+        }
+    }
+
     private final Long id;
     private final int height;
     private byte[] publicKey;
@@ -104,8 +166,12 @@ public final class Account {
     private final Map<Long, Integer> unconfirmedAssetBalances = new HashMap<>();
 
     private Account(Long id) {
+        this(id, Nxt.getBlockchain().getLastBlock().getHeight());
+    }
+
+    private Account(Long id, int height) {
         this.id = id;
-        this.height = Nxt.getBlockchain().getLastBlock().getHeight();
+        this.height = height;
     }
 
     public Long getId() {
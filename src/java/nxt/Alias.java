@@ -1,7 +1,14 @@
 package nxt;
 
+import nxt.util.Convert;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -24,14 +31,30 @@ public final class Alias {
     }
 
     static void addOrUpdateAlias(Account account, Long transactionId, String aliasName, String aliasURI, int timestamp) {
-        String normalizedAlias = aliasName.toLowerCase();
-        Alias newAlias = new Alias(account, transactionId, aliasName, aliasURI, timestamp);
-        Alias oldAlias = aliases.putIfAbsent(normalizedAlias, newAlias);
+        final String normalizedAlias = aliasName.toLowerCase();
+        final Alias newAlias = new Alias(account, transactionId, aliasName, aliasURI, timestamp);
+        final Alias oldAlias = aliases.putIfAbsent(normalizedAlias, newAlias);
         if (oldAlias == null) {
             aliasIdToAliasMappings.putIfAbsent(transactionId, newAlias);
+            StateJournal.record(new Runnable() {
+                @Override
+                public void run() {
+                    aliases.remove(normalizedAlias);
+                    aliasIdToAliasMappings.remove(newAlias.getId());
+                }
+            });
         } else {
+            final String oldAliasURI = oldAlias.aliasURI;
+            final int oldTimestamp = oldAlias.timestamp;
             oldAlias.aliasURI = aliasURI.intern();
             oldAlias.timestamp = timestamp;
+            StateJournal.record(new Runnable() {
+                @Override
+                public void run() {
+                    oldAlias.aliasURI = oldAliasURI;
+                    oldAlias.timestamp = oldTimestamp;
+                }
+            });
         }
     }
 
@@ -40,6 +63,32 @@ public final class Alias {
         aliasIdToAliasMappings.clear();
     }
 
+    static void writeSnapshot(DataOutputStream out) throws IOException {
+        List<Alias> aliasList = new ArrayList<>(aliases.values());
+        out.writeInt(aliasList.size());
+        for (Alias alias : aliasList) {
+            out.writeLong(alias.account.getId());
+            out.writeLong(alias.id);
+            Snapshot.writeString(out, alias.aliasName);
+            Snapshot.writeString(out, alias.aliasURI);
+            out.writeInt(alias.timestamp);
+        }
+    }
+
+    static void readSnapshot(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Long accountId = in.readLong();
+            Account account = Account.getAccount(accountId);
+            if (account == null) {
+                throw new IOException("Unknown alias account " + Convert.toUnsignedLong(accountId) + " in snapshot");
+            }
+            Alias alias = new Alias(account, in.readLong(), Snapshot.readString(in), Snapshot.readString(in), in.readInt());
+            aliases.put(alias.aliasName.toLowerCase(), alias);
+            aliasIdToAliasMappings.put(alias.id, alias);
+        }
+    }
+
     private final Account account;
     private final Long id;
     private final String aliasName;
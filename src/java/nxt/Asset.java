@@ -2,16 +2,22 @@ package nxt;
 
 import nxt.util.Convert;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 public final class Asset {
 
-    private static final ConcurrentMap<Long, Asset> assets = new ConcurrentHashMap<>();
+    // in id order, for paging through all assets
+    private static final ConcurrentNavigableMap<Long, Asset> assets = new ConcurrentSkipListMap<>();
     private static final ConcurrentMap<String, List<Asset>> assetNameToAssetMappings = new ConcurrentHashMap<>();
     private static final Collection<Asset> allAssets = Collections.unmodifiableCollection(assets.values());
 
@@ -19,6 +25,11 @@ public final class Asset {
         return allAssets;
     }
 
+    // in id order, all of them if assetId is null
+    public static Collection<Asset> getAssetsAfter(Long assetId) {
+        return assetId == null ? allAssets : Collections.unmodifiableCollection(assets.tailMap(assetId, false).values());
+    }
+
     public static Asset getAsset(Long id) {
         return assets.get(id);
     }
@@ -55,6 +66,25 @@ public final class Asset {
         Asset.assetNameToAssetMappings.clear();
     }
 
+    static void writeSnapshot(DataOutputStream out) throws IOException {
+        List<Asset> assetList = new ArrayList<>(assets.values());
+        out.writeInt(assetList.size());
+        for (Asset asset : assetList) {
+            out.writeLong(asset.assetId);
+            out.writeLong(asset.accountId);
+            Snapshot.writeString(out, asset.name);
+            Snapshot.writeString(out, asset.description);
+            out.writeInt(asset.quantity);
+        }
+    }
+
+    static void readSnapshot(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            addAsset(in.readLong(), in.readLong(), Snapshot.readString(in), Snapshot.readString(in), in.readInt());
+        }
+    }
+
     private final Long assetId;
     private final Long accountId;
     private final String name;
@@ -9,7 +9,17 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public final class AttachmentSchema {
     private static void apply(String sql) {
@@ -65,6 +75,12 @@ public final class AttachmentSchema {
 	// blockchain DB, but this could be done if one wants the
 	// database to do more to be self validating.
 
+	// The asset, poll_id and order_id columns deliberately have no
+	// foreign keys to the attachment tables they refer to: a vote for
+	// an unknown poll or the cancellation of an unknown order is a
+	// valid transaction, and saving a block must never fail because
+	// of this schema.
+
 	// Also, these tables have no redundant columns, such as
 	// sender_id or recipient_id.  I personally prefer to use
 	// views with appropriate indexing of join columns instead of
@@ -115,8 +131,6 @@ public final class AttachmentSchema {
 	      ", vote VARBINARY" +
 	      ", FOREIGN KEY (transaction_id) REFERENCES public.transaction(id)" + 
 	      " ON DELETE CASCADE ON UPDATE CASCADE" +
-	      ", FOREIGN KEY (poll_id) REFERENCES attachment.messaging_poll_creation(transaction_id)" + 
-	      " ON DELETE CASCADE ON UPDATE CASCADE" +
 	      ")",
 	      false);
 	
@@ -141,9 +155,6 @@ public final class AttachmentSchema {
 	      ", comment VARCHAR NOT NULL" +
 	      ", FOREIGN KEY (transaction_id) REFERENCES public.transaction(id)" + 
 	      " ON DELETE CASCADE ON UPDATE CASCADE" +
-	      // As far as I can tell, asset should point to an entry in asset_issuance
-	      ", FOREIGN KEY (asset) REFERENCES attachment.colored_coins_asset_issuance(transaction_id)" + 
-	      " ON DELETE CASCADE ON UPDATE CASCADE" +
 	      ")",
 	      false);
 	
@@ -157,9 +168,6 @@ public final class AttachmentSchema {
 	      ", price BIGINT NOT NULL" +
 	      ", FOREIGN KEY (transaction_id) REFERENCES public.transaction(id)" + 
 	      " ON DELETE CASCADE ON UPDATE CASCADE" +
-	      // As far as I can tell, asset should point to an entry in asset_issuance
-	      ", FOREIGN KEY (asset) REFERENCES attachment.colored_coins_asset_issuance(transaction_id)" + 
-	      " ON DELETE CASCADE ON UPDATE CASCADE" +
 	      ")",
 	      false);
 	
@@ -173,9 +181,6 @@ public final class AttachmentSchema {
 	      ", price BIGINT NOT NULL" +
 	      ", FOREIGN KEY (transaction_id) REFERENCES public.transaction(id)" + 
 	      " ON DELETE CASCADE ON UPDATE CASCADE" +
-	      // As far as I can tell, asset should point to an entry in asset_issuance
-	      ", FOREIGN KEY (asset) REFERENCES attachment.colored_coins_asset_issuance(transaction_id)" + 
-	      " ON DELETE CASCADE ON UPDATE CASCADE" +
 	      ")",
 	      false);
 
@@ -187,8 +192,6 @@ public final class AttachmentSchema {
 	      ", order_id BIGINT NOT NULL" +
 	      ", FOREIGN KEY (transaction_id) REFERENCES public.transaction(id)" + 
 	      " ON DELETE CASCADE ON UPDATE CASCADE" +
-	      ", FOREIGN KEY (order_id) REFERENCES attachment.colored_coins_ask_order_placement(transaction_id)" + 
-	      " ON DELETE CASCADE ON UPDATE CASCADE" +
 	      ")",
 	      false);
 	
@@ -200,8 +203,6 @@ public final class AttachmentSchema {
 	      ", order_id BIGINT NOT NULL" +
 	      ", FOREIGN KEY (transaction_id) REFERENCES public.transaction(id)" + 
 	      " ON DELETE CASCADE ON UPDATE CASCADE" +
-	      ", FOREIGN KEY (order_id) REFERENCES attachment.colored_coins_bid_order_placement(transaction_id)" + 
-	      " ON DELETE CASCADE ON UPDATE CASCADE" +
 	      ")",
 	      false);
 
@@ -210,41 +211,46 @@ public final class AttachmentSchema {
 	
     }
 
-    private static void truncate() {
+    private static final String[] TABLES = {
+	"messaging_arbitrary_message", "messaging_alias_assignment",
+	"messaging_poll_creation", "messaging_vote_casting",
+	"colored_coins_asset_issuance", "colored_coins_asset_transfer",
+	"colored_coins_ask_order_placement", "colored_coins_bid_order_placement",
+	"colored_coins_ask_order_cancellation", "colored_coins_bid_order_cancellation"
+    };
+
+    // Attachment columns of each of the TABLES, after transaction_id
+    private static final String[] TABLE_COLUMNS = {
+	"message", "name,uri",
+	"name,description,options,min_number_of_options,max_number_of_options,options_are_binary", "poll_id,vote",
+	"name,description,quantity", "asset,quantity,comment",
+	"asset,quantity,price", "asset,quantity,price",
+	"order_id", "order_id"
+    };
+
+    // Column of each of the TABLES referencing another attachment, if any
+    private static final String[] REFERENCE_COLUMNS = {
+	null, null,
+	null, "poll_id",
+	null, "asset",
+	"asset", "asset",
+	"order_id", "order_id"
+    };
+
+    // Columns copied from public.transaction with nxt.attachmentSchemaDenormalized
+    private static final String DENORMALIZED_COLUMNS = "height,timestamp,sender_id,recipient_id";
+
+    // Called by BlockDb.deleteAll, which truncates the transaction table
+    // with referential integrity off, so no cascades run
+    static void truncate(Statement stmt) throws SQLException {
 	// Truncate is faster than delete, but cannot be rolled back
-	// Using this may play havoc with commit/rollback if same database connection used
 	// In general don't use truncate in middle of db transaction
-
-	// Truncate table for messages
-	apply("TRUNCATE TABLE attachment.messaging_arbitrary_message");
-	
-	// Truncate table for aliases
-	apply("TRUNCATE TABLE attachment.messaging_alias_assignment");
-	
-	// Truncate table for poll creation
-	apply("TRUNCATE TABLE attachment.messaging_poll_creation");
-	
-	// Truncate table for poll vote
-	apply("TRUNCATE TABLE attachment.messaging_vote_casting");
-	
-	// Truncate table for asset issuance
-	apply("TRUNCATE TABLE attachment.colored_coins_asset_issuance");
-	
-	// Truncate table for asset transfer
-	apply("TRUNCATE TABLE attachment.colored_coins_asset_transfer");
-	
-	// Truncate table for asset ask order placement
-	apply("TRUNCATE TABLE attachment.colored_coins_ask_order_placement");
-	
-	// Truncate table for asset bid order placement
-	apply("TRUNCATE TABLE attachment.colored_coins_bid_order_placement");
-	
-	// Truncate table for ask cancel order placement
-	apply("TRUNCATE TABLE attachment.colored_coins_ask_order_cancellation");
-	
-	// Truncate table for big cancel order placement
-	apply("TRUNCATE TABLE attachment.colored_coins_bid_order_cancellation");
-	
+	if (! live) {
+	    return;
+	}
+	for (String table : TABLES) {
+	    stmt.executeUpdate("TRUNCATE TABLE attachment." + table);
+	}
     }
 
     private static void delete(Connection con, Boolean commitUpdate) {
@@ -307,259 +313,649 @@ public final class AttachmentSchema {
 
     private static void viewsFullTransaction(Connection con, Boolean commitUpdate) {
 	// Views instead of duplicate columns
+	// The attachment columns are listed, as the denormalized columns
+	// would clash with those of the transaction
 
-	// Transaction view for messages
-	apply(con,
-	      "CREATE VIEW attachment.trans_messaging_arbitrary_message AS " +
-	      "SELECT t.*, a.* FROM " +
-	      "public.transaction t join attachment.messaging_arbitrary_message a " +
-	      "ON t.id=a.transaction_id",
-	      false);
-	
-	// Transaction view for aliases
-	apply(con,
-	      "CREATE VIEW attachment.trans_messaging_alias_assignment AS " +
-	      "SELECT t.*, a.* FROM " +
-	      "public.transaction t join attachment.messaging_alias_assignment a " +
-	      "ON t.id=a.transaction_id",
-	      false);
-	
-	// Transaction view for poll creation
-	apply(con,
-	      "CREATE VIEW attachment.trans_messaging_poll_creation AS " +
-	      "SELECT t.*, a.* FROM " +
-	      "public.transaction t join attachment.messaging_poll_creation a " +
-	      "ON t.id=a.transaction_id",
-	      false);
-	
-	// Transaction view for poll vote
-	apply(con,
-	      "CREATE VIEW attachment.trans_messaging_vote_casting AS " +
-	      "SELECT t.*, a.* FROM " +
-	      "public.transaction t join attachment.messaging_vote_casting a " +
-	      "ON t.id=a.transaction_id",
-	      false);
-	
-	// Transaction view for asset issuance
-	apply(con,
-	      "CREATE VIEW attachment.trans_colored_coins_asset_issuance AS " +
-	      "SELECT t.*, a.* FROM " +
-	      "public.transaction t join attachment.colored_coins_asset_issuance a " +
-	      "ON t.id=a.transaction_id",
-	      false);
-	
-	// Transaction view for asset transfer
-	apply(con,
-	      "CREATE VIEW attachment.trans_colored_coins_asset_transfer AS " +
-	      "SELECT t.*, a.* FROM " +
-	      "public.transaction t join attachment.colored_coins_asset_transfer a " +
-	      "ON t.id=a.transaction_id",
-	      false);
-	
-	// Transaction view for asset ask order placement
-	apply(con,
-	      "CREATE VIEW attachment.trans_colored_coins_ask_order_placement AS " +
-	      "SELECT t.*, a.* FROM " +
-	      "public.transaction t join attachment.colored_coins_ask_order_placement a " +
-	      "ON t.id=a.transaction_id",
-	      false);
+	for (int i = 0; i < TABLES.length; i++) {
+	    apply(con,
+		  "CREATE VIEW attachment.trans_" + TABLES[i] + " AS " +
+		  "SELECT t.*, a.transaction_id, a." + TABLE_COLUMNS[i].replace(",", ", a.") + " FROM " +
+		  "public.transaction t join attachment." + TABLES[i] + " a " +
+		  "ON t.id=a.transaction_id",
+		  false);
+	}
+
+	// One commit for all if desired
+	apply(con,null,commitUpdate);
 	
-	// Transaction view for asset bid order placement
+    }
+
+    // Opt-in copies of the transaction columns most analytic queries
+    // filter or sort on, so that those can be answered from the indexes of
+    // a single table, at the cost of some redundancy. Added before the
+    // rows are inserted, the layout can only be changed by a rebuild.
+    private static void denormalize(Connection con, Boolean commitUpdate) {
+	for (String table : TABLES) {
+	    apply(con,
+		  "ALTER TABLE attachment." + table + " ADD COLUMN height INT NOT NULL",
+		  false);
+	    apply(con,
+		  "ALTER TABLE attachment." + table + " ADD COLUMN timestamp INT NOT NULL",
+		  false);
+	    apply(con,
+		  "ALTER TABLE attachment." + table + " ADD COLUMN sender_id BIGINT NOT NULL",
+		  false);
+	    apply(con,
+		  "ALTER TABLE attachment." + table + " ADD COLUMN recipient_id BIGINT NOT NULL",
+		  false);
+	}
+
+	// One commit for all if desired
+	apply(con,null,commitUpdate);
+    }
+
+    private static boolean isDenormalized(Connection con) throws SQLException {
+	try (Statement stmt = con.createStatement();
+	     ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.COLUMNS " +
+					      "WHERE TABLE_SCHEMA = 'ATTACHMENT' AND TABLE_NAME = 'MESSAGING_ARBITRARY_MESSAGE' " +
+					      "AND COLUMN_NAME = 'SENDER_ID'")) {
+	    rs.next();
+	    return rs.getInt(1) > 0;
+	}
+    }
+
+    // Opt-in secondary indexes, for looking up the rows of an asset, poll
+    // or order, and with the denormalized columns those of an account, in
+    // height order. Created after a rebuild has inserted the rows, which
+    // is faster than maintaining them during it, and can be added to an
+    // existing schema at any time.
+    private static void indexes(Connection con, Boolean denormalized, Boolean commitUpdate) {
+	String height = denormalized ? ", height" : "";
+	for (int i = 0; i < TABLES.length; i++) {
+	    if (REFERENCE_COLUMNS[i] != null) {
+		apply(con,
+		      "CREATE INDEX IF NOT EXISTS attachment." + TABLES[i] + "_" + REFERENCE_COLUMNS[i] + "_idx " +
+		      "ON attachment." + TABLES[i] + " (" + REFERENCE_COLUMNS[i] + height + ")",
+		      false);
+	    }
+	    if (denormalized) {
+		apply(con,
+		      "CREATE INDEX IF NOT EXISTS attachment." + TABLES[i] + "_height_idx " +
+		      "ON attachment." + TABLES[i] + " (height)",
+		      false);
+		apply(con,
+		      "CREATE INDEX IF NOT EXISTS attachment." + TABLES[i] + "_sender_id_idx " +
+		      "ON attachment." + TABLES[i] + " (sender_id, height)",
+		      false);
+		apply(con,
+		      "CREATE INDEX IF NOT EXISTS attachment." + TABLES[i] + "_recipient_id_idx " +
+		      "ON attachment." + TABLES[i] + " (recipient_id, height)",
+		      false);
+	    }
+	}
+
+	// One commit for all if desired
+	apply(con,null,commitUpdate);
+    }
+
+    // Batched inserts of attachment rows, one prepared statement per table. The batches are executed in an order
+    // which inserts referenced rows (assets, polls, orders) before the rows referencing them, although the schema
+    // doesn't require it.
+    private static final class Inserter implements AutoCloseable {
+
+	private final Connection con;
+	private final boolean denormalized;
+	private final PreparedStatement p_messaging_arbitrary_message;
+	private final PreparedStatement p_messaging_alias_assignment;
+	private final PreparedStatement p_messaging_poll_creation;
+	private final PreparedStatement p_messaging_vote_casting;
+	private final PreparedStatement p_colored_coins_asset_issuance;
+	private final PreparedStatement p_colored_coins_asset_transfer;
+	private final PreparedStatement p_colored_coins_ask_order_placement;
+	private final PreparedStatement p_colored_coins_bid_order_placement;
+	private final PreparedStatement p_colored_coins_ask_order_cancellation;
+	private final PreparedStatement p_colored_coins_bid_order_cancellation;
+	private final PreparedStatement[] executionOrder;
+	private int count;
+
+	private Inserter(Connection con, boolean denormalized) throws SQLException {
+	    this.con = con;
+	    this.denormalized = denormalized;
+	    p_messaging_arbitrary_message = prepare(0);
+	    p_messaging_alias_assignment = prepare(1);
+	    p_messaging_poll_creation = prepare(2);
+	    p_messaging_vote_casting = prepare(3);
+	    p_colored_coins_asset_issuance = prepare(4);
+	    p_colored_coins_asset_transfer = prepare(5);
+	    p_colored_coins_ask_order_placement = prepare(6);
+	    p_colored_coins_bid_order_placement = prepare(7);
+	    p_colored_coins_ask_order_cancellation = prepare(8);
+	    p_colored_coins_bid_order_cancellation = prepare(9);
+	    executionOrder = new PreparedStatement[] {
+		p_colored_coins_asset_issuance, p_messaging_poll_creation,
+		p_colored_coins_ask_order_placement, p_colored_coins_bid_order_placement,
+		p_colored_coins_ask_order_cancellation, p_colored_coins_bid_order_cancellation,
+		p_colored_coins_asset_transfer, p_messaging_vote_casting,
+		p_messaging_alias_assignment, p_messaging_arbitrary_message
+	    };
+	}
+
+	private PreparedStatement prepare(int table) throws SQLException {
+	    String columns = "transaction_id," + TABLE_COLUMNS[table] + (denormalized ? "," + DENORMALIZED_COLUMNS : "");
+	    StringBuilder values = new StringBuilder("?");
+	    for (int i = 0; i < columns.length(); i++) {
+		if (columns.charAt(i) == ',') {
+		    values.append(",?");
+		}
+	    }
+	    return con.prepareStatement("INSERT INTO attachment." + TABLES[table] +
+					" (" + columns + ") " +
+					" VALUES (" + values + ")");
+	}
+
+	private void add(Transaction transaction) throws SQLException {
+	    long id = transaction.getId();
+	    Attachment a = transaction.getAttachment();
+	    PreparedStatement pstmt;
+	    int i;
+	    // This if instanceof isn't very elegant, but is perfectly legal
+	    // and probably just as efficient as anything else.
+	    if (a instanceof Attachment.MessagingArbitraryMessage) {
+		Attachment.MessagingArbitraryMessage mam = 
+		    (Attachment.MessagingArbitraryMessage)a;
+		pstmt = p_messaging_arbitrary_message;
+		pstmt.setLong(1,id);
+		pstmt.setBytes(2,mam.getMessage());
+		i = 2;
+	    } else if (a instanceof Attachment.MessagingAliasAssignment) {
+		Attachment.MessagingAliasAssignment maa = 
+		    (Attachment.MessagingAliasAssignment)a;
+		pstmt = p_messaging_alias_assignment;
+		pstmt.setLong(1,id);
+		pstmt.setString(2,maa.getAliasName());
+		pstmt.setString(3,maa.getAliasURI());
+		i = 3;
+	    } else if (a instanceof Attachment.MessagingPollCreation) {
+		Attachment.MessagingPollCreation mpc = 
+		    (Attachment.MessagingPollCreation)a;
+		pstmt = p_messaging_poll_creation;
+		pstmt.setLong(1,id);
+		pstmt.setString(2,mpc.getPollName());
+		pstmt.setString(3,mpc.getPollDescription());
+		Array sqlArray = con.createArrayOf("String", mpc.getPollOptions());
+		pstmt.setArray(4,sqlArray);
+		pstmt.setByte(5,mpc.getMinNumberOfOptions());	
+		pstmt.setByte(6,mpc.getMaxNumberOfOptions());
+		pstmt.setBoolean(7,mpc.isOptionsAreBinary());
+		i = 7;
+	    } else if (a instanceof Attachment.MessagingVoteCasting) {
+		Attachment.MessagingVoteCasting mvc = 
+		    (Attachment.MessagingVoteCasting)a;
+		pstmt = p_messaging_vote_casting;
+		pstmt.setLong(1,id);
+		pstmt.setLong(2,mvc.getPollId());
+		pstmt.setBytes(3,mvc.getPollVote());
+		i = 3;
+	    } else if (a instanceof Attachment.ColoredCoinsAssetIssuance) {
+		Attachment.ColoredCoinsAssetIssuance ccai = 
+		    (Attachment.ColoredCoinsAssetIssuance)a;
+		pstmt = p_colored_coins_asset_issuance;
+		pstmt.setLong(1,id);
+		pstmt.setString(2,ccai.getName());
+		pstmt.setString(3,ccai.getDescription());
+		pstmt.setInt(4,ccai.getQuantity());
+		i = 4;
+	    } else if (a instanceof Attachment.ColoredCoinsAssetTransfer) {
+		Attachment.ColoredCoinsAssetTransfer ccat = 
+		    (Attachment.ColoredCoinsAssetTransfer)a;
+		pstmt = p_colored_coins_asset_transfer;
+		pstmt.setLong(1,id);
+		pstmt.setLong(2,ccat.getAssetId());
+		pstmt.setInt(3,ccat.getQuantity());
+		pstmt.setString(4,ccat.getComment());
+		i = 4;
+	    } else if (a instanceof Attachment.ColoredCoinsAskOrderPlacement) {
+		Attachment.ColoredCoinsAskOrderPlacement ccaop = 
+		    (Attachment.ColoredCoinsAskOrderPlacement)a;
+		pstmt = p_colored_coins_ask_order_placement;
+		pstmt.setLong(1,id);
+		pstmt.setLong(2,ccaop.getAssetId());
+		pstmt.setInt(3,ccaop.getQuantity());
+		pstmt.setLong(4,ccaop.getPrice());
+		i = 4;
+	    } else if (a instanceof Attachment.ColoredCoinsBidOrderPlacement) {
+		Attachment.ColoredCoinsBidOrderPlacement ccbop = 
+		    (Attachment.ColoredCoinsBidOrderPlacement)a;
+		pstmt = p_colored_coins_bid_order_placement;
+		pstmt.setLong(1,id);
+		pstmt.setLong(2,ccbop.getAssetId());
+		pstmt.setInt(3,ccbop.getQuantity());
+		pstmt.setLong(4,ccbop.getPrice());
+		i = 4;
+	    } else if (a instanceof Attachment.ColoredCoinsAskOrderCancellation) {
+		Attachment.ColoredCoinsAskOrderCancellation ccaoc = 
+		    (Attachment.ColoredCoinsAskOrderCancellation)a;
+		pstmt = p_colored_coins_ask_order_cancellation;
+		pstmt.setLong(1,id);
+		pstmt.setLong(2,ccaoc.getOrderId());
+		i = 2;
+	    } else if (a instanceof Attachment.ColoredCoinsBidOrderCancellation) {
+		Attachment.ColoredCoinsBidOrderCancellation ccboc = 
+		    (Attachment.ColoredCoinsBidOrderCancellation)a;
+		pstmt = p_colored_coins_bid_order_cancellation;
+		pstmt.setLong(1,id);
+		pstmt.setLong(2,ccboc.getOrderId());
+		i = 2;
+	    } else {
+		throw new RuntimeException("Unknown attachment type");
+	    }
+	    if (denormalized) {
+		pstmt.setInt(++i,transaction.getHeight());
+		pstmt.setInt(++i,transaction.getTimestamp());
+		pstmt.setLong(++i,transaction.getSenderId());
+		pstmt.setLong(++i,transaction.getRecipientId());
+	    }
+	    pstmt.addBatch();
+	    count += 1;
+	}
+
+	private void execute() throws SQLException {
+	    if (count == 0) {
+		return;
+	    }
+	    for (PreparedStatement pstmt : executionOrder) {
+		pstmt.executeBatch();
+	    }
+	    count = 0;
+	}
+
+	@Override
+	public void close() throws SQLException {
+	    for (PreparedStatement pstmt : executionOrder) {
+		pstmt.close();
+	    }
+	}
+
+    }
+
+    // Rows of consecutive db_id ranges are read and parsed in parallel,
+    // but inserted and committed in db_id order by a single connection,
+    // both because the tables are locked by each writing transaction, and
+    // so that referenced rows are always inserted first. Each chunk is
+    // committed together with the next db_id to process, so that an
+    // interrupted backfill resumes from where it stopped.
+
+    private static final int BACKFILL_CHUNK_SIZE = 10000;
+    private static final int BACKFILL_PROGRESS_INTERVAL = 10000;
+
+    private static void startBackfill(Connection con, long fromDbId, Boolean commitUpdate) {
 	apply(con,
-	      "CREATE VIEW attachment.trans_colored_coins_bid_order_placement AS " +
-	      "SELECT t.*, a.* FROM " +
-	      "public.transaction t join attachment.colored_coins_bid_order_placement a " +
-	      "ON t.id=a.transaction_id",
+	      "CREATE TABLE IF NOT EXISTS attachment.backfill (" +
+	      "next_db_id BIGINT NOT NULL" +
+	      ")",
 	      false);
-	
-	// Transaction view for ask cancel order placement
+	apply(con,"DELETE FROM attachment.backfill",false);
+	apply(con,"INSERT INTO attachment.backfill (next_db_id) VALUES (" + fromDbId + ")",commitUpdate);
+    }
+
+    private static boolean isBackfilling(Connection con) throws SQLException {
+	try (Statement stmt = con.createStatement();
+	     ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES " +
+					      "WHERE TABLE_SCHEMA = 'ATTACHMENT' AND TABLE_NAME = 'BACKFILL'")) {
+	    rs.next();
+	    return rs.getInt(1) > 0;
+	}
+    }
+
+    private static void backfill(Connection con) {
+	int threads = Nxt.getIntProperty("nxt.attachmentSchemaBackfillThreads");
+	if (threads <= 0) {
+	    threads = Runtime.getRuntime().availableProcessors();
+	}
+	// leave a connection for the writer
+	threads = Math.max(1, Math.min(threads, Nxt.getIntProperty("nxt.maxDbConnections") - 1));
+	ExecutorService executor = Executors.newFixedThreadPool(threads);
+	try (Statement stmt = con.createStatement();
+	     PreparedStatement pstmtProgress = con.prepareStatement("UPDATE attachment.backfill SET next_db_id = ?");
+	     Inserter inserter = new Inserter(con, isDenormalized(con))) {
+		long nextDbId;
+		long maxDbId;
+		try (ResultSet rs = stmt.executeQuery("SELECT next_db_id FROM attachment.backfill")) {
+		    rs.next();
+		    nextDbId = rs.getLong(1);
+		}
+		try (ResultSet rs = stmt.executeQuery("SELECT MIN(db_id), MAX(db_id) FROM public.transaction")) {
+		    rs.next();
+		    nextDbId = Math.max(nextDbId, rs.getLong(1));
+		    maxDbId = rs.getLong(2);
+		}
+		Logger.logMessage("Attachment schema backfill starting at db_id " + nextDbId);
+
+		long startTime = System.currentTimeMillis();
+		long lastProgressTime = startTime;
+		long rows = 0;
+		long submittedDbId = nextDbId;
+		Deque<Future<List<TransactionImpl>>> chunks = new ArrayDeque<>();
+		while (nextDbId <= maxDbId) {
+		    // Keep a few chunks ahead of the writer, but not the whole table in memory
+		    while (chunks.size() < threads * 2 && submittedDbId <= maxDbId) {
+			chunks.addLast(executor.submit(loadChunk(submittedDbId, submittedDbId + BACKFILL_CHUNK_SIZE)));
+			submittedDbId += BACKFILL_CHUNK_SIZE;
+		    }
+		    for (TransactionImpl transaction : chunks.removeFirst().get()) {
+			inserter.add(transaction);
+			rows += 1;
+		    }
+		    inserter.execute();
+		    nextDbId += BACKFILL_CHUNK_SIZE;
+		    pstmtProgress.setLong(1, nextDbId);
+		    pstmtProgress.executeUpdate();
+		    con.commit();
+
+		    long now = System.currentTimeMillis();
+		    if (now - lastProgressTime >= BACKFILL_PROGRESS_INTERVAL || nextDbId > maxDbId) {
+			Logger.logMessage("Attachment schema backfill at db_id " + Math.min(nextDbId, maxDbId) + " of " + maxDbId
+					  + ", " + rows + " rows, " + (rows * 1000 / Math.max(1, now - startTime)) + " rows/s");
+			lastProgressTime = now;
+		    }
+		}
+	    } catch (SQLException e) {
+		try {
+		    con.rollback();
+		} catch (SQLException ignore) {}
+		throw new RuntimeException(e.toString(), e);
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new RuntimeException("Attachment schema backfill interrupted", e);
+	    } catch (ExecutionException e) {
+		throw new RuntimeException(e.getCause().toString(), e.getCause());
+	    } finally {
+		executor.shutdownNow();
+	    }
+    }
+
+    private static Callable<List<TransactionImpl>> loadChunk(final long fromDbId, final long toDbId) {
+	return new Callable<List<TransactionImpl>>() {
+	    @Override
+	    public List<TransactionImpl> call() throws SQLException {
+		List<TransactionImpl> transactions = new ArrayList<>();
+		try (Connection con = Db.getConnection();
+		     PreparedStatement pstmt = con.prepareStatement("SELECT * FROM public.transaction " +
+								    "WHERE db_id >= ? AND db_id < ? AND attachment IS NOT NULL " +
+								    "ORDER BY db_id")) {
+			pstmt.setLong(1, fromDbId);
+			pstmt.setLong(2, toDbId);
+			try (ResultSet rs = pstmt.executeQuery()) {
+			    while (rs.next()) {
+				transactions.add(TransactionDb.loadTransaction(con, rs));
+			    }
+			}
+		    } catch (NxtException.ValidationException e) {
+		    throw new RuntimeException("Transaction already in database does not pass validation!", e);
+		}
+		return transactions;
+	    }
+	};
+    }
+
+    // Records the last block the schema is up to date with, and whether
+    // it is being kept up to date by a running server. When the server
+    // runs without doing so, the data stays as of the block it started
+    // at, and is refreshed from there the next time live updating is
+    // enabled or the schema is initialized offline.
+    private static void status(Connection con, Boolean live, Boolean commitUpdate) {
+	apply(con,"DROP TABLE IF EXISTS attachment.status",false);
 	apply(con,
-	      "CREATE VIEW attachment.trans_colored_coins_ask_order_cancellation AS " +
-	      "SELECT t.*, a.* FROM " +
-	      "public.transaction t join attachment.colored_coins_ask_order_cancellation a " +
-	      "ON t.id=a.transaction_id",
+	      "CREATE TABLE attachment.status (" +
+	      "live BOOLEAN NOT NULL" +
+	      ", height INT NOT NULL" +
+	      ", block_id BIGINT NOT NULL" +
+	      ")",
 	      false);
-	
-	// Transaction view for big cancel order placement
 	apply(con,
-	      "CREATE VIEW attachment.trans_colored_coins_bid_order_cancellation AS " +
-	      "SELECT t.*, a.* FROM " +
-	      "public.transaction t join attachment.colored_coins_bid_order_cancellation a " +
-	      "ON t.id=a.transaction_id",
-	      false);
-	
-	// One commit for all if desired
-	apply(con,null,commitUpdate);
-	
+	      "INSERT INTO attachment.status (live,height,block_id) " +
+	      "SELECT " + live + ", height, id FROM public.block ORDER BY height DESC LIMIT 1",
+	      commitUpdate);
     }
 
-    private static void insert(Connection con, Boolean commitUpdate) {
-	// Use table-specific prepared statements for speed
-
+    // Adds the attachments of the blocks after the last one the schema
+    // is up to date with, unless it has never been fully built. If that
+    // block is no longer in the blockchain, the cascades have already
+    // removed the rows of the blocks popped off, and the highest block
+    // with remaining rows is at or below the common block.
+    private static void refresh(Connection con) throws SQLException {
+	if (exists(con) && ! isBackfilling(con) && isDenormalized(con) != DENORMALIZED) {
+	    Logger.logMessage("Attachment schema layout changed by nxt.attachmentSchemaDenormalized");
+	    drop(con,true);
+	}
+	if (isBackfilling(con) || ! hasStatus(con)) {
+	    rebuild(con);
+	    return;
+	}
+	int height;
+	long blockId;
 	try (Statement stmt = con.createStatement();
-	     PreparedStatement p_messaging_arbitrary_message=
-	     con.prepareStatement("INSERT INTO attachment.messaging_arbitrary_message" +
-				  " (transaction_id,message) " +
-				  " VALUES (?,?)");
-	     PreparedStatement p_messaging_alias_assignment=
-	     con.prepareStatement("INSERT INTO attachment.messaging_alias_assignment" +
-				  " (transaction_id,name,uri) " +
-				  " VALUES (?,?,?)");
-	     PreparedStatement p_messaging_poll_creation=
-	     con.prepareStatement("INSERT INTO attachment.messaging_poll_creation" +
-				  " (transaction_id,name,description,options,min_number_of_options," +
-				  "max_number_of_options,options_are_binary) " +
-				  " VALUES (?,?,?,?,?,?,?)");
-	     PreparedStatement p_messaging_vote_casting=
-	     con.prepareStatement("INSERT INTO attachment.messaging_vote_casting" +
-				  "(transaction_id,poll_id,vote)" +
-				  " VALUES (?,?,?)");
-	     PreparedStatement p_colored_coins_asset_issuance=
-	     con.prepareStatement("INSERT INTO attachment.colored_coins_asset_issuance" +
-				  "(transaction_id,name,description,quantity)" +
-				  " VALUES (?,?,?,?)");
-	     PreparedStatement p_colored_coins_asset_transfer=
-	     con.prepareStatement("INSERT INTO attachment.colored_coins_asset_transfer" +
-				  "(transaction_id,asset,quantity,comment)" +
-				  " VALUES (?,?,?,?)");
-	     PreparedStatement p_colored_coins_ask_order_placement=
-	     con.prepareStatement("INSERT INTO attachment.colored_coins_ask_order_placement" +
-				  "(transaction_id,asset,quantity,price)" +
-				  " VALUES (?,?,?,?)");
-	     PreparedStatement p_colored_coins_bid_order_placement=
-	     con.prepareStatement("INSERT INTO attachment.colored_coins_bid_order_placement" +
-				  "(transaction_id,asset,quantity,price)" +
-				  " VALUES (?,?,?,?)");
-	     PreparedStatement p_colored_coins_ask_order_cancellation=
-	     con.prepareStatement("INSERT INTO attachment.colored_coins_ask_order_cancellation" +
-				  "(transaction_id,order_id)" +
-				  " VALUES (?,?)");
-	     PreparedStatement p_colored_coins_bid_order_cancellation=
-	     con.prepareStatement("INSERT INTO attachment.colored_coins_bid_order_cancellation" +
-				  "(transaction_id,order_id)" +
-				  " VALUES (?,?)")
-	     ) {
-		ResultSet rs = stmt.executeQuery("SELECT id, attachment FROM public.transaction " + 
-						  "WHERE attachment IS NOT NULL");
-
-		while (rs.next()) {
-		    long id = rs.getLong("id");
-		    Attachment a = (Attachment)rs.getObject("attachment");		    
-
-		    // This if instanceof isn't very elegant, but is perfectly legal
-		    // and probably just as efficient as anything else.
-		    if (a instanceof Attachment.MessagingArbitraryMessage) {
-			Attachment.MessagingArbitraryMessage mam = 
-			    (Attachment.MessagingArbitraryMessage)a;
-			p_messaging_arbitrary_message.setLong(1,id);
-			p_messaging_arbitrary_message.setBytes(2,mam.getMessage());
-			p_messaging_arbitrary_message.executeUpdate();			    
-		    } else if (a instanceof Attachment.MessagingAliasAssignment) {
-			Attachment.MessagingAliasAssignment maa = 
-			    (Attachment.MessagingAliasAssignment)a;
-			p_messaging_alias_assignment.setLong(1,id);
-			p_messaging_alias_assignment.setString(2,maa.getAliasName());
-			p_messaging_alias_assignment.setString(3,maa.getAliasURI());
-			p_messaging_alias_assignment.executeUpdate();
-		    } else if (a instanceof Attachment.MessagingPollCreation) {
-			Attachment.MessagingPollCreation mpc = 
-			    (Attachment.MessagingPollCreation)a;
-			p_messaging_poll_creation.setLong(1,id);
-			p_messaging_poll_creation.setString(2,mpc.getPollName());
-			p_messaging_poll_creation.setString(3,mpc.getPollDescription());
-			Array sqlArray = con.createArrayOf("String", mpc.getPollOptions());
-			p_messaging_poll_creation.setArray(4,sqlArray);
-			p_messaging_poll_creation.setByte(5,mpc.getMinNumberOfOptions());	
-			p_messaging_poll_creation.setByte(6,mpc.getMaxNumberOfOptions());
-			p_messaging_poll_creation.setBoolean(7,mpc.isOptionsAreBinary());
-			p_messaging_poll_creation.executeUpdate();			    
-		    } else if (a instanceof Attachment.MessagingVoteCasting) {
-			Attachment.MessagingVoteCasting mvc = 
-			    (Attachment.MessagingVoteCasting)a;
-			p_messaging_vote_casting.setLong(1,id);
-			p_messaging_vote_casting.setLong(2,mvc.getPollId());
-			p_messaging_vote_casting.setBytes(3,mvc.getPollVote());
-			p_messaging_vote_casting.executeUpdate();			    
-		    } else if (a instanceof Attachment.ColoredCoinsAssetIssuance) {
-			Attachment.ColoredCoinsAssetIssuance ccai = 
-			    (Attachment.ColoredCoinsAssetIssuance)a;
-			p_colored_coins_asset_issuance.setLong(1,id);
-			p_colored_coins_asset_issuance.setString(2,ccai.getName());
-			p_colored_coins_asset_issuance.setString(3,ccai.getDescription());
-			p_colored_coins_asset_issuance.setInt(4,ccai.getQuantity());
-			p_colored_coins_asset_issuance.executeUpdate();			    
-		    } else if (a instanceof Attachment.ColoredCoinsAssetTransfer) {
-			Attachment.ColoredCoinsAssetTransfer ccat = 
-			    (Attachment.ColoredCoinsAssetTransfer)a;
-			p_colored_coins_asset_transfer.setLong(1,id);
-			p_colored_coins_asset_transfer.setLong(2,ccat.getAssetId());
-			p_colored_coins_asset_transfer.setInt(3,ccat.getQuantity());
-			p_colored_coins_asset_transfer.setString(4,ccat.getComment());
-			p_colored_coins_asset_transfer.executeUpdate();
-		    } else if (a instanceof Attachment.ColoredCoinsAskOrderPlacement) {
-			Attachment.ColoredCoinsAskOrderPlacement ccaop = 
-			    (Attachment.ColoredCoinsAskOrderPlacement)a;
-			p_colored_coins_ask_order_placement.setLong(1,id);
-			p_colored_coins_ask_order_placement.setLong(2,ccaop.getAssetId());
-			p_colored_coins_ask_order_placement.setInt(3,ccaop.getQuantity());
-			p_colored_coins_ask_order_placement.setLong(4,ccaop.getPrice());
-			p_colored_coins_ask_order_placement.executeUpdate();			    
-		    } else if (a instanceof Attachment.ColoredCoinsBidOrderPlacement) {
-			Attachment.ColoredCoinsBidOrderPlacement ccbop = 
-			    (Attachment.ColoredCoinsBidOrderPlacement)a;
-			p_colored_coins_bid_order_placement.setLong(1,id);
-			p_colored_coins_bid_order_placement.setLong(2,ccbop.getAssetId());
-			p_colored_coins_bid_order_placement.setInt(3,ccbop.getQuantity());
-			p_colored_coins_bid_order_placement.setLong(4,ccbop.getPrice());
-			p_colored_coins_bid_order_placement.executeUpdate();			    
-		    } else if (a instanceof Attachment.ColoredCoinsAskOrderCancellation) {
-			Attachment.ColoredCoinsAskOrderCancellation ccaoc = 
-			    (Attachment.ColoredCoinsAskOrderCancellation)a;
-			p_colored_coins_ask_order_cancellation.setLong(1,id);
-			p_colored_coins_ask_order_cancellation.setLong(2,ccaoc.getOrderId());
-			p_colored_coins_ask_order_cancellation.executeUpdate();			    
-		    } else if (a instanceof Attachment.ColoredCoinsBidOrderCancellation) {
-			Attachment.ColoredCoinsBidOrderCancellation ccboc = 
-			    (Attachment.ColoredCoinsBidOrderCancellation)a;
-			p_colored_coins_bid_order_cancellation.setLong(1,id);
-			p_colored_coins_bid_order_cancellation.setLong(2,ccboc.getOrderId());
-			p_colored_coins_bid_order_cancellation.executeUpdate();			    
-		    } else {
-			throw new RuntimeException("Unknown attachment type");
+	     ResultSet rs = stmt.executeQuery("SELECT height, block_id FROM attachment.status")) {
+	    if (! rs.next()) {
+		rebuild(con);
+		return;
+	    }
+	    height = rs.getInt("height");
+	    blockId = rs.getLong("block_id");
+	}
+	if (! BlockDb.hasBlock(blockId)) {
+	    height = 0;
+	    try (Statement stmt = con.createStatement()) {
+		for (String table : TABLES) {
+		    try (ResultSet rs = stmt.executeQuery("SELECT MAX(t.height) FROM public.transaction t " +
+							  "JOIN attachment." + table + " a ON t.id = a.transaction_id")) {
+			rs.next();
+			height = Math.max(height, rs.getInt(1));
 		    }
 		}
-	    } catch (SQLException e) {
-	    throw new RuntimeException(e.toString(), e);
+	    }
+	    Logger.logMessage("Blockchain reorganized since the attachment schema was last refreshed, " +
+			      "deleting attachments after height " + height);
+	    for (String table : TABLES) {
+		// also removes any rows left behind by a truncation of the blockchain
+		apply(con,
+		      "DELETE FROM attachment." + table + " WHERE transaction_id NOT IN " +
+		      "(SELECT id FROM public.transaction WHERE height <= " + height + ")",
+		      false);
+	    }
+	}
+	// transactions are saved in blockchain order, so the ones above
+	// the height are exactly those from the first of them on
+	long fromDbId = -1;
+	try (PreparedStatement pstmt = con.prepareStatement("SELECT MIN(db_id) FROM public.transaction WHERE height > ?")) {
+	    pstmt.setInt(1, height);
+	    try (ResultSet rs = pstmt.executeQuery()) {
+		if (rs.next()) {
+		    fromDbId = rs.getLong(1);
+		    if (rs.wasNull()) {
+			fromDbId = -1;
+		    }
+		}
+	    }
+	}
+	Logger.logMessage("Refreshing attachment schema from height " + height);
+	if (fromDbId >= 0) {
+	    startBackfill(con,fromDbId,true);
+	    backfill(con);
+	    apply(con,"DROP TABLE attachment.backfill",false);
 	}
+	if (INDEXES) {
+	    indexes(con,isDenormalized(con),false);
+	}
+	status(con,true,true);
+    }
 
-	// One commit for all if desired
-	// Could be memory intensive
-	apply(con,null,commitUpdate);
-	
+    private static boolean hasStatus(Connection con) throws SQLException {
+	try (Statement stmt = con.createStatement();
+	     ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES " +
+					      "WHERE TABLE_SCHEMA = 'ATTACHMENT' AND TABLE_NAME = 'STATUS'")) {
+	    rs.next();
+	    return rs.getInt(1) > 0;
+	}
     }
 
-    private static void init() {
-        try (Connection con = Db.getConnection()) {
-		drop(con,false); // Start from scratch
-		create(con,false);
-		//delete(con,false);
-		insert(con,false);
-		viewsFullTransaction(con,false);
-		//indexes(con,false);
-		//foreignKeys(con,false);
-
-		// commit once for all		
-		// Could be memory intensive
-		apply(con,null,true); 
+    private static boolean exists(Connection con) throws SQLException {
+	try (Statement stmt = con.createStatement();
+	     ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.SCHEMATA " +
+					      "WHERE SCHEMA_NAME = 'ATTACHMENT'")) {
+	    rs.next();
+	    return rs.getInt(1) > 0;
+	}
+    }
+
+    private static boolean isLive(Connection con) throws SQLException {
+	if (! hasStatus(con)) {
+	    return false;
+	}
+	try (Statement stmt = con.createStatement();
+	     ResultSet rs = stmt.executeQuery("SELECT live FROM attachment.status")) {
+	    return rs.next() && rs.getBoolean("live");
+	}
+    }
+
+    private static final boolean INDEXES = Nxt.getBooleanProperty("nxt.attachmentSchemaIndexes");
+    private static final boolean DENORMALIZED = Nxt.getBooleanProperty("nxt.attachmentSchemaDenormalized");
+
+    private static volatile boolean live;
+    private static volatile boolean denormalized;
+
+    // Called on server startup. With nxt.liveAttachmentSchema enabled the
+    // attachment rows of each block are saved together with the block,
+    // and deleted together with it by the foreign key cascades. A missing
+    // schema is built first, which takes a while, a stale one refreshed.
+    static void init() {
+	try (Connection con = Db.getConnection()) {
+		if (! Nxt.getBooleanProperty("nxt.liveAttachmentSchema")) {
+		    if (exists(con) && isLive(con)) {
+			status(con,false,true);
+		    }
+		    return;
+		}
+		if (exists(con)) {
+		    dropReferenceKeys(con);
+		}
+		if (! isLive(con) || isDenormalized(con) != DENORMALIZED) {
+		    refresh(con);
+		} else if (INDEXES) {
+		    indexes(con,DENORMALIZED,true);
+		}
+		denormalized = DENORMALIZED;
+		live = true;
         } catch (SQLException e) {
-            throw new RuntimeException("Can't get DB connection", e);
+            throw new RuntimeException(e.toString(), e);
         }
     }
 
+    // Must be called after the transactions of the block are saved, in
+    // the same database transaction. Never fails: if the rows can't be
+    // inserted, they are rolled back alone, and live updating is turned
+    // off with the schema marked as up to date with the previous block,
+    // to be refreshed from there on the next startup.
+    static void saveAttachments(Connection con, BlockImpl block) {
+	if (! live || block.getTransactions().isEmpty()) {
+	    return;
+	}
+	Savepoint savepoint = null;
+	try {
+	    savepoint = con.setSavepoint();
+	    try (Inserter inserter = new Inserter(con, denormalized)) {
+		for (TransactionImpl transaction : block.getTransactions()) {
+		    if (transaction.getAttachment() != null) {
+			inserter.add(transaction);
+		    }
+		}
+		inserter.execute();
+	    }
+	} catch (SQLException|RuntimeException e) {
+	    live = false;
+	    Logger.logMessage("Error saving attachments of block " + Convert.toUnsignedLong(block.getId())
+			      + ", live updating of the attachment schema disabled", e);
+	    if (savepoint != null) {
+		try {
+		    con.rollback(savepoint);
+		} catch (SQLException ignore) {}
+	    }
+	    markStale(block.getHeight() - 1, block.getPreviousBlockId());
+	}
+    }
+
+    // Uses its own connection, and doesn't read the block table, which
+    // the connection saving the block holds locked
+    private static void markStale(int height, Long blockId) {
+	try (Connection con = Db.getConnection();
+	     PreparedStatement pstmt = con.prepareStatement("UPDATE attachment.status SET live = FALSE, height = ?, block_id = ?")) {
+	    pstmt.setInt(1, height);
+	    pstmt.setLong(2, blockId != null ? blockId : 0);
+	    pstmt.executeUpdate();
+	    con.commit();
+	} catch (SQLException e) {
+	    Logger.logMessage("Error marking attachment schema as stale", e);
+	}
+    }
+
+    // Schemas created before the asset, poll_id and order_id columns lost
+    // their foreign keys still have them
+    private static void dropReferenceKeys(Connection con) throws SQLException {
+	List<String> statements = new ArrayList<>();
+	try (Statement stmt = con.createStatement();
+	     ResultSet rs = stmt.executeQuery("SELECT FKTABLE_NAME, FK_NAME FROM INFORMATION_SCHEMA.CROSS_REFERENCES " +
+					      "WHERE PKTABLE_SCHEMA = 'ATTACHMENT' AND FKTABLE_SCHEMA = 'ATTACHMENT'")) {
+	    while (rs.next()) {
+		statements.add("ALTER TABLE attachment." + rs.getString(1) + " DROP CONSTRAINT attachment." + rs.getString(2));
+	    }
+	}
+	for (String sql : statements) {
+	    apply(con,sql,false);
+	}
+	apply(con,null,true);
+    }
+
+    // Resumes an interrupted rebuild instead of starting over
+    private static void rebuild(Connection con) throws SQLException {
+	Logger.logMessage("Rebuilding attachment schema, this may take a while...");
+	if (! isBackfilling(con)) {
+	    drop(con,false); // Start from scratch
+	    create(con,false);
+	    //delete(con,false);
+	    if (DENORMALIZED) {
+		denormalize(con,false);
+	    }
+	    viewsFullTransaction(con,false);
+	    //foreignKeys(con,false);
+	    startBackfill(con,0,true);
+	}
+
+	// commits as it goes
+	backfill(con);
+
+	if (INDEXES) {
+	    indexes(con,isDenormalized(con),false);
+	}
+
+	status(con,true,false);
+	apply(con,"DROP TABLE attachment.backfill",true);
+	Logger.logMessage("...done");
+    }
+
+    // Refreshes the schema from the last block it is up to date with,
+    // or with --rebuild drops it and builds it from scratch
     public static void main(String[] args) throws Exception {
         Db.init();
 
-	init();
+        try (Connection con = Db.getConnection()) {
+		if (args.length > 0 && args[0].equals("--rebuild")) {
+		    drop(con,true);
+		}
+		if (exists(con)) {
+		    dropReferenceKeys(con);
+		}
+		refresh(con);
+        }
 
 	Db.shutdown();
     }
@@ -47,6 +47,8 @@ public interface Block {
 
     BigInteger getCumulativeDifficulty();
 
+    byte[] getBytes();
+
     JSONObject getJSONObject();
 
 }
@@ -1,5 +1,8 @@
 package nxt;
 
+import nxt.util.Convert;
+import nxt.util.Logger;
+
 import java.math.BigInteger;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -30,14 +33,7 @@ final class BlockDb {
     }
 
     static boolean hasBlock(Long blockId) {
-        try (Connection con = Db.getConnection();
-             PreparedStatement pstmt = con.prepareStatement("SELECT 1 FROM block WHERE id = ?")) {
-            pstmt.setLong(1, blockId);
-            ResultSet rs = pstmt.executeQuery();
-            return rs.next();
-        } catch (SQLException e) {
-            throw new RuntimeException(e.toString(), e);
-        }
+        return IdIndex.blockIds.contains(blockId);
     }
 
     static long findBlockIdAtHeight(int height) {
@@ -99,12 +95,18 @@ final class BlockDb {
         }
     }
 
+    private static final String INSERT_BLOCK = "INSERT INTO block (id, version, timestamp, previous_block_id, "
+            + "total_amount, total_fee, payload_length, generator_public_key, previous_block_hash, cumulative_difficulty, "
+            + "base_target, next_block_id, height, generation_signature, block_signature, payload_hash, generator_id) "
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String UPDATE_NEXT_BLOCK_ID = "UPDATE block SET next_block_id = ? WHERE id = ?";
+
     static void saveBlock(Connection con, BlockImpl block) {
         try {
-            try (PreparedStatement pstmt = con.prepareStatement("INSERT INTO block (id, version, timestamp, previous_block_id, "
-                    + "total_amount, total_fee, payload_length, generator_public_key, previous_block_hash, cumulative_difficulty, "
-                    + "base_target, next_block_id, height, generation_signature, block_signature, payload_hash, generator_id) "
-                    + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+            PreparedStatement pstmt = Db.prepareStatement(con, INSERT_BLOCK);
+            try {
+                IdIndex.blockIds.add(block.getId());
                 int i = 0;
                 pstmt.setLong(++i, block.getId());
                 pstmt.setInt(++i, block.getVersion());
@@ -132,13 +134,19 @@ final class BlockDb {
                 pstmt.setBytes(++i, block.getPayloadHash());
                 pstmt.setLong(++i, block.getGeneratorId());
                 pstmt.executeUpdate();
-                TransactionDb.saveTransactions(con, block.getTransactions());
+            } finally {
+                Db.releaseStatement(pstmt);
             }
+            TransactionDb.saveTransactions(con, block.getTransactions());
+            AttachmentSchema.saveAttachments(con, block);
             if (block.getPreviousBlockId() != null) {
-                try (PreparedStatement pstmt = con.prepareStatement("UPDATE block SET next_block_id = ? WHERE id = ?")) {
+                pstmt = Db.prepareStatement(con, UPDATE_NEXT_BLOCK_ID);
+                try {
                     pstmt.setLong(1, block.getId());
                     pstmt.setLong(2, block.getPreviousBlockId());
                     pstmt.executeUpdate();
+                } finally {
+                    Db.releaseStatement(pstmt);
                 }
             }
         } catch (SQLException e) {
@@ -146,28 +154,67 @@ final class BlockDb {
         }
     }
 
-    // relying on cascade triggers in the database to delete the transactions for all deleted blocks
-    static void deleteBlocksFrom(Long blockId) {
+    // deletes the block and all blocks after it, together with their transactions, in a single database transaction,
+    // and moves the last block back to the block preceding them if it was among the deleted ones
+    static BlockImpl deleteBlocksFrom(Long blockId) {
         try (Connection con = Db.getConnection();
-             PreparedStatement pstmtSelect = con.prepareStatement("SELECT db_id FROM block WHERE db_id >= "
-             + "(SELECT db_id FROM block WHERE id = ?) ORDER BY db_id DESC");
-             PreparedStatement pstmtDelete = con.prepareStatement("DELETE FROM block WHERE db_id = ?")) {
+             PreparedStatement pstmtSelect = con.prepareStatement("SELECT db_id, height, previous_block_id FROM block WHERE id = ?");
+             PreparedStatement pstmtDeleteTransactions = con.prepareStatement("DELETE FROM transaction WHERE block_id IN "
+                     + "(SELECT id FROM block WHERE db_id >= ?)");
+             PreparedStatement pstmtUnlink = con.prepareStatement("UPDATE block SET previous_block_id = NULL, next_block_id = NULL "
+                     + "WHERE db_id >= ?");
+             PreparedStatement pstmtDeleteBlocks = con.prepareStatement("DELETE FROM block WHERE db_id >= ?");
+             PreparedStatement pstmtPrevious = con.prepareStatement("SELECT * FROM block WHERE id = ?")) {
             try {
                 pstmtSelect.setLong(1, blockId);
                 ResultSet rs = pstmtSelect.executeQuery();
-                con.commit();
-                while (rs.next()) {
-                    pstmtDelete.setInt(1, rs.getInt("db_id"));
-                    pstmtDelete.executeUpdate();
-                    con.commit();
+                if (! rs.next()) {
+                    rs.close();
+                    Logger.logDebugMessage("Block " + Convert.toUnsignedLong(blockId) + " not found in database, nothing to delete");
+                    return null;
+                }
+                int dbId = rs.getInt("db_id");
+                int height = rs.getInt("height");
+                Long previousBlockId = rs.getLong("previous_block_id");
+                if (rs.wasNull()) {
+                    previousBlockId = null;
                 }
                 rs.close();
+                pstmtDeleteTransactions.setInt(1, dbId);
+                int transactionCount = pstmtDeleteTransactions.executeUpdate();
+                // without the links, deleting the blocks doesn't cascade from each block to the next one
+                pstmtUnlink.setInt(1, dbId);
+                pstmtUnlink.executeUpdate();
+                pstmtDeleteBlocks.setInt(1, dbId);
+                int blockCount = pstmtDeleteBlocks.executeUpdate();
+                BlockImpl previousBlock = null;
+                if (previousBlockId != null) {
+                    pstmtPrevious.setLong(1, previousBlockId);
+                    rs = pstmtPrevious.executeQuery();
+                    if (rs.next()) {
+                        previousBlock = loadBlock(con, rs);
+                    }
+                    rs.close();
+                }
+                con.commit();
+                Logger.logDebugMessage("Deleted " + blockCount + " blocks and " + transactionCount
+                        + " transactions starting at height " + height);
+                BlockImpl lastBlock = BlockchainImpl.getInstance().getLastBlock();
+                if (previousBlock != null && lastBlock != null && lastBlock.getHeight() >= height) {
+                    BlockchainImpl.getInstance().setLastBlock(previousBlock);
+                }
+                return previousBlock;
             } catch (SQLException e) {
                 con.rollback();
                 throw e;
+            } finally {
+                IdIndex.blockIds.invalidate();
+                IdIndex.transactionIds.invalidate();
             }
         } catch (SQLException e) {
             throw new RuntimeException(e.toString(), e);
+        } catch (NxtException.ValidationException e) {
+            throw new RuntimeException("Block already in database does not pass validation!", e);
         }
     }
 
@@ -176,10 +223,14 @@ final class BlockDb {
              Statement stmt = con.createStatement()) {
             try {
                 stmt.executeUpdate("SET REFERENTIAL_INTEGRITY FALSE");
+                AttachmentSchema.truncate(stmt);
+                stmt.executeUpdate("TRUNCATE TABLE account_transaction");
                 stmt.executeUpdate("TRUNCATE TABLE transaction");
                 stmt.executeUpdate("TRUNCATE TABLE block");
                 stmt.executeUpdate("SET REFERENTIAL_INTEGRITY TRUE");
                 con.commit();
+                IdIndex.blockIds.clear();
+                IdIndex.transactionIds.clear();
             } catch (SQLException e) {
                 con.rollback();
                 throw e;
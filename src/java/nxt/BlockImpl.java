@@ -38,6 +38,8 @@ final class BlockImpl implements Block {
     private volatile Long id;
     private volatile String stringId = null;
     private volatile Long generatorId;
+    private volatile boolean hasValidBlockSignature = false;
+    private volatile byte[] bytes;
 
 
     BlockImpl(int version, int timestamp, Long previousBlockId, int totalAmount, int totalFee, int payloadLength, byte[] payloadHash,
@@ -185,7 +187,7 @@ final class BlockImpl implements Block {
             if (blockSignature == null) {
                 throw new IllegalStateException("Block is not signed yet");
             }
-            byte[] hash = Crypto.sha256().digest(getBytes());
+            byte[] hash = Crypto.sha256().digest(getCanonicalBytes());
             BigInteger bigInteger = new BigInteger(1, new byte[] {hash[7], hash[6], hash[5], hash[4], hash[3], hash[2], hash[1], hash[0]});
             id = bigInteger.longValue();
             stringId = bigInteger.toString();
@@ -222,25 +224,35 @@ final class BlockImpl implements Block {
         return getId().hashCode();
     }
 
-    byte[] getBytes() {
-
-        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 8 + 4 + 4 + 4 + 4 + 32 + 32 + (32 + 32) + 64);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        buffer.putInt(version);
-        buffer.putInt(timestamp);
-        buffer.putLong(Convert.nullToZero(previousBlockId));
-        buffer.putInt(blockTransactions.size());
-        buffer.putInt(totalAmount);
-        buffer.putInt(totalFee);
-        buffer.putInt(payloadLength);
-        buffer.put(payloadHash);
-        buffer.put(generatorPublicKey);
-        buffer.put(generationSignature);
-        if (version > 1) {
-            buffer.put(previousBlockHash);
+    @Override
+    public byte[] getBytes() {
+        return getCanonicalBytes().clone();
+    }
+
+    // serialized only once and shared by all callers, must not be modified
+    byte[] getCanonicalBytes() {
+        byte[] result = bytes;
+        if (result == null) {
+            ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 8 + 4 + 4 + 4 + 4 + 32 + 32 + (32 + 32) + 64);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(version);
+            buffer.putInt(timestamp);
+            buffer.putLong(Convert.nullToZero(previousBlockId));
+            buffer.putInt(blockTransactions.size());
+            buffer.putInt(totalAmount);
+            buffer.putInt(totalFee);
+            buffer.putInt(payloadLength);
+            buffer.put(payloadHash);
+            buffer.put(generatorPublicKey);
+            buffer.put(generationSignature);
+            if (version > 1) {
+                buffer.put(previousBlockHash);
+            }
+            buffer.put(blockSignature);
+            result = buffer.array();
+            bytes = result;
         }
-        buffer.put(blockSignature);
-        return buffer.array();
+        return result;
     }
 
     @Override
@@ -278,10 +290,8 @@ final class BlockImpl implements Block {
             throw new IllegalStateException("Block already signed");
         }
         blockSignature = new byte[64];
-        byte[] data = getBytes();
-        byte[] data2 = new byte[data.length - 64];
-        System.arraycopy(data, 0, data2, 0, data2.length);
-        blockSignature = Crypto.sign(data2, secretPhrase);
+        blockSignature = Crypto.sign(getUnsignedBytes(), secretPhrase);
+        bytes = null;
     }
 
     boolean verifyBlockSignature() {
@@ -291,12 +301,56 @@ final class BlockImpl implements Block {
             return false;
         }
 
-        byte[] data = getBytes();
-        byte[] data2 = new byte[data.length - 64];
-        System.arraycopy(data, 0, data2, 0, data2.length);
+        return verifySignature() && account.setOrVerify(generatorPublicKey, this.height);
+
+    }
+
+    // stateless part of verifyBlockSignature(), safe to call from any thread, only a successful result is remembered
+    boolean verifySignature() {
+        if (! hasValidBlockSignature) {
+            hasValidBlockSignature = Crypto.verify(blockSignature, getUnsignedBytes(), generatorPublicKey);
+        }
+        return hasValidBlockSignature;
+    }
 
-        return Crypto.verify(blockSignature, data2, generatorPublicKey) && account.setOrVerify(generatorPublicKey, this.height);
+    // verifySignature() of the blocks and of all their transactions, as one batch
+    static void verifySignatures(List<BlockImpl> blocks) {
+        List<TransactionImpl> transactions = new ArrayList<>();
+        for (BlockImpl block : blocks) {
+            transactions.addAll(block.getTransactions());
+        }
+        int count = blocks.size() + transactions.size();
+        byte[][] signatures = new byte[count][];
+        byte[][] messages = new byte[count][];
+        byte[][] publicKeys = new byte[count][];
+        for (int i = 0; i < blocks.size(); i++) {
+            BlockImpl block = blocks.get(i);
+            signatures[i] = block.blockSignature;
+            messages[i] = block.getUnsignedBytes();
+            publicKeys[i] = block.generatorPublicKey;
+        }
+        for (int i = 0; i < transactions.size(); i++) {
+            TransactionImpl transaction = transactions.get(i);
+            signatures[blocks.size() + i] = transaction.getSignature();
+            messages[blocks.size() + i] = transaction.getUnsignedBytes();
+            publicKeys[blocks.size() + i] = transaction.getSenderPublicKey();
+        }
+        boolean[] result = Crypto.verifyBatch(signatures, messages, publicKeys);
+        for (int i = 0; i < blocks.size(); i++) {
+            if (result[i]) {
+                blocks.get(i).hasValidBlockSignature = true;
+            }
+        }
+        for (int i = 0; i < transactions.size(); i++) {
+            if (result[blocks.size() + i]) {
+                transactions.get(i).signatureVerified();
+            }
+        }
+    }
 
+    private byte[] getUnsignedBytes() {
+        byte[] data = getCanonicalBytes();
+        return Arrays.copyOf(data, data.length - 64);
     }
 
     boolean verifyGenerationSignature() throws BlockchainProcessor.BlockOutOfOrderException {
@@ -0,0 +1,264 @@
+package nxt;
+
+import nxt.crypto.Crypto;
+import nxt.util.Convert;
+import nxt.util.Listener;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The transactions this node would put in the next block it generates. New unconfirmed transactions are added as
+// they arrive, so that generating a block usually only has to read the template. Anything the selection depends on
+// changing otherwise, a new or popped block, an included transaction going away or expiring, or a higher priority
+// transaction not fitting, makes the template be selected again from all unconfirmed transactions when next used.
+// The listeners run while holding the blockchain lock, so they never take the template monitor, they only bump the
+// generation or queue the changes, which are applied by getContents.
+final class BlockTemplate {
+
+    private static final class Change {
+
+        private final List<Transaction> transactions;
+        private final boolean added;
+
+        private Change(List<Transaction> transactions, boolean added) {
+            this.transactions = transactions;
+            this.added = added;
+        }
+
+    }
+
+    static final class Contents {
+
+        private final List<TransactionImpl> transactions;
+        private final int totalAmount;
+        private final int totalFee;
+        private final int payloadLength;
+        private final byte[] payloadHash;
+
+        private Contents(List<TransactionImpl> transactions, int totalAmount, int totalFee, int payloadLength, byte[] payloadHash) {
+            this.transactions = transactions;
+            this.totalAmount = totalAmount;
+            this.totalFee = totalFee;
+            this.payloadLength = payloadLength;
+            this.payloadHash = payloadHash;
+        }
+
+        // in id order, a new list on every call
+        List<TransactionImpl> getTransactions() {
+            return new ArrayList<>(transactions);
+        }
+
+        int getTotalAmount() {
+            return totalAmount;
+        }
+
+        int getTotalFee() {
+            return totalFee;
+        }
+
+        int getPayloadLength() {
+            return payloadLength;
+        }
+
+        byte[] getPayloadHash() {
+            return payloadHash.clone();
+        }
+
+    }
+
+    private static final SortedMap<Long, TransactionImpl> transactions = new TreeMap<>();
+    private static final TreeSet<TransactionImpl> sortedTransactions = new TreeSet<>(TransactionProcessorImpl.priorityComparator);
+    private static final Map<TransactionType, Set<String>> duplicates = new HashMap<>();
+    private static final Map<Long, Long> accumulatedAmounts = new HashMap<>();
+    private static int totalAmount;
+    private static int totalFee;
+    private static int payloadLength;
+    private static int minExpiration;
+    private static Long lastBlockId;
+    private static boolean valid;
+    private static int selectedGeneration;
+    private static Contents contents;
+
+    private static final AtomicInteger generation = new AtomicInteger();
+    private static final Queue<Change> changes = new ConcurrentLinkedQueue<>();
+
+    static void init() {
+        Listener<Block> blockListener = new Listener<Block>() {
+            @Override
+            public void notify(Block block) {
+                generation.incrementAndGet();
+            }
+        };
+        BlockchainProcessorImpl.getInstance().addListener(blockListener, BlockchainProcessor.Event.BLOCK_PUSHED);
+        BlockchainProcessorImpl.getInstance().addListener(blockListener, BlockchainProcessor.Event.BLOCK_POPPED);
+        BlockchainProcessorImpl.getInstance().addListener(blockListener, BlockchainProcessor.Event.RESCAN_BEGIN);
+        TransactionProcessorImpl.getInstance().addListener(new Listener<List<Transaction>>() {
+            @Override
+            public void notify(List<Transaction> added) {
+                changes.add(new Change(added, true));
+            }
+        }, TransactionProcessor.Event.ADDED_UNCONFIRMED_TRANSACTIONS);
+        TransactionProcessorImpl.getInstance().addListener(new Listener<List<Transaction>>() {
+            @Override
+            public void notify(List<Transaction> removed) {
+                changes.add(new Change(removed, false));
+            }
+        }, TransactionProcessor.Event.REMOVED_UNCONFIRMED_TRANSACTIONS);
+    }
+
+    // must not be called while holding the blockchain lock
+    static synchronized Contents getContents(int blockTimestamp) {
+        int currentGeneration = generation.get();
+        if (currentGeneration != selectedGeneration) {
+            valid = false;
+        }
+        Change change;
+        while ((change = changes.poll()) != null) {
+            if (! valid) {
+                // select() reads all unconfirmed transactions anyway, changes queued while it runs are applied next time
+                changes.clear();
+                break;
+            }
+            if (change.added) {
+                addTransactions(change.transactions);
+            } else {
+                removeTransactions(change.transactions);
+            }
+        }
+        Long currentLastBlockId = Nxt.getBlockchain().getLastBlock().getId();
+        if (! valid || ! currentLastBlockId.equals(lastBlockId) || minExpiration < blockTimestamp) {
+            select(blockTimestamp, currentLastBlockId);
+            selectedGeneration = currentGeneration;
+        }
+        if (contents == null) {
+            MessageDigest digest = Crypto.sha256();
+            for (TransactionImpl transaction : transactions.values()) {
+                digest.update(transaction.getCanonicalBytes());
+            }
+            contents = new Contents(new ArrayList<>(transactions.values()), totalAmount, totalFee, payloadLength, digest.digest());
+        }
+        return contents;
+    }
+
+    private static void invalidate() {
+        valid = false;
+        contents = null;
+    }
+
+    private static void addTransactions(List<Transaction> added) {
+        int blockTimestamp = Convert.getEpochTime();
+        for (Transaction transaction : added) {
+            TransactionImpl transactionImpl = (TransactionImpl) transaction;
+            // may have been included in a block or removed again since it was queued
+            if (TransactionProcessorImpl.getInstance().getUnconfirmedTransaction(transaction.getId()) == null) {
+                continue;
+            }
+            if (payloadLength + transactionImpl.getSize() > Constants.MAX_PAYLOAD_LENGTH) {
+                if (! sortedTransactions.isEmpty()
+                        && TransactionProcessorImpl.priorityComparator.compare(transactionImpl, sortedTransactions.last()) < 0) {
+                    invalidate();
+                    return;
+                }
+                continue;
+            }
+            if (add(transactionImpl, blockTimestamp)) {
+                contents = null;
+            }
+        }
+    }
+
+    private static void removeTransactions(List<Transaction> removed) {
+        for (Transaction transaction : removed) {
+            if (transactions.containsKey(transaction.getId())) {
+                invalidate();
+                return;
+            }
+        }
+    }
+
+    private static void select(int blockTimestamp, Long currentLastBlockId) {
+        transactions.clear();
+        sortedTransactions.clear();
+        duplicates.clear();
+        accumulatedAmounts.clear();
+        totalAmount = 0;
+        totalFee = 0;
+        payloadLength = 0;
+        minExpiration = Integer.MAX_VALUE;
+        contents = null;
+        // a transaction skipped here can't become includable by including later ones, so a single pass in priority
+        // order is enough
+        for (TransactionImpl transaction : TransactionProcessorImpl.getInstance().getSortedUnconfirmedTransactions()) {
+            if (payloadLength + TransactionImpl.TRANSACTION_BYTES_LENGTH > Constants.MAX_PAYLOAD_LENGTH) {
+                break;
+            }
+            if (payloadLength + transaction.getSize() > Constants.MAX_PAYLOAD_LENGTH) {
+                continue;
+            }
+            add(transaction, blockTimestamp);
+        }
+        lastBlockId = currentLastBlockId;
+        valid = true;
+    }
+
+    private static boolean add(TransactionImpl transaction, int blockTimestamp) {
+
+        if (transactions.containsKey(transaction.getId())) {
+            return false;
+        }
+
+        if (transaction.getReferencedTransactionId() != null && ! TransactionDb.hasTransaction(transaction.getReferencedTransactionId())) {
+            return false;
+        }
+
+        Long sender = transaction.getSenderId();
+        Long accumulatedAmount = accumulatedAmounts.get(sender);
+        if (accumulatedAmount == null) {
+            accumulatedAmount = 0L;
+        }
+
+        long amount = (transaction.getAmount() + transaction.getFee()) * 100L;
+        Account senderAccount = Account.getAccount(sender);
+        if (senderAccount == null || accumulatedAmount + amount > senderAccount.getBalance()) {
+            return false;
+        }
+
+        if (transaction.getTimestamp() > blockTimestamp + 15 || (transaction.getExpiration() < blockTimestamp)) {
+            return false;
+        }
+
+        if (transaction.isDuplicate(duplicates)) {
+            return false;
+        }
+
+        try {
+            transaction.validateAttachment();
+        } catch (NxtException.ValidationException e) {
+            return false;
+        }
+
+        accumulatedAmounts.put(sender, accumulatedAmount + amount);
+
+        transactions.put(transaction.getId(), transaction);
+        sortedTransactions.add(transaction);
+        payloadLength += transaction.getSize();
+        totalAmount += transaction.getAmount();
+        totalFee += transaction.getFee();
+        minExpiration = Math.min(minExpiration, transaction.getExpiration());
+        return true;
+
+    }
+
+    private BlockTemplate() {} // never
+
+}
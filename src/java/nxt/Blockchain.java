@@ -20,6 +20,9 @@ public interface Blockchain {
 
     DbIterator<? extends Block> getBlocks(Account account, int timestamp);
 
+    // ids of the blocks generated by the account, in height order, starting after afterBlockId if not null
+    List<Long> getBlockIds(Account account, int timestamp, Long afterBlockId, int limit);
+
     DbIterator<? extends Block> getBlocks(Connection con, PreparedStatement pstmt);
 
     List<Long> getBlockIdsAfter(Long blockId, int limit);
@@ -44,6 +47,8 @@ public interface Blockchain {
 
     DbIterator<? extends Transaction> getTransactions(Account account, byte type, byte subtype, int timestamp, Boolean orderAscending);
 
+    List<Long> getTransactionIds(Account account, byte type, byte subtype, int timestamp, Long afterTransactionId, int limit);
+
     DbIterator<? extends Transaction> getTransactions(Connection con, PreparedStatement pstmt);
 
 }
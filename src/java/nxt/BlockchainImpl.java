@@ -88,6 +88,35 @@ final class BlockchainImpl implements Blockchain {
         }
     }
 
+    @Override
+    public List<Long> getBlockIds(Account account, int timestamp, Long afterBlockId, int limit) {
+        StringBuilder buf = new StringBuilder("SELECT id FROM block WHERE timestamp >= ? AND generator_id = ? ");
+        if (afterBlockId != null) {
+            // starts from the beginning again if the block is no longer in the blockchain
+            buf.append("AND height > COALESCE((SELECT height FROM block WHERE id = ?), -1) ");
+        }
+        buf.append("ORDER BY height ASC LIMIT ?");
+        try (Connection con = Db.getConnection();
+             PreparedStatement pstmt = con.prepareStatement(buf.toString())) {
+            int i = 0;
+            pstmt.setInt(++i, timestamp);
+            pstmt.setLong(++i, account.getId());
+            if (afterBlockId != null) {
+                pstmt.setLong(++i, afterBlockId);
+            }
+            pstmt.setInt(++i, limit);
+            List<Long> result = new ArrayList<>();
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                result.add(rs.getLong("id"));
+            }
+            rs.close();
+            return result;
+        } catch (SQLException e) {
+            throw new RuntimeException(e.toString(), e);
+        }
+    }
+
     @Override
     public DbIterator<BlockImpl> getBlocks(Connection con, PreparedStatement pstmt) {
         return new DbIterator<>(con, pstmt, new DbIterator.ResultSetReader<BlockImpl>() {
@@ -227,66 +256,97 @@ final class BlockchainImpl implements Blockchain {
     public DbIterator<TransactionImpl> getTransactions(Account account, byte type, byte subtype, int timestamp, Boolean orderAscending) {
         Connection con = null;
         try {
-            StringBuilder buf = new StringBuilder();
-            if (orderAscending != null) {
-                buf.append("SELECT * FROM (");
-            }
-            buf.append("SELECT * FROM transaction WHERE recipient_id = ? ");
-            if (timestamp > 0) {
-                buf.append("AND timestamp >= ? ");
-            }
-            if (type >= 0) {
-                buf.append("AND type = ? ");
-                if (subtype >= 0) {
-                    buf.append("AND subtype = ? ");
-                }
-            }
-            buf.append("UNION SELECT * FROM transaction WHERE sender_id = ? ");
-            if (timestamp > 0) {
-                buf.append("AND timestamp >= ? ");
-            }
-            if (type >= 0) {
-                buf.append("AND type = ? ");
-                if (subtype >= 0) {
-                    buf.append("AND subtype = ? ");
-                }
-            }
+            StringBuilder buf = new StringBuilder("SELECT transaction.* FROM account_transaction, transaction "
+                    + "WHERE account_transaction.account_id = ? AND transaction.id = account_transaction.transaction_id ");
+            appendAccountTransactionFilter(buf, type, subtype, timestamp);
             if (Boolean.TRUE.equals(orderAscending)) {
-                buf.append(") ORDER BY timestamp ASC");
+                buf.append("ORDER BY account_transaction.timestamp ASC");
             } else if (Boolean.FALSE.equals(orderAscending)) {
-                buf.append(") ORDER BY timestamp DESC");
+                buf.append("ORDER BY account_transaction.timestamp DESC");
             }
             con = Db.getConnection();
-            PreparedStatement pstmt;
+            PreparedStatement pstmt = con.prepareStatement(buf.toString());
             int i = 0;
-            pstmt = con.prepareStatement(buf.toString());
             pstmt.setLong(++i, account.getId());
-            if (timestamp > 0) {
-                pstmt.setInt(++i, timestamp);
-            }
-            if (type >= 0) {
-                pstmt.setByte(++i, type);
-                if (subtype >= 0) {
-                    pstmt.setByte(++i, subtype);
+            setAccountTransactionFilter(pstmt, i, type, subtype, timestamp);
+            return getTransactions(con, pstmt);
+        } catch (SQLException e) {
+            DbUtils.close(con);
+            throw new RuntimeException(e.toString(), e);
+        }
+    }
+
+    @Override
+    public List<Long> getTransactionIds(Account account, byte type, byte subtype, int timestamp, Long afterTransactionId, int limit) {
+        try (Connection con = Db.getConnection()) {
+            int afterTimestamp = 0;
+            if (afterTransactionId != null) {
+                try (PreparedStatement pstmt = con.prepareStatement("SELECT timestamp FROM transaction WHERE id = ?")) {
+                    pstmt.setLong(1, afterTransactionId);
+                    ResultSet rs = pstmt.executeQuery();
+                    if (rs.next()) {
+                        afterTimestamp = rs.getInt("timestamp");
+                    } else {
+                        afterTransactionId = null;
+                    }
+                    rs.close();
                 }
             }
-            pstmt.setLong(++i, account.getId());
-            if (timestamp > 0) {
-                pstmt.setInt(++i, timestamp);
+            StringBuilder buf = new StringBuilder("SELECT transaction_id FROM account_transaction WHERE account_id = ? ");
+            appendAccountTransactionFilter(buf, type, subtype, timestamp);
+            if (afterTransactionId != null) {
+                buf.append("AND timestamp >= ? AND NOT (timestamp = ? AND transaction_id <= ?) ");
             }
-            if (type >= 0) {
-                pstmt.setByte(++i, type);
-                if (subtype >= 0) {
-                    pstmt.setByte(++i, subtype);
+            buf.append("ORDER BY timestamp ASC, transaction_id ASC LIMIT ?");
+            try (PreparedStatement pstmt = con.prepareStatement(buf.toString())) {
+                int i = 0;
+                pstmt.setLong(++i, account.getId());
+                i = setAccountTransactionFilter(pstmt, i, type, subtype, timestamp);
+                if (afterTransactionId != null) {
+                    pstmt.setInt(++i, afterTimestamp);
+                    pstmt.setInt(++i, afterTimestamp);
+                    pstmt.setLong(++i, afterTransactionId);
+                }
+                pstmt.setInt(++i, limit);
+                List<Long> result = new ArrayList<>();
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    result.add(rs.getLong("transaction_id"));
                 }
+                rs.close();
+                return result;
             }
-            return getTransactions(con, pstmt);
         } catch (SQLException e) {
-            DbUtils.close(con);
             throw new RuntimeException(e.toString(), e);
         }
     }
 
+    private static void appendAccountTransactionFilter(StringBuilder buf, byte type, byte subtype, int timestamp) {
+        if (timestamp > 0) {
+            buf.append("AND account_transaction.timestamp >= ? ");
+        }
+        if (type >= 0) {
+            buf.append("AND account_transaction.type = ? ");
+            if (subtype >= 0) {
+                buf.append("AND account_transaction.subtype = ? ");
+            }
+        }
+    }
+
+    private static int setAccountTransactionFilter(PreparedStatement pstmt, int i, byte type, byte subtype, int timestamp)
+            throws SQLException {
+        if (timestamp > 0) {
+            pstmt.setInt(++i, timestamp);
+        }
+        if (type >= 0) {
+            pstmt.setByte(++i, type);
+            if (subtype >= 0) {
+                pstmt.setByte(++i, subtype);
+            }
+        }
+        return i;
+    }
+
     @Override
     public DbIterator<TransactionImpl> getTransactions(Connection con, PreparedStatement pstmt) {
         return new DbIterator<>(con, pstmt, new DbIterator.ResultSetReader<TransactionImpl>() {
@@ -1,6 +1,7 @@
 package nxt;
 
 import nxt.crypto.Crypto;
+import nxt.peer.BinaryMessage;
 import nxt.peer.Peer;
 import nxt.peer.Peers;
 import nxt.util.Convert;
@@ -15,15 +16,19 @@ import org.json.simple.JSONObject;
 import org.json.simple.JSONStreamAware;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.security.MessageDigest;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -31,7 +36,10 @@ import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 final class BlockchainProcessorImpl implements BlockchainProcessor {
 
@@ -47,6 +55,10 @@ final class BlockchainProcessorImpl implements BlockchainProcessor {
     private final TransactionProcessorImpl transactionProcessor = TransactionProcessorImpl.getInstance();
 
     private final Listeners<Block, Event> blockListeners = new Listeners<>();
+    private static final int SEGMENT_SIZE = 100;
+    private static final int MAX_PENDING_SEGMENTS = 10;
+    private static final int MAX_DOWNLOAD_PEERS = 4;
+
     private volatile Peer lastBlockchainFeeder;
 
     private final Runnable getMoreBlocksThread = new Runnable() {
@@ -105,44 +117,55 @@ final class BlockchainProcessorImpl implements BlockchainProcessor {
                         return;
                     }
 
-                    Long currentBlockId = commonBlockId;
                     List<BlockImpl> forkBlocks = new ArrayList<>();
+                    BlockDownload download = new BlockDownload(peer, commonBlockId);
+                    boolean syncing = false;
 
-                    while (true) {
-
-                        JSONArray nextBlocks = getNextBlocks(peer, currentBlockId);
-                        if (nextBlocks == null || nextBlocks.size() == 0) {
-                            break;
-                        }
+                    try {
+                        Segment segment;
+                        while ((segment = download.next()) != null) {
 
-                        synchronized (blockchain) {
+                            // only a download with more segments pending is a sync, not just the latest block
+                            if (! syncing && download.hasPending()) {
+                                Db.beginSync();
+                                syncing = true;
+                            }
 
-                            for (Object o : nextBlocks) {
-                                JSONObject blockData = (JSONObject) o;
-                                BlockImpl block;
-                                try {
-                                    block = parseBlock(blockData);
-                                } catch (NxtException.ValidationException e) {
-                                    peer.blacklist(e);
-                                    return;
-                                }
-                                currentBlockId = block.getId();
-
-                                if (blockchain.getLastBlock().getId().equals(block.getPreviousBlockId())) {
-                                    try {
-                                        pushBlock(block);
-                                    } catch (BlockNotAcceptedException e) {
-                                        peer.blacklist(e);
-                                        return;
+                            long waitStart = System.nanoTime();
+                            synchronized (blockchain) {
+                                LockMetrics.acquired(LockMetrics.Section.DOWNLOAD_BLOCKS, waitStart);
+
+                                for (BlockImpl block : segment.blocks) {
+
+                                    if (blockchain.getLastBlock().getId().equals(block.getPreviousBlockId())) {
+                                        try {
+                                            pushBlock(block);
+                                        } catch (BlockNotAcceptedException e) {
+                                            segment.peer.blacklist(e);
+                                            return;
+                                        }
+                                    } else if (! BlockDb.hasBlock(block.getId())) {
+                                        forkBlocks.add(block);
                                     }
-                                } else if (! BlockDb.hasBlock(block.getId())) {
-                                    forkBlocks.add(block);
+
                                 }
 
-                            }
+                            } //synchronized
 
-                        } //synchronized
+                            if (segment.exception != null) {
+                                segment.peer.blacklist(segment.exception);
+                                return;
+                            }
+                            if (! segment.isComplete()) {
+                                break;
+                            }
 
+                        }
+                    } finally {
+                        download.stop();
+                        if (syncing) {
+                            Db.endSync();
+                        }
                     }
 
                     if (! forkBlocks.isEmpty() && blockchain.getLastBlock().getHeight() - commonBlock.getHeight() < 720) {
@@ -210,26 +233,11 @@ final class BlockchainProcessorImpl implements BlockchainProcessor {
         private Long getCommonBlockId(Peer peer, Long commonBlockId) {
 
             while (true) {
-                JSONObject request = new JSONObject();
-                request.put("requestType", "getNextBlockIds");
-                request.put("blockId", Convert.toUnsignedLong(commonBlockId));
-                JSONObject response = peer.send(JSON.prepareRequest(request));
-                if (response == null) {
-                    return null;
-                }
-                JSONArray nextBlockIds = (JSONArray) response.get("nextBlockIds");
+                List<Long> nextBlockIds = getNextBlockIds(peer, commonBlockId);
                 if (nextBlockIds == null || nextBlockIds.size() == 0) {
                     return null;
                 }
-                // prevent overloading with blockIds
-                if (nextBlockIds.size() > 1440) {
-                    Logger.logDebugMessage("Obsolete or rogue peer " + peer.getPeerAddress() + " sends too many nextBlockIds, blacklisting");
-                    peer.blacklist();
-                    return null;
-                }
-
-                for (Object nextBlockId : nextBlockIds) {
-                    Long blockId = Convert.parseUnsignedLong((String) nextBlockId);
+                for (Long blockId : nextBlockIds) {
                     if (! BlockDb.hasBlock(blockId)) {
                         return commonBlockId;
                     }
@@ -239,11 +247,42 @@ final class BlockchainProcessorImpl implements BlockchainProcessor {
 
         }
 
-        private JSONArray getNextBlocks(Peer peer, Long curBlockId) {
+        private List<Long> getNextBlockIds(Peer peer, Long curBlockId) {
+
+            JSONObject request = new JSONObject();
+            request.put("requestType", "getNextBlockIds");
+            request.put("blockId", Convert.toUnsignedLong(curBlockId));
+            JSONObject response = peer.send(JSON.prepareRequest(request));
+            if (response == null) {
+                return null;
+            }
+
+            JSONArray nextBlockIds = (JSONArray) response.get("nextBlockIds");
+            if (nextBlockIds == null) {
+                return null;
+            }
+            // prevent overloading with blockIds
+            if (nextBlockIds.size() > 1440) {
+                Logger.logDebugMessage("Obsolete or rogue peer " + peer.getPeerAddress() + " sends too many nextBlockIds, blacklisting");
+                peer.blacklist();
+                return null;
+            }
+
+            List<Long> blockIds = new ArrayList<>(nextBlockIds.size());
+            for (Object nextBlockId : nextBlockIds) {
+                blockIds.add(Convert.parseUnsignedLong((String) nextBlockId));
+            }
+            return blockIds;
+
+        }
+
+        // peers running older versions ignore limit and may send more blocks than requested
+        private JSONArray getNextBlocks(Peer peer, Long curBlockId, int limit) {
 
             JSONObject request = new JSONObject();
             request.put("requestType", "getNextBlocks");
             request.put("blockId", Convert.toUnsignedLong(curBlockId));
+            request.put("limit", limit);
             JSONObject response = peer.send(JSON.prepareRequest(request));
             if (response == null) {
                 return null;
@@ -264,9 +303,172 @@ final class BlockchainProcessorImpl implements BlockchainProcessor {
 
         }
 
+        // Downloads the blocks following a common block in segments, spread over several connected peers, while the
+        // previous segments are being applied. The block ids to expect are taken from the feeder peer, blocks from any
+        // other peer must match them. At most MAX_PENDING_SEGMENTS segments are downloaded ahead of the one being applied.
+        private final class BlockDownload {
+
+            private final Peer feeder;
+            private final List<Peer> peers = new ArrayList<>();
+            private final ExecutorService executor;
+            private final Deque<Long> blockIds = new ArrayDeque<>();
+            private final Deque<Segment> pending = new ArrayDeque<>();
+            private Long lastBlockId;
+            private Long segmentStartBlockId;
+            private boolean hasMoreBlockIds = true;
+            private int nextPeerIndex;
+
+            private BlockDownload(Peer feeder, Long commonBlockId) {
+                this.feeder = feeder;
+                this.lastBlockId = commonBlockId;
+                this.segmentStartBlockId = commonBlockId;
+                peers.add(feeder);
+                for (Peer peer : Peers.getAllPeers()) {
+                    if (peers.size() >= MAX_DOWNLOAD_PEERS) {
+                        break;
+                    }
+                    if (peer != feeder && peer.getState() == Peer.State.CONNECTED && ! peer.isBlacklisted()) {
+                        peers.add(peer);
+                    }
+                }
+                executor = Executors.newFixedThreadPool(peers.size());
+            }
+
+            // returns the next segment in chain order, null if there are no more blocks to download
+            private Segment next() throws InterruptedException {
+                fill();
+                Segment segment = pending.pollFirst();
+                if (segment == null) {
+                    return null;
+                }
+                segment.await();
+                if (! segment.isComplete() && segment.peer != feeder) {
+                    if (segment.exception != null) {
+                        segment.peer.blacklist(segment.exception);
+                    }
+                    segment.download(feeder);
+                }
+                if (! segment.isComplete()) {
+                    hasMoreBlockIds = false;
+                    blockIds.clear();
+                    return segment;
+                }
+                fill();
+                return segment;
+            }
+
+            private void fill() {
+                while (pending.size() < MAX_PENDING_SEGMENTS) {
+                    if (blockIds.isEmpty()) {
+                        if (! hasMoreBlockIds) {
+                            return;
+                        }
+                        List<Long> nextBlockIds = getNextBlockIds(feeder, lastBlockId);
+                        if (nextBlockIds == null || nextBlockIds.isEmpty()) {
+                            hasMoreBlockIds = false;
+                            return;
+                        }
+                        blockIds.addAll(nextBlockIds);
+                        lastBlockId = blockIds.peekLast();
+                    }
+                    List<Long> segmentBlockIds = new ArrayList<>();
+                    while (segmentBlockIds.size() < SEGMENT_SIZE && ! blockIds.isEmpty()) {
+                        segmentBlockIds.add(blockIds.pollFirst());
+                    }
+                    Segment segment = new Segment(segmentStartBlockId, segmentBlockIds);
+                    segmentStartBlockId = segmentBlockIds.get(segmentBlockIds.size() - 1);
+                    segment.start(peers.get(nextPeerIndex++ % peers.size()), executor);
+                    pending.addLast(segment);
+                }
+            }
+
+            private boolean hasPending() {
+                return ! pending.isEmpty();
+            }
+
+            private void stop() {
+                executor.shutdownNow();
+            }
+
+        }
+
+        // a run of consecutive blocks following previousBlockId, expected to have exactly the given ids
+        private final class Segment {
+
+            private final Long previousBlockId;
+            private final List<Long> blockIds;
+            private Future<?> future;
+            private Peer peer;
+            private List<BlockImpl> blocks = Collections.emptyList();
+            private NxtException.ValidationException exception;
+
+            private Segment(Long previousBlockId, List<Long> blockIds) {
+                this.previousBlockId = previousBlockId;
+                this.blockIds = blockIds;
+            }
+
+            private void start(final Peer peer, ExecutorService executor) {
+                this.peer = peer;
+                future = executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        download(peer);
+                    }
+                });
+            }
+
+            private void await() throws InterruptedException {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Logger.logDebugMessage("Error downloading blocks from " + peer.getPeerAddress(), e);
+                }
+            }
+
+            private boolean isComplete() {
+                return exception == null && blocks.size() == blockIds.size();
+            }
+
+            private void download(Peer peer) {
+                this.peer = peer;
+                this.blocks = new ArrayList<>(blockIds.size());
+                this.exception = null;
+                Long curBlockId = previousBlockId;
+                while (blocks.size() < blockIds.size()) {
+                    JSONArray nextBlocks = getNextBlocks(peer, curBlockId, blockIds.size() - blocks.size());
+                    if (nextBlocks == null || nextBlocks.size() == 0) {
+                        return;
+                    }
+                    for (Object o : nextBlocks) {
+                        if (blocks.size() == blockIds.size()) {
+                            break;
+                        }
+                        BlockImpl block;
+                        try {
+                            block = o instanceof byte[] ? parseBlock((byte[]) o) : parseBlock((JSONObject) o);
+                        } catch (NxtException.ValidationException e) {
+                            exception = e;
+                            return;
+                        }
+                        if (! block.getId().equals(blockIds.get(blocks.size()))) {
+                            Logger.logDebugMessage("Peer " + peer.getPeerAddress() + " sent block " + block.getStringId()
+                                    + " instead of " + Convert.toUnsignedLong(blockIds.get(blocks.size())));
+                            return;
+                        }
+                        blocks.add(block);
+                        curBlockId = block.getId();
+                    }
+                }
+                BlockImpl.verifySignatures(blocks);
+            }
+
+        }
+
         private void processFork(Peer peer, final List<BlockImpl> forkBlocks, final Block commonBlock) {
 
+            long waitStart = System.nanoTime();
             synchronized (blockchain) {
+                LockMetrics.acquired(LockMetrics.Section.PROCESS_FORK, waitStart);
                 BigInteger curCumulativeDifficulty = blockchain.getLastBlock().getCumulativeDifficulty();
                 boolean needsRescan;
 
@@ -330,6 +532,7 @@ final class BlockchainProcessorImpl implements BlockchainProcessor {
         ThreadPool.runBeforeStart(new Runnable() {
             @Override
             public void run() {
+                IdIndex.init();
                 addGenesisBlock();
                 scan();
             }
@@ -356,13 +559,25 @@ final class BlockchainProcessorImpl implements BlockchainProcessor {
 
     @Override
     public void processPeerBlock(JSONObject request) throws NxtException {
-        BlockImpl block = parseBlock(request);
+        Object blockBytes = request.get("block");
+        BlockImpl block;
+        if (blockBytes instanceof List) {
+            List<?> blockBytesList = (List<?>) blockBytes;
+            if (blockBytesList.isEmpty() || ! (blockBytesList.get(0) instanceof byte[])) {
+                throw new NxtException.ValidationException("Invalid binary block");
+            }
+            block = parseBlock((byte[]) blockBytesList.get(0));
+        } else {
+            block = parseBlock(request);
+        }
         pushBlock(block);
     }
 
     @Override
     public void fullReset() {
+        long waitStart = System.nanoTime();
         synchronized (blockchain) {
+            LockMetrics.acquired(LockMetrics.Section.FULL_RESET, waitStart);
             Logger.logMessage("Deleting blockchain...");
             //BlockDb.deleteBlock(Genesis.GENESIS_BLOCK_ID); // fails with stack overflow in H2
             BlockDb.deleteAll();
@@ -372,14 +587,22 @@ final class BlockchainProcessorImpl implements BlockchainProcessor {
     }
 
     private void addBlock(BlockImpl block) {
-        try (Connection con = Db.getConnection()) {
+        try {
+            Connection con = Db.getBlockConnection();
             try {
                 BlockDb.saveBlock(con, block);
                 blockchain.setLastBlock(block);
                 con.commit();
-            } catch (SQLException e) {
+                IdIndex.blockIds.cache(block.getId());
+                for (TransactionImpl transaction : block.getTransactions()) {
+                    IdIndex.transactionIds.cache(transaction.getId());
+                }
+            } catch (SQLException|RuntimeException e) {
+                // the sync connection is reused for the next block, which must not commit what is left of this one
                 con.rollback();
                 throw e;
+            } finally {
+                Db.releaseConnection(con);
             }
         } catch (SQLException e) {
             throw new RuntimeException(e.toString(), e);
@@ -402,8 +625,8 @@ final class BlockchainProcessorImpl implements BlockchainProcessor {
             }
 
             MessageDigest digest = Crypto.sha256();
-            for (Transaction transaction : transactionsMap.values()) {
-                digest.update(transaction.getBytes());
+            for (TransactionImpl transaction : transactionsMap.values()) {
+                digest.update(transaction.getCanonicalBytes());
             }
 
             BlockImpl genesisBlock = new BlockImpl(-1, 0, null, 1000000000, 0, transactionsMap.size() * 128, digest.digest(),
@@ -440,11 +663,21 @@ final class BlockchainProcessorImpl implements BlockchainProcessor {
         return digest.digest();
     }
 
+    // verifies the signatures of all blocks and their transactions in parallel, so that pushBlock only needs
+    // to do the stateful checks while holding the blockchain lock, invalid signatures are rejected later by pushBlock
     private void pushBlock(final BlockImpl block) throws BlockNotAcceptedException {
 
+        if (! Thread.holdsLock(blockchain)) {
+            BlockImpl.verifySignatures(Collections.singletonList(block));
+        }
+
         int curTime = Convert.getEpochTime();
 
+        byte[] snapshot;
+
+        long waitStart = System.nanoTime();
         synchronized (blockchain) {
+            LockMetrics.acquired(LockMetrics.Section.PUSH_BLOCK, waitStart);
             try {
 
                 BlockImpl previousLastBlock = blockchain.getLastBlock();
@@ -469,7 +702,7 @@ final class BlockchainProcessorImpl implements BlockchainProcessor {
                     }
                 }
 
-                if (block.getVersion() != 1 && ! Arrays.equals(Crypto.sha256().digest(previousLastBlock.getBytes()), block.getPreviousBlockHash())) {
+                if (block.getVersion() != 1 && ! Arrays.equals(Crypto.sha256().digest(previousLastBlock.getCanonicalBytes()), block.getPreviousBlockHash())) {
                     throw new BlockNotAcceptedException("Previous block hash doesn't match");
                 }
                 if (block.getTimestamp() > curTime + 15 || block.getTimestamp() <= previousLastBlock.getTimestamp()) {
@@ -528,7 +761,7 @@ final class BlockchainProcessorImpl implements BlockchainProcessor {
 
                     calculatedTotalFee += transaction.getFee();
 
-                    digest.update(transaction.getBytes());
+                    digest.update(transaction.getCanonicalBytes());
 
                 }
 
@@ -578,12 +811,22 @@ final class BlockchainProcessorImpl implements BlockchainProcessor {
 
             transactionProcessor.updateUnconfirmedTransactions(block);
 
+            snapshot = Snapshot.take(block, transactionProcessor.getAllUnconfirmedTransactions());
+
         } // synchronized
 
+        if (snapshot != null) {
+            Snapshot.save(block, snapshot);
+        }
+
         if (block.getTimestamp() >= Convert.getEpochTime() - 15) {
             JSONObject request = block.getJSONObject();
             request.put("requestType", "processBlock");
-            Peers.sendToSomePeers(request);
+            JSONObject binaryRequest = new JSONObject();
+            binaryRequest.put("requestType", "processBlock");
+            binaryRequest.put("previousBlock", Convert.toUnsignedLong(block.getPreviousBlockId()));
+            Peers.sendToSomePeers(BinaryMessage.request(binaryRequest, "block",
+                    Collections.singletonList(BinaryMessage.getBlockBytes(block)), JSON.prepareRequest(request)));
         }
 
     }
@@ -592,7 +835,9 @@ final class BlockchainProcessorImpl implements BlockchainProcessor {
         try {
             BlockImpl block;
 
+            long waitStart = System.nanoTime();
             synchronized (blockchain) {
+                LockMetrics.acquired(LockMetrics.Section.POP_BLOCK, waitStart);
                 block = blockchain.getLastBlock();
                 Logger.logDebugMessage("Will pop block " + block.getStringId() + " at height " + block.getHeight());
                 if (block.getId().equals(Genesis.GENESIS_BLOCK_ID)) {
@@ -620,101 +865,32 @@ final class BlockchainProcessorImpl implements BlockchainProcessor {
 
     void generateBlock(String secretPhrase) {
 
-        Set<TransactionImpl> sortedTransactions = new TreeSet<>();
-
-        for (TransactionImpl transaction : transactionProcessor.getAllUnconfirmedTransactions()) {
-            if (transaction.getReferencedTransactionId() == null || TransactionDb.hasTransaction(transaction.getReferencedTransactionId())) {
-                sortedTransactions.add(transaction);
-            }
-        }
-
-        SortedMap<Long, TransactionImpl> newTransactions = new TreeMap<>();
-        Map<TransactionType, Set<String>> duplicates = new HashMap<>();
-        Map<Long, Long> accumulatedAmounts = new HashMap<>();
-
-        int totalAmount = 0;
-        int totalFee = 0;
-        int payloadLength = 0;
-
         int blockTimestamp = Convert.getEpochTime();
 
-        while (payloadLength <= Constants.MAX_PAYLOAD_LENGTH) {
-
-            int prevNumberOfNewTransactions = newTransactions.size();
-
-            for (TransactionImpl transaction : sortedTransactions) {
-
-                int transactionLength = transaction.getSize();
-                if (newTransactions.get(transaction.getId()) != null || payloadLength + transactionLength > Constants.MAX_PAYLOAD_LENGTH) {
-                    continue;
-                }
-
-                Long sender = transaction.getSenderId();
-                Long accumulatedAmount = accumulatedAmounts.get(sender);
-                if (accumulatedAmount == null) {
-                    accumulatedAmount = 0L;
-                }
-
-                long amount = (transaction.getAmount() + transaction.getFee()) * 100L;
-                if (accumulatedAmount + amount > Account.getAccount(sender).getBalance()) {
-                    continue;
-                }
-
-                if (transaction.getTimestamp() > blockTimestamp + 15 || (transaction.getExpiration() < blockTimestamp)) {
-                    continue;
-                }
-
-                if (transaction.isDuplicate(duplicates)) {
-                    continue;
-                }
-
-                try {
-                    transaction.validateAttachment();
-                } catch (NxtException.ValidationException e) {
-                    continue;
-                }
-
-                accumulatedAmounts.put(sender, accumulatedAmount + amount);
-
-                newTransactions.put(transaction.getId(), transaction);
-                payloadLength += transactionLength;
-                totalAmount += transaction.getAmount();
-                totalFee += transaction.getFee();
-
-            }
-
-            if (newTransactions.size() == prevNumberOfNewTransactions) {
-                break;
-            }
-        }
+        BlockTemplate.Contents template = BlockTemplate.getContents(blockTimestamp);
 
         final byte[] publicKey = Crypto.getPublicKey(secretPhrase);
 
-        MessageDigest digest = Crypto.sha256();
-        for (Transaction transaction : newTransactions.values()) {
-            digest.update(transaction.getBytes());
-        }
-
-        byte[] payloadHash = digest.digest();
-
         BlockImpl previousBlock = blockchain.getLastBlock();
         if (previousBlock.getHeight() < Constants.TRANSPARENT_FORGING_BLOCK) {
             Logger.logDebugMessage("Generate block below " + Constants.TRANSPARENT_FORGING_BLOCK + " no longer supported");
             return;
         }
 
+        MessageDigest digest = Crypto.sha256();
         digest.update(previousBlock.getGenerationSignature());
         byte[] generationSignature = digest.digest(publicKey);
 
         BlockImpl block;
         //int version = previousBlock.getHeight() < Constants.TRANSPARENT_FORGING_BLOCK ? 1 : 2;
         int version = 2;
-        byte[] previousBlockHash = Crypto.sha256().digest(previousBlock.getBytes());
+        byte[] previousBlockHash = Crypto.sha256().digest(previousBlock.getCanonicalBytes());
 
         try {
 
-            block = new BlockImpl(version, blockTimestamp, previousBlock.getId(), totalAmount, totalFee, payloadLength,
-                        payloadHash, publicKey, generationSignature, null, previousBlockHash, new ArrayList<>(newTransactions.values()));
+            block = new BlockImpl(version, blockTimestamp, previousBlock.getId(), template.getTotalAmount(), template.getTotalFee(),
+                    template.getPayloadLength(), template.getPayloadHash(), publicKey, generationSignature, null, previousBlockHash,
+                    template.getTransactions());
 
         } catch (NxtException.ValidationException e) {
             // shouldn't happen because all transactions are already validated
@@ -767,19 +943,85 @@ final class BlockchainProcessorImpl implements BlockchainProcessor {
         }
     }
 
+    // the canonical block bytes followed by the length prefixed bytes of each transaction, see BinaryMessage
+    private BlockImpl parseBlock(byte[] bytes) throws NxtException.ValidationException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int version = buffer.getInt();
+            int timestamp = buffer.getInt();
+            Long previousBlock = Convert.zeroToNull(buffer.getLong());
+            int numberOfTransactions = buffer.getInt();
+            int totalAmount = buffer.getInt();
+            int totalFee = buffer.getInt();
+            int payloadLength = buffer.getInt();
+            byte[] payloadHash = new byte[32];
+            buffer.get(payloadHash);
+            byte[] generatorPublicKey = new byte[32];
+            buffer.get(generatorPublicKey);
+            byte[] generationSignature = new byte[version == 1 ? 64 : 32];
+            buffer.get(generationSignature);
+            byte[] previousBlockHash = null;
+            if (version > 1) {
+                previousBlockHash = new byte[32];
+                buffer.get(previousBlockHash);
+            }
+            byte[] blockSignature = new byte[64];
+            buffer.get(blockSignature);
+
+            if (numberOfTransactions < 0 || numberOfTransactions > Constants.MAX_NUMBER_OF_TRANSACTIONS) {
+                throw new NxtException.ValidationException("Invalid number of transactions " + numberOfTransactions);
+            }
+            SortedMap<Long, TransactionImpl> blockTransactions = new TreeMap<>();
+            for (int i = 0; i < numberOfTransactions; i++) {
+                int transactionLength = buffer.getInt();
+                if (transactionLength < 0 || transactionLength > buffer.remaining()) {
+                    throw new NxtException.ValidationException("Invalid transaction length " + transactionLength);
+                }
+                // parsed in place, without copying the transaction bytes out of the block
+                ByteBuffer transactionBuffer = buffer.slice();
+                transactionBuffer.order(ByteOrder.LITTLE_ENDIAN);
+                transactionBuffer.limit(transactionLength);
+                buffer.position(buffer.position() + transactionLength);
+                TransactionImpl transaction = transactionProcessor.parseTransaction(transactionBuffer);
+                if (transactionBuffer.hasRemaining()) {
+                    throw new NxtException.ValidationException("Unexpected data after transaction " + transaction.getStringId());
+                }
+                if (blockTransactions.put(transaction.getId(), transaction) != null) {
+                    throw new NxtException.ValidationException("Block contains duplicate transactions: " + transaction.getStringId());
+                }
+            }
+            if (buffer.hasRemaining()) {
+                throw new NxtException.ValidationException("Unexpected data after block transactions");
+            }
+
+            return new BlockImpl(version, timestamp, previousBlock, totalAmount, totalFee, payloadLength, payloadHash, generatorPublicKey,
+                    generationSignature, blockSignature, previousBlockHash, new ArrayList<>(blockTransactions.values()));
+
+        } catch (RuntimeException e) {
+            throw new NxtException.ValidationException(e.toString(), e);
+        }
+    }
+
     private void scan() {
+        long waitStart = System.nanoTime();
         synchronized (blockchain) {
+            LockMetrics.acquired(LockMetrics.Section.SCAN, waitStart);
             Logger.logMessage("Scanning blockchain...");
-            Account.clear();
-            Alias.clear();
-            Asset.clear();
-            Order.clear();
-            Poll.clear();
-            Trade.clear();
-            Vote.clear();
-            transactionProcessor.clear();
-            try (Connection con = Db.getConnection(); PreparedStatement pstmt = con.prepareStatement("SELECT * FROM block ORDER BY db_id ASC")) {
+            clearState();
+            BlockImpl snapshotBlock = Snapshot.load();
+            if (snapshotBlock == null) {
+                clearState();
+            }
+            try (Connection con = Db.getConnection();
+                 PreparedStatement pstmt = con.prepareStatement(snapshotBlock == null ? "SELECT * FROM block ORDER BY db_id ASC"
+                         : "SELECT * FROM block WHERE db_id > (SELECT db_id FROM block WHERE id = ?) ORDER BY db_id ASC")) {
                 Long currentBlockId = Genesis.GENESIS_BLOCK_ID;
+                if (snapshotBlock != null) {
+                    pstmt.setLong(1, snapshotBlock.getId());
+                    currentBlockId = snapshotBlock.getNextBlockId();
+                }
+                int minSnapshotHeight = Snapshot.isEnabled() ? getMinSnapshotHeight(con) : Integer.MAX_VALUE;
                 BlockImpl currentBlock;
                 ResultSet rs = pstmt.executeQuery();
                 try {
@@ -792,6 +1034,12 @@ final class BlockchainProcessorImpl implements BlockchainProcessor {
                         blockListeners.notify(currentBlock, Event.BEFORE_BLOCK_APPLY);
                         transactionProcessor.apply(currentBlock);
                         blockListeners.notify(currentBlock, Event.BLOCK_SCANNED);
+                        if (currentBlock.getHeight() >= minSnapshotHeight) {
+                            byte[] snapshot = Snapshot.take(currentBlock, Collections.<TransactionImpl>emptyList());
+                            if (snapshot != null) {
+                                Snapshot.save(currentBlock, snapshot);
+                            }
+                        }
                         currentBlockId = currentBlock.getNextBlockId();
                     }
                 } catch (NxtException.ValidationException|RuntimeException e) {
@@ -807,4 +1055,25 @@ final class BlockchainProcessorImpl implements BlockchainProcessor {
         }
     }
 
+    private void clearState() {
+        Account.clear();
+        Alias.clear();
+        Asset.clear();
+        Order.clear();
+        Poll.clear();
+        Trade.clear();
+        Vote.clear();
+        StateJournal.clear();
+        transactionProcessor.clear();
+    }
+
+    // only the most recent snapshots are kept, no point in taking older ones while scanning
+    private int getMinSnapshotHeight(Connection con) throws SQLException {
+        try (PreparedStatement pstmt = con.prepareStatement("SELECT MAX(height) FROM block")) {
+            ResultSet rs = pstmt.executeQuery();
+            rs.next();
+            return rs.getInt(1) - Snapshot.getRetainedBlocks();
+        }
+    }
+
 }
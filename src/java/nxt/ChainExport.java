@@ -0,0 +1,508 @@
+package nxt;
+
+import nxt.util.Logger;
+import nxt.util.ThreadPool;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
+
+// Exports the blockchain to column oriented files for offline analysis, in partitions of a fixed number of blocks:
+//
+//   <dir>/<table>/height=<from>-<to>/_schema.json   row count and the name, type and nullability of each column
+//   <dir>/<table>/height=<from>-<to>/<column>.gz    the values of the column, in row order, gzip compressed
+//   <dir>/export.properties                         the partition size and the next height to export
+//
+// The tables are block, transaction, and one per attachment type, named as in the attachment schema. Values are
+// written as by DataOutputStream: long, int, short, byte and boolean in their fixed sizes, bytes and string (UTF-8)
+// preceded by their length as an int, strings as a count followed by each string. Each value of a nullable column
+// is preceded by a byte, 0 if it is null and then omitted, 1 otherwise.
+//
+// Only partitions deeper than the longest fork the node switches to are exported, so exported files never change.
+public final class ChainExport {
+
+    private static final int FINAL_DEPTH = 720;
+    private static final String STATUS_FILE = "export.properties";
+
+    private static final File directory;
+    private static final int configuredPartitionSize = Math.max(1, Nxt.getIntProperty("nxt.chainExportPartitionSize"));
+    static {
+        String dir = Constants.isTestnet ? Nxt.getStringProperty("nxt.testChainExportDir") : Nxt.getStringProperty("nxt.chainExportDir");
+        directory = dir != null ? new File(dir) : null;
+    }
+
+    private static final Runnable exportThread = new Runnable() {
+
+        @Override
+        public void run() {
+
+            try {
+                try {
+                    export();
+                } catch (Exception e) {
+                    Logger.logDebugMessage("Error exporting blockchain", e);
+                }
+            } catch (Throwable t) {
+                Logger.logMessage("CRITICAL ERROR. PLEASE REPORT TO THE DEVELOPERS.\n" + t.toString());
+                t.printStackTrace();
+                System.exit(1);
+            }
+
+        }
+
+    };
+
+    static void init() {
+        if (directory != null) {
+            ThreadPool.scheduleThread(exportThread, 60);
+        }
+    }
+
+    // exports all partitions which have become final since the last export, one at a time, each using a single
+    // database connection for the duration of its queries only
+    private static synchronized void export() throws IOException, SQLException {
+        if (! directory.isDirectory() && ! directory.mkdirs()) {
+            throw new IOException("Can't create export directory " + directory.getAbsolutePath());
+        }
+        Properties status = readStatus();
+        int partitionSize = Integer.parseInt(status.getProperty("partitionSize", String.valueOf(configuredPartitionSize)));
+        if (partitionSize != configuredPartitionSize) {
+            Logger.logDebugMessage("Keeping partition size " + partitionSize + " of the existing export in " + directory.getAbsolutePath());
+        }
+        int nextHeight = Integer.parseInt(status.getProperty("nextHeight", "0"));
+        int finalHeight = getHeight() - FINAL_DEPTH;
+        while (nextHeight + partitionSize - 1 <= finalHeight) {
+            int toHeight = nextHeight + partitionSize - 1;
+            long startTime = System.currentTimeMillis();
+            try (Connection con = Db.getConnection()) {
+                exportBlocks(con, nextHeight, toHeight);
+                exportTransactions(con, nextHeight, toHeight);
+            }
+            nextHeight = toHeight + 1;
+            status.setProperty("partitionSize", String.valueOf(partitionSize));
+            status.setProperty("nextHeight", String.valueOf(nextHeight));
+            writeStatus(status);
+            Logger.logDebugMessage("Exported blocks " + (nextHeight - partitionSize) + " to " + toHeight + " in "
+                    + (System.currentTimeMillis() - startTime) + " ms");
+        }
+    }
+
+    private static int getHeight() throws SQLException {
+        try (Connection con = Db.getConnection();
+             Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MAX(height) FROM block")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private static void exportBlocks(Connection con, int fromHeight, int toHeight) throws IOException, SQLException {
+        try (PreparedStatement pstmt = con.prepareStatement("SELECT * FROM block WHERE height >= ? AND height <= ? ORDER BY height")) {
+            pstmt.setInt(1, fromHeight);
+            pstmt.setInt(2, toHeight);
+            try (ResultSet rs = pstmt.executeQuery();
+                 Partition partition = new Partition("block", fromHeight, toHeight)) {
+                List<Column> columns = partition.columns(rs.getMetaData());
+                while (rs.next()) {
+                    partition.write(columns, rs);
+                }
+                partition.commit();
+            }
+        }
+    }
+
+    private static void exportTransactions(Connection con, int fromHeight, int toHeight) throws IOException, SQLException {
+        try (PreparedStatement pstmt = con.prepareStatement("SELECT t.* FROM block b JOIN transaction t ON t.block_id = b.id "
+                + "WHERE b.height >= ? AND b.height <= ? ORDER BY t.db_id")) {
+            pstmt.setInt(1, fromHeight);
+            pstmt.setInt(2, toHeight);
+            Map<String, Partition> attachmentPartitions = new LinkedHashMap<>();
+            try (ResultSet rs = pstmt.executeQuery();
+                 Partition partition = new Partition("transaction", fromHeight, toHeight)) {
+                List<Column> columns = partition.columns(rs.getMetaData());
+                while (rs.next()) {
+                    partition.write(columns, rs);
+                    if (rs.getBytes("attachment") != null) {
+                        writeAttachment(attachmentPartitions, TransactionDb.loadTransaction(con, rs), fromHeight, toHeight);
+                    }
+                }
+                partition.commit();
+                for (Partition attachmentPartition : attachmentPartitions.values()) {
+                    attachmentPartition.commit();
+                }
+            } catch (NxtException.ValidationException e) {
+                throw new RuntimeException("Transaction already in database does not pass validation!", e);
+            } finally {
+                for (Partition attachmentPartition : attachmentPartitions.values()) {
+                    attachmentPartition.close();
+                }
+            }
+        }
+    }
+
+    private static void writeAttachment(Map<String, Partition> partitions, Transaction transaction, int fromHeight, int toHeight)
+            throws IOException {
+        Attachment attachment = transaction.getAttachment();
+        Partition partition;
+        if (attachment instanceof Attachment.MessagingArbitraryMessage) {
+            Attachment.MessagingArbitraryMessage message = (Attachment.MessagingArbitraryMessage)attachment;
+            partition = getPartition(partitions, "messaging_arbitrary_message", fromHeight, toHeight, transaction);
+            partition.column("message", Type.BYTES).writeBytes(message.getMessage());
+        } else if (attachment instanceof Attachment.MessagingAliasAssignment) {
+            Attachment.MessagingAliasAssignment alias = (Attachment.MessagingAliasAssignment)attachment;
+            partition = getPartition(partitions, "messaging_alias_assignment", fromHeight, toHeight, transaction);
+            partition.column("name", Type.STRING).writeString(alias.getAliasName());
+            partition.column("uri", Type.STRING).writeString(alias.getAliasURI());
+        } else if (attachment instanceof Attachment.MessagingPollCreation) {
+            Attachment.MessagingPollCreation poll = (Attachment.MessagingPollCreation)attachment;
+            partition = getPartition(partitions, "messaging_poll_creation", fromHeight, toHeight, transaction);
+            partition.column("name", Type.STRING).writeString(poll.getPollName());
+            partition.column("description", Type.STRING).writeString(poll.getPollDescription());
+            partition.column("options", Type.STRINGS).writeStrings(poll.getPollOptions());
+            partition.column("min_number_of_options", Type.BYTE).writeByte(poll.getMinNumberOfOptions());
+            partition.column("max_number_of_options", Type.BYTE).writeByte(poll.getMaxNumberOfOptions());
+            partition.column("options_are_binary", Type.BOOLEAN).writeBoolean(poll.isOptionsAreBinary());
+        } else if (attachment instanceof Attachment.MessagingVoteCasting) {
+            Attachment.MessagingVoteCasting vote = (Attachment.MessagingVoteCasting)attachment;
+            partition = getPartition(partitions, "messaging_vote_casting", fromHeight, toHeight, transaction);
+            partition.column("poll_id", Type.LONG).writeLong(vote.getPollId());
+            partition.column("vote", Type.BYTES).writeBytes(vote.getPollVote());
+        } else if (attachment instanceof Attachment.ColoredCoinsAssetIssuance) {
+            Attachment.ColoredCoinsAssetIssuance issuance = (Attachment.ColoredCoinsAssetIssuance)attachment;
+            partition = getPartition(partitions, "colored_coins_asset_issuance", fromHeight, toHeight, transaction);
+            partition.column("name", Type.STRING).writeString(issuance.getName());
+            partition.column("description", Type.STRING).writeString(issuance.getDescription());
+            partition.column("quantity", Type.INT).writeInt(issuance.getQuantity());
+        } else if (attachment instanceof Attachment.ColoredCoinsAssetTransfer) {
+            Attachment.ColoredCoinsAssetTransfer transfer = (Attachment.ColoredCoinsAssetTransfer)attachment;
+            partition = getPartition(partitions, "colored_coins_asset_transfer", fromHeight, toHeight, transaction);
+            partition.column("asset", Type.LONG).writeLong(transfer.getAssetId());
+            partition.column("quantity", Type.INT).writeInt(transfer.getQuantity());
+            partition.column("comment", Type.STRING).writeString(transfer.getComment());
+        } else if (attachment instanceof Attachment.ColoredCoinsOrderPlacement) {
+            Attachment.ColoredCoinsOrderPlacement order = (Attachment.ColoredCoinsOrderPlacement)attachment;
+            partition = getPartition(partitions, attachment instanceof Attachment.ColoredCoinsAskOrderPlacement
+                    ? "colored_coins_ask_order_placement" : "colored_coins_bid_order_placement", fromHeight, toHeight, transaction);
+            partition.column("asset", Type.LONG).writeLong(order.getAssetId());
+            partition.column("quantity", Type.INT).writeInt(order.getQuantity());
+            partition.column("price", Type.LONG).writeLong(order.getPrice());
+        } else if (attachment instanceof Attachment.ColoredCoinsOrderCancellation) {
+            Attachment.ColoredCoinsOrderCancellation cancellation = (Attachment.ColoredCoinsOrderCancellation)attachment;
+            partition = getPartition(partitions, attachment instanceof Attachment.ColoredCoinsAskOrderCancellation
+                    ? "colored_coins_ask_order_cancellation" : "colored_coins_bid_order_cancellation", fromHeight, toHeight, transaction);
+            partition.column("order_id", Type.LONG).writeLong(cancellation.getOrderId());
+        } else {
+            throw new RuntimeException("Unknown attachment type");
+        }
+        partition.rows += 1;
+    }
+
+    private static Partition getPartition(Map<String, Partition> partitions, String table, int fromHeight, int toHeight,
+                                          Transaction transaction) throws IOException {
+        Partition partition = partitions.get(table);
+        if (partition == null) {
+            partition = new Partition(table, fromHeight, toHeight);
+            partitions.put(table, partition);
+        }
+        partition.column("transaction_id", Type.LONG).writeLong(transaction.getId());
+        partition.column("height", Type.INT).writeInt(transaction.getHeight());
+        return partition;
+    }
+
+    private static Properties readStatus() throws IOException {
+        Properties status = new Properties();
+        File file = new File(directory, STATUS_FILE);
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                status.load(in);
+            }
+        }
+        return status;
+    }
+
+    private static void writeStatus(Properties status) throws IOException {
+        File file = new File(directory, STATUS_FILE);
+        File tmpFile = new File(directory, STATUS_FILE + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmpFile)) {
+            status.store(out, "Nxt blockchain export");
+        }
+        if (! tmpFile.renameTo(file) && ! (file.delete() && tmpFile.renameTo(file))) {
+            throw new IOException("Can't rename " + tmpFile.getAbsolutePath());
+        }
+    }
+
+    private enum Type {
+        LONG, INT, SHORT, BYTE, BOOLEAN, BYTES, STRING, STRINGS;
+
+        private static Type forSqlType(int sqlType) {
+            switch (sqlType) {
+                case Types.BIGINT:
+                    return LONG;
+                case Types.INTEGER:
+                    return INT;
+                case Types.SMALLINT:
+                    return SHORT;
+                case Types.TINYINT:
+                    return BYTE;
+                case Types.BOOLEAN:
+                    return BOOLEAN;
+                case Types.BINARY:
+                case Types.VARBINARY:
+                case Types.LONGVARBINARY:
+                    return BYTES;
+                default:
+                    return STRING;
+            }
+        }
+    }
+
+    private static final class Column {
+
+        private final String name;
+        private final Type type;
+        private final boolean nullable;
+        private final DataOutputStream out;
+
+        private Column(File file, String name, Type type, boolean nullable) throws IOException {
+            this.name = name;
+            this.type = type;
+            this.nullable = nullable;
+            this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file), 65536)));
+        }
+
+        private void write(ResultSet rs, int index) throws IOException, SQLException {
+            Object value;
+            switch (type) {
+                case LONG:
+                    value = rs.getLong(index);
+                    break;
+                case INT:
+                    value = rs.getInt(index);
+                    break;
+                case SHORT:
+                    value = rs.getShort(index);
+                    break;
+                case BYTE:
+                    value = rs.getByte(index);
+                    break;
+                case BOOLEAN:
+                    value = rs.getBoolean(index);
+                    break;
+                case BYTES:
+                    value = rs.getBytes(index);
+                    break;
+                default:
+                    value = rs.getString(index);
+            }
+            if (nullable) {
+                if (rs.wasNull()) {
+                    out.writeByte(0);
+                    return;
+                }
+                out.writeByte(1);
+            }
+            switch (type) {
+                case LONG:
+                    out.writeLong((Long)value);
+                    break;
+                case INT:
+                    out.writeInt((Integer)value);
+                    break;
+                case SHORT:
+                    out.writeShort((Short)value);
+                    break;
+                case BYTE:
+                    out.writeByte((Byte)value);
+                    break;
+                case BOOLEAN:
+                    out.writeBoolean((Boolean)value);
+                    break;
+                case BYTES:
+                    writeBytes((byte[])value);
+                    break;
+                default:
+                    writeString((String)value);
+            }
+        }
+
+        private void writeLong(long value) throws IOException {
+            out.writeLong(value);
+        }
+
+        private void writeInt(int value) throws IOException {
+            out.writeInt(value);
+        }
+
+        private void writeByte(byte value) throws IOException {
+            out.writeByte(value);
+        }
+
+        private void writeBoolean(boolean value) throws IOException {
+            out.writeBoolean(value);
+        }
+
+        private void writeBytes(byte[] value) throws IOException {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+
+        private void writeString(String value) throws IOException {
+            writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void writeStrings(String[] values) throws IOException {
+            out.writeInt(values.length);
+            for (String value : values) {
+                writeString(value);
+            }
+        }
+
+        private JSONObject getJSONObject() {
+            JSONObject json = new JSONObject();
+            json.put("name", name);
+            json.put("type", type.name().toLowerCase());
+            json.put("nullable", nullable);
+            return json;
+        }
+
+    }
+
+    // A partition is written to a temporary directory, which replaces any previous export of the same partition
+    // when committed, so that an interrupted export never leaves incomplete files behind.
+    private static final class Partition implements AutoCloseable {
+
+        private final File directory;
+        private final File tmpDirectory;
+        private final Map<String, Column> columns = new LinkedHashMap<>();
+        private int rows;
+        private boolean committed;
+
+        private Partition(String table, int fromHeight, int toHeight) throws IOException {
+            File tableDirectory = new File(ChainExport.directory, table);
+            String name = String.format("height=%09d-%09d", fromHeight, toHeight);
+            this.directory = new File(tableDirectory, name);
+            this.tmpDirectory = new File(tableDirectory, name + ".tmp");
+            delete(tmpDirectory);
+            if (! tmpDirectory.mkdirs()) {
+                throw new IOException("Can't create directory " + tmpDirectory.getAbsolutePath());
+            }
+        }
+
+        private Column column(String name, Type type) throws IOException {
+            Column column = columns.get(name);
+            if (column == null) {
+                column = new Column(new File(tmpDirectory, name + ".gz"), name, type, false);
+                columns.put(name, column);
+            }
+            return column;
+        }
+
+        // all columns of the result set except db_id, which is local to the database
+        private List<Column> columns(ResultSetMetaData metaData) throws IOException, SQLException {
+            List<Column> resultColumns = new ArrayList<>();
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                String name = metaData.getColumnName(i).toLowerCase();
+                if (name.equals("db_id")) {
+                    resultColumns.add(null);
+                    continue;
+                }
+                Column column = new Column(new File(tmpDirectory, name + ".gz"), name, Type.forSqlType(metaData.getColumnType(i)),
+                        metaData.isNullable(i) != ResultSetMetaData.columnNoNulls);
+                columns.put(name, column);
+                resultColumns.add(column);
+            }
+            return resultColumns;
+        }
+
+        private void write(List<Column> resultColumns, ResultSet rs) throws IOException, SQLException {
+            for (int i = 0; i < resultColumns.size(); i++) {
+                if (resultColumns.get(i) != null) {
+                    resultColumns.get(i).write(rs, i + 1);
+                }
+            }
+            rows += 1;
+        }
+
+        private void commit() throws IOException {
+            JSONObject schema = new JSONObject();
+            schema.put("rows", rows);
+            JSONArray columnsJSON = new JSONArray();
+            for (Column column : columns.values()) {
+                column.out.close();
+                columnsJSON.add(column.getJSONObject());
+            }
+            schema.put("columns", columnsJSON);
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(tmpDirectory, "_schema.json")), StandardCharsets.UTF_8)) {
+                schema.writeJSONString(writer);
+            }
+            delete(directory);
+            if (! tmpDirectory.renameTo(directory)) {
+                throw new IOException("Can't rename " + tmpDirectory.getAbsolutePath());
+            }
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (committed) {
+                return;
+            }
+            for (Column column : columns.values()) {
+                column.out.close();
+            }
+            delete(tmpDirectory);
+        }
+
+        private static void delete(File file) throws IOException {
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File child : files) {
+                    delete(child);
+                }
+            }
+            if (file.exists() && ! file.delete()) {
+                throw new IOException("Can't delete " + file.getAbsolutePath());
+            }
+        }
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (directory == null) {
+            Logger.logMessage("nxt.chainExportDir not set, nothing to export");
+            return;
+        }
+        Db.init();
+        try {
+            export();
+        } finally {
+            Db.shutdown();
+        }
+    }
+
+    private ChainExport() {} // never
+
+}
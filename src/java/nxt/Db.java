@@ -4,13 +4,32 @@ import nxt.util.Logger;
 import org.h2.jdbcx.JdbcConnectionPool;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
 
 public final class Db {
 
     private static volatile JdbcConnectionPool cp;
     private static volatile int maxActiveConnections;
+    private static final int writeDelay = Nxt.getIntProperty("nxt.dbWriteDelay");
+    private static final int syncWriteDelay = Nxt.getIntProperty("nxt.syncDbWriteDelay");
+
+    // connection the syncing thread saves blocks through, keeping its prepared statements until the sync ends
+    private static final ThreadLocal<SyncConnection> syncConnection = new ThreadLocal<>();
+
+    private static final class SyncConnection {
+
+        private final Connection con;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        private SyncConnection(Connection con) {
+            this.con = con;
+        }
+
+    }
 
     static void init() {
         long maxCacheSize = Nxt.getIntProperty("nxt.dbCacheKB");
@@ -25,9 +44,87 @@ public final class Db {
         cp = JdbcConnectionPool.create(dbUrl, "sa", "sa");
         cp.setMaxConnections(Nxt.getIntProperty("nxt.maxDbConnections"));
         cp.setLoginTimeout(Nxt.getIntProperty("nxt.dbLoginTimeout"));
+        // the write delay is stored in the database, this also undoes the sync delay if the node stopped while syncing
+        setWriteDelay(writeDelay);
         DbVersion.init();
     }
 
+    // while syncing, commits of consecutive blocks are flushed to disk together instead of one by one, and the blocks
+    // saved by the current thread go through one connection with their insert statements prepared only once
+    static void beginSync() {
+        try {
+            syncConnection.set(new SyncConnection(getConnection()));
+        } catch (SQLException e) {
+            throw new RuntimeException(e.toString(), e);
+        }
+        if (syncWriteDelay > writeDelay) {
+            setWriteDelay(syncWriteDelay);
+        }
+    }
+
+    static void endSync() {
+        SyncConnection sync = syncConnection.get();
+        syncConnection.remove();
+        try {
+            for (PreparedStatement pstmt : sync.statements.values()) {
+                pstmt.close();
+            }
+            sync.con.close();
+        } catch (SQLException e) {
+            Logger.logDebugMessage(e.toString(), e);
+        }
+        if (syncWriteDelay > writeDelay) {
+            setWriteDelay(writeDelay);
+        }
+    }
+
+    // the sync connection if the current thread is syncing, a new one otherwise, to be released with releaseConnection
+    static Connection getBlockConnection() throws SQLException {
+        SyncConnection sync = syncConnection.get();
+        return sync != null ? sync.con : getConnection();
+    }
+
+    static void releaseConnection(Connection con) throws SQLException {
+        SyncConnection sync = syncConnection.get();
+        if (sync == null || sync.con != con) {
+            con.close();
+        }
+    }
+
+    // statements of the sync connection are cached until the sync ends, to be released with releaseStatement
+    static PreparedStatement prepareStatement(Connection con, String sql) throws SQLException {
+        SyncConnection sync = syncConnection.get();
+        if (sync == null || sync.con != con) {
+            return con.prepareStatement(sql);
+        }
+        PreparedStatement pstmt = sync.statements.get(sql);
+        if (pstmt == null) {
+            pstmt = con.prepareStatement(sql);
+            sync.statements.put(sql, pstmt);
+        }
+        return pstmt;
+    }
+
+    static void releaseStatement(PreparedStatement pstmt) throws SQLException {
+        SyncConnection sync = syncConnection.get();
+        if (sync == null || ! sync.statements.containsValue(pstmt)) {
+            pstmt.close();
+        } else {
+            pstmt.clearBatch();
+            pstmt.clearParameters();
+        }
+    }
+
+    private static void setWriteDelay(int delay) {
+        try (Connection con = getConnection();
+             Statement stmt = con.createStatement()) {
+            stmt.executeUpdate("SET WRITE_DELAY " + delay);
+            con.commit();
+        } catch (SQLException e) {
+            throw new RuntimeException(e.toString(), e);
+        }
+    }
+
     static void shutdown() {
         if (cp != null) {
             try (Connection con = cp.getConnection();
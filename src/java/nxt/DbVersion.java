@@ -152,6 +152,47 @@ final class DbVersion {
                 }
                 apply(null);
             case 24:
+                apply("ALTER TABLE transaction ADD COLUMN IF NOT EXISTS attachment_bytes VARBINARY");
+            case 25:
+                try (Connection con = Db.getConnection();
+                     PreparedStatement pstmtSelect = con.prepareStatement("SELECT id, attachment FROM transaction "
+                             + "WHERE attachment IS NOT NULL AND attachment_bytes IS NULL");
+                     PreparedStatement pstmtUpdate = con.prepareStatement("UPDATE transaction SET attachment_bytes = ? WHERE id = ?")) {
+                    // commits in batches, an interrupted conversion continues with the rows not yet converted
+                    ResultSet rs = pstmtSelect.executeQuery();
+                    int count = 0;
+                    while (rs.next()) {
+                        pstmtUpdate.setBytes(1, ((Attachment)rs.getObject("attachment")).getBytes());
+                        pstmtUpdate.setLong(2, rs.getLong("id"));
+                        pstmtUpdate.executeUpdate();
+                        if (++count % 1000 == 0) {
+                            con.commit();
+                        }
+                    }
+                    rs.close();
+                    con.commit();
+                    Logger.logMessage("Converted " + count + " transaction attachments");
+                } catch (SQLException e) {
+                    throw new RuntimeException(e.toString(), e);
+                }
+                apply(null);
+            case 26:
+                apply("ALTER TABLE transaction DROP COLUMN attachment");
+            case 27:
+                apply("ALTER TABLE transaction ALTER COLUMN attachment_bytes RENAME TO attachment");
+            case 28:
+                apply("CREATE TABLE IF NOT EXISTS account_transaction (account_id BIGINT NOT NULL, height INT NOT NULL, "
+                        + "timestamp INT NOT NULL, type TINYINT NOT NULL, subtype TINYINT NOT NULL, transaction_id BIGINT NOT NULL, "
+                        + "FOREIGN KEY (transaction_id) REFERENCES transaction (id) ON DELETE CASCADE)");
+            case 29:
+                apply("INSERT INTO account_transaction (account_id, height, timestamp, type, subtype, transaction_id) "
+                        + "SELECT sender_id, height, timestamp, type, subtype, id FROM transaction");
+            case 30:
+                apply("INSERT INTO account_transaction (account_id, height, timestamp, type, subtype, transaction_id) "
+                        + "SELECT recipient_id, height, timestamp, type, subtype, id FROM transaction WHERE recipient_id <> sender_id");
+            case 31:
+                apply("CREATE INDEX IF NOT EXISTS account_transaction_account_id_idx ON account_transaction (account_id, timestamp, transaction_id)");
+            case 32:
                 return;
             default:
                 throw new RuntimeException("Database inconsistent with code, probably trying to run older code on newer database");
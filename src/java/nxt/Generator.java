@@ -58,7 +58,9 @@ public final class Generator {
         ThreadPool.scheduleThread(generateBlockThread, 1);
     }
 
-    static void init() {}
+    static void init() {
+        BlockTemplate.init();
+    }
 
     public static boolean addListener(Listener<Generator> listener, Event eventType) {
         return listeners.addListener(listener, eventType);
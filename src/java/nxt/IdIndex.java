@@ -0,0 +1,234 @@
+package nxt;
+
+import nxt.util.BloomFilter;
+import nxt.util.Logger;
+import org.json.simple.JSONObject;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Answers id existence checks for the block and transaction tables. A Bloom filter over all stored ids rules out
+// missing ids, a bounded cache of recently confirmed ids avoids the database for most of the remaining ones.
+// Once more ids have been added than the newest filter was sized for, a filter twice as large, with half the false
+// positive probability, is added for the following ones, so that the overall false positive probability stays below
+// twice that of the first filter however much the table grows.
+public final class IdIndex {
+
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+    private static final int MIN_CAPACITY = 100000;
+    private static final int cacheSize = Nxt.getIntProperty("nxt.idIndexCacheSize");
+
+    static final IdIndex blockIds = new IdIndex("block");
+    static final IdIndex transactionIds = new IdIndex("transaction");
+
+    public static IdIndex getBlockIdIndex() {
+        return blockIds;
+    }
+
+    public static IdIndex getTransactionIdIndex() {
+        return transactionIds;
+    }
+
+    static void init() {
+        blockIds.load();
+        transactionIds.load();
+    }
+
+    private final String table;
+    // all have to be checked, ids are added only to the last one
+    private volatile BloomFilter[] bloomFilters;
+    private final AtomicInteger bloomFilterSize = new AtomicInteger();
+    private final Map<Long, Boolean> cache = new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > cacheSize;
+        }
+    };
+    private int generation;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong bloomFilterNegatives = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong databaseHits = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    private IdIndex(String table) {
+        this.table = table;
+    }
+
+    // must be called before anything is written to the table
+    private void load() {
+        try (Connection con = Db.getConnection();
+             PreparedStatement pstmtCount = con.prepareStatement("SELECT COUNT(*) FROM " + table);
+             PreparedStatement pstmt = con.prepareStatement("SELECT id FROM " + table)) {
+            ResultSet rs = pstmtCount.executeQuery();
+            rs.next();
+            int count = rs.getInt(1);
+            rs.close();
+            BloomFilter filter = new BloomFilter(Math.max(MIN_CAPACITY, 2 * count), FALSE_POSITIVE_PROBABILITY);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                filter.add(rs.getLong(1));
+            }
+            rs.close();
+            bloomFilterSize.set(count);
+            bloomFilters = new BloomFilter[] {filter};
+            Logger.logDebugMessage("Loaded " + count + " " + table + " ids into id index");
+        } catch (SQLException e) {
+            throw new RuntimeException(e.toString(), e);
+        }
+    }
+
+    boolean contains(Long id) {
+        lookups.incrementAndGet();
+        BloomFilter[] filters = bloomFilters;
+        if (filters != null && ! mightContain(filters, id)) {
+            bloomFilterNegatives.incrementAndGet();
+            return false;
+        }
+        int currentGeneration;
+        synchronized (cache) {
+            if (cache.get(id) != null) {
+                cacheHits.incrementAndGet();
+                return true;
+            }
+            currentGeneration = generation;
+        }
+        boolean found = hasId(id);
+        if (found) {
+            databaseHits.incrementAndGet();
+            synchronized (cache) {
+                if (currentGeneration == generation) {
+                    cache.put(id, Boolean.TRUE);
+                }
+            }
+        } else if (filters != null) {
+            falsePositives.incrementAndGet();
+        }
+        return found;
+    }
+
+    private static boolean mightContain(BloomFilter[] filters, Long id) {
+        for (BloomFilter filter : filters) {
+            if (filter.mightContain(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // to be called before the id is inserted
+    void add(Long id) {
+        BloomFilter[] filters = bloomFilters;
+        if (filters == null) {
+            return;
+        }
+        BloomFilter filter = filters[filters.length - 1];
+        if (bloomFilterSize.incrementAndGet() > filter.getCapacity()) {
+            filter = grow(filter);
+        }
+        filter.add(id);
+    }
+
+    // returns the filter to add to, a new one if the given one is still the last
+    private BloomFilter grow(BloomFilter full) {
+        synchronized (cache) {
+            BloomFilter[] filters = bloomFilters;
+            BloomFilter last = filters[filters.length - 1];
+            if (last != full) {
+                return last;
+            }
+            BloomFilter filter = new BloomFilter(2 * full.getCapacity(), FALSE_POSITIVE_PROBABILITY / (2 << (filters.length - 1)));
+            BloomFilter[] newFilters = Arrays.copyOf(filters, filters.length + 1);
+            newFilters[filters.length] = filter;
+            bloomFilterSize.set(1);
+            bloomFilters = newFilters;
+            Logger.logDebugMessage("Added a Bloom filter of capacity " + filter.getCapacity() + " to the " + table + " id index");
+            return filter;
+        }
+    }
+
+    // to be called only after the insert of the id has been committed
+    void cache(Long id) {
+        synchronized (cache) {
+            cache.put(id, Boolean.TRUE);
+        }
+    }
+
+    // deleted ids stay in the Bloom filter, they only cost an extra database query
+    void invalidate() {
+        synchronized (cache) {
+            cache.clear();
+            generation += 1;
+        }
+    }
+
+    void clear() {
+        synchronized (cache) {
+            if (bloomFilters != null) {
+                bloomFilterSize.set(0);
+                bloomFilters = new BloomFilter[] {new BloomFilter(MIN_CAPACITY, FALSE_POSITIVE_PROBABILITY)};
+            }
+            cache.clear();
+            generation += 1;
+        }
+    }
+
+    private boolean hasId(Long id) {
+        try (Connection con = Db.getConnection();
+             PreparedStatement pstmt = con.prepareStatement("SELECT 1 FROM " + table + " WHERE id = ?")) {
+            pstmt.setLong(1, id);
+            ResultSet rs = pstmt.executeQuery();
+            return rs.next();
+        } catch (SQLException e) {
+            throw new RuntimeException(e.toString(), e);
+        }
+    }
+
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    public long getBloomFilterNegatives() {
+        return bloomFilterNegatives.get();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getDatabaseHits() {
+        return databaseHits.get();
+    }
+
+    public long getFalsePositives() {
+        return falsePositives.get();
+    }
+
+    public JSONObject getJSONObject() {
+        JSONObject json = new JSONObject();
+        json.put("lookups", getLookups());
+        json.put("bloomFilterNegatives", getBloomFilterNegatives());
+        json.put("cacheHits", getCacheHits());
+        json.put("databaseHits", getDatabaseHits());
+        json.put("falsePositives", getFalsePositives());
+        BloomFilter[] filters = bloomFilters;
+        if (filters != null) {
+            long capacity = 0;
+            for (BloomFilter filter : filters) {
+                capacity += filter.getCapacity();
+            }
+            json.put("bloomFilterCapacity", capacity);
+            json.put("bloomFilters", filters.length);
+        }
+        return json;
+    }
+
+}
@@ -0,0 +1,54 @@
+package nxt;
+
+import org.json.simple.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Time spent waiting for the blockchain lock, by the code section acquiring it. Nested acquisitions by a thread
+// already holding the lock are counted with no wait time.
+public final class LockMetrics {
+
+    public enum Section {
+        DOWNLOAD_BLOCKS, PROCESS_FORK, PUSH_BLOCK, POP_BLOCK, SCAN, FULL_RESET,
+        PROCESS_TRANSACTIONS, REMOVE_EXPIRED_TRANSACTIONS, PUBLISH_ORDER_BOOKS
+    }
+
+    private static final Stats[] stats = new Stats[Section.values().length];
+    static {
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new Stats();
+        }
+    }
+
+    // to be called first thing inside the synchronized block, with the System.nanoTime() taken before entering it
+    static void acquired(Section section, long waitStart) {
+        long wait = System.nanoTime() - waitStart;
+        Stats sectionStats = stats[section.ordinal()];
+        sectionStats.acquisitions.incrementAndGet();
+        sectionStats.waitNanos.addAndGet(wait);
+        long max;
+        while (wait > (max = sectionStats.maxWaitNanos.get()) && ! sectionStats.maxWaitNanos.compareAndSet(max, wait));
+    }
+
+    public static JSONObject getJSONObject() {
+        JSONObject json = new JSONObject();
+        for (Section section : Section.values()) {
+            Stats sectionStats = stats[section.ordinal()];
+            JSONObject sectionJSON = new JSONObject();
+            sectionJSON.put("acquisitions", sectionStats.acquisitions.get());
+            sectionJSON.put("waitMillis", sectionStats.waitNanos.get() / 1000000);
+            sectionJSON.put("maxWaitMillis", sectionStats.maxWaitNanos.get() / 1000000);
+            json.put(section.name(), sectionJSON);
+        }
+        return json;
+    }
+
+    private static final class Stats {
+        private final AtomicLong acquisitions = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+    }
+
+    private LockMetrics() {} // never
+
+}
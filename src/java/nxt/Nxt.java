@@ -157,10 +157,13 @@ public final class Nxt {
 
             Constants.init();
             Db.init();
+            AttachmentSchema.init();
             BlockchainProcessorImpl.getInstance();
             TransactionProcessorImpl.getInstance();
+            Order.init();
             Peers.init();
             Generator.init();
+            ChainExport.init();
             API.init();
             Users.init();
             DebugTrace.init();
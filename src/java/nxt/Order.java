@@ -1,23 +1,197 @@
 package nxt;
 
 import nxt.util.Convert;
+import nxt.util.Listener;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 
 public abstract class Order {
 
     private static final SortedSet<? extends Order> emptySortedSet = Collections.unmodifiableSortedSet(new ConcurrentSkipListSet<Order>());
 
+    // the price levels of all assets as of the end of a block, replaced whenever a block has been applied or undone,
+    // so that the order book can be read without the blockchain lock
+    private static final class PublishedBooks {
+
+        private final int height;
+        private final Map<Long, List<PriceLevel>> askLevels;
+        private final Map<Long, List<PriceLevel>> bidLevels;
+
+        private PublishedBooks(int height, Map<Long, List<PriceLevel>> askLevels, Map<Long, List<PriceLevel>> bidLevels) {
+            this.height = height;
+            this.askLevels = askLevels;
+            this.bidLevels = bidLevels;
+        }
+
+    }
+
+    private static volatile PublishedBooks publishedBooks = new PublishedBooks(0,
+            Collections.<Long, List<PriceLevel>>emptyMap(), Collections.<Long, List<PriceLevel>>emptyMap());
+    // assets with price levels changed since the last publish, only used while holding the blockchain lock
+    private static final Set<Long> changedAssets = new HashSet<>();
+
+    static void init() {
+        Nxt.getBlockchainProcessor().addListener(new Listener<Block>() {
+            @Override
+            public void notify(Block block) {
+                publish();
+            }
+        }, BlockchainProcessor.Event.BLOCK_PUSHED);
+        Nxt.getBlockchainProcessor().addListener(new Listener<Block>() {
+            @Override
+            public void notify(Block block) {
+                publish();
+            }
+        }, BlockchainProcessor.Event.BLOCK_SCANNED);
+        // notified after the blockchain lock has been released
+        Nxt.getBlockchainProcessor().addListener(new Listener<Block>() {
+            @Override
+            public void notify(Block block) {
+                publishLocked();
+            }
+        }, BlockchainProcessor.Event.BLOCK_POPPED);
+        publishLocked();
+    }
+
     static void clear() {
         Ask.askOrders.clear();
         Ask.sortedAskOrders.clear();
         Bid.bidOrders.clear();
         Bid.sortedBidOrders.clear();
+        Ask.askLevels.clear();
+        Bid.bidLevels.clear();
+        changedAssets.clear();
+        publishedBooks = new PublishedBooks(0,
+                Collections.<Long, List<PriceLevel>>emptyMap(), Collections.<Long, List<PriceLevel>>emptyMap());
+    }
+
+    // top depth price levels of both sides of the asset order book, as of the end of the block at the returned height
+    public static OrderBook getOrderBook(Long assetId, int depth) {
+        PublishedBooks books = publishedBooks;
+        return new OrderBook(books.height, topLevels(books.askLevels.get(assetId), depth), topLevels(books.bidLevels.get(assetId), depth));
+    }
+
+    private static List<PriceLevel> topLevels(List<PriceLevel> assetLevels, int depth) {
+        if (assetLevels == null) {
+            return Collections.emptyList();
+        }
+        return assetLevels.subList(0, Math.min(depth, assetLevels.size()));
+    }
+
+    private static void publishLocked() {
+        long waitStart = System.nanoTime();
+        synchronized (BlockchainImpl.getInstance()) {
+            LockMetrics.acquired(LockMetrics.Section.PUBLISH_ORDER_BOOKS, waitStart);
+            publish();
+        }
+    }
+
+    // must be called while holding the blockchain lock, with no block partially applied or undone
+    private static void publish() {
+        PublishedBooks books = publishedBooks;
+        int height = BlockchainImpl.getInstance().getLastBlock().getHeight();
+        if (changedAssets.isEmpty()) {
+            if (books.height != height) {
+                publishedBooks = new PublishedBooks(height, books.askLevels, books.bidLevels);
+            }
+            return;
+        }
+        Map<Long, List<PriceLevel>> askLevels = new HashMap<>(books.askLevels);
+        Map<Long, List<PriceLevel>> bidLevels = new HashMap<>(books.bidLevels);
+        for (Long assetId : changedAssets) {
+            copyLevels(askLevels, Ask.askLevels, assetId);
+            copyLevels(bidLevels, Bid.bidLevels, assetId);
+        }
+        changedAssets.clear();
+        publishedBooks = new PublishedBooks(height, askLevels, bidLevels);
+    }
+
+    private static void copyLevels(Map<Long, List<PriceLevel>> publishedLevels, Map<Long, SortedMap<Long, PriceLevel>> levels, Long assetId) {
+        SortedMap<Long, PriceLevel> assetLevels = levels.get(assetId);
+        if (assetLevels == null || assetLevels.isEmpty()) {
+            publishedLevels.remove(assetId);
+        } else {
+            publishedLevels.put(assetId, Collections.unmodifiableList(new ArrayList<>(assetLevels.values())));
+        }
+    }
+
+    // the price levels are only changed, and read, while holding the blockchain lock, the PriceLevel objects are
+    // immutable so that they can be shared with the published books
+    private static void updateLevel(Map<Long, SortedMap<Long, PriceLevel>> levels, Order order, int quantity, int count) {
+        changedAssets.add(order.assetId);
+        SortedMap<Long, PriceLevel> assetLevels = levels.get(order.assetId);
+        if (assetLevels == null) {
+            assetLevels = order instanceof Bid ? new TreeMap<Long, PriceLevel>(Collections.<Long>reverseOrder()) : new TreeMap<Long, PriceLevel>();
+            levels.put(order.assetId, assetLevels);
+        }
+        PriceLevel level = assetLevels.get(order.price);
+        long levelQuantity = quantity;
+        int levelCount = count;
+        if (level != null) {
+            levelQuantity += level.quantity;
+            levelCount += level.count;
+        }
+        if (levelCount == 0) {
+            assetLevels.remove(order.price);
+        } else {
+            assetLevels.put(order.price, new PriceLevel(order.price, levelQuantity, levelCount));
+        }
+    }
+
+    static void writeSnapshot(DataOutputStream out) throws IOException {
+        writeOrders(out, new ArrayList<Order>(Ask.askOrders.values()));
+        writeOrders(out, new ArrayList<Order>(Bid.bidOrders.values()));
+    }
+
+    private static void writeOrders(DataOutputStream out, List<Order> orders) throws IOException {
+        out.writeInt(orders.size());
+        for (Order order : orders) {
+            out.writeLong(order.id);
+            out.writeLong(order.account.getId());
+            out.writeLong(order.assetId);
+            out.writeInt(order.quantity);
+            out.writeLong(order.price);
+            out.writeLong(order.height);
+        }
+    }
+
+    static void readSnapshot(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Ask.restoreOrder(new Ask(in.readLong(), readAccount(in), in.readLong(), in.readInt(), in.readLong(), in.readLong()));
+        }
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Bid.restoreOrder(new Bid(in.readLong(), readAccount(in), in.readLong(), in.readInt(), in.readLong(), in.readLong()));
+        }
+        publish();
+    }
+
+    private static Account readAccount(DataInputStream in) throws IOException {
+        Long accountId = in.readLong();
+        Account account = Account.getAccount(accountId);
+        if (account == null) {
+            throw new IOException("Unknown order account " + Convert.toUnsignedLong(accountId) + " in snapshot");
+        }
+        return account;
     }
 
     private static void matchOrders(Long assetId) {
@@ -38,20 +212,22 @@ public abstract class Order {
                 break;
             }
 
-            int quantity = Math.min(((Order)askOrder).quantity, ((Order)bidOrder).quantity);
-            long price = askOrder.getHeight() < bidOrder.getHeight() || (askOrder.getHeight() == bidOrder.getHeight() && askOrder.getId() < bidOrder.getId()) ? askOrder.getPrice() : bidOrder.getPrice();
+            final int quantity = Math.min(((Order)askOrder).quantity, ((Order)bidOrder).quantity);
+            final long price = askOrder.getHeight() < bidOrder.getHeight() || (askOrder.getHeight() == bidOrder.getHeight() && askOrder.getId() < bidOrder.getId()) ? askOrder.getPrice() : bidOrder.getPrice();
 
             Block lastBlock=Nxt.getBlockchain().getLastBlock();
             int timeStamp=lastBlock.getTimestamp();
             
             Trade.addTrade(assetId, timeStamp, lastBlock.getId(), askOrder.getId(), bidOrder.getId(), quantity, price);
 
+            updateLevel(Ask.askLevels, askOrder, -quantity, 0);
             if ((((Order)askOrder).quantity -= quantity) == 0) {
                 Ask.removeOrder(askOrder.getId());
             }
             askOrder.getAccount().addToBalanceAndUnconfirmedBalance(quantity * price);
             askOrder.getAccount().addToAssetBalance(assetId, -quantity);
 
+            updateLevel(Bid.bidLevels, bidOrder, -quantity, 0);
             if ((((Order)bidOrder).quantity -= quantity) == 0) {
                 Bid.removeOrder(bidOrder.getId());
             }
@@ -59,10 +235,37 @@ public abstract class Order {
             bidOrder.getAccount().addToBalance(-quantity * price);
             bidOrder.getAccount().addToUnconfirmedBalance(quantity * (bidOrder.getPrice() - price));
 
+            journalMatch(assetId, askOrder, bidOrder, quantity, price);
+
         }
 
     }
 
+    // filled orders are put back, with their restored quantity, by the journal entries of removeOrder, which are
+    // undone after this one, so their price level must not be updated here
+    private static void journalMatch(final Long assetId, final Ask askOrder, final Bid bidOrder, final int quantity, final long price) {
+        StateJournal.record(new Runnable() {
+            @Override
+            public void run() {
+                boolean askRemoved = ((Order)askOrder).quantity == 0;
+                ((Order)askOrder).quantity += quantity;
+                if (! askRemoved) {
+                    updateLevel(Ask.askLevels, askOrder, quantity, 0);
+                }
+                askOrder.getAccount().addToBalanceAndUnconfirmedBalance(- quantity * price);
+                askOrder.getAccount().addToAssetBalance(assetId, quantity);
+                boolean bidRemoved = ((Order)bidOrder).quantity == 0;
+                ((Order)bidOrder).quantity += quantity;
+                if (! bidRemoved) {
+                    updateLevel(Bid.bidLevels, bidOrder, quantity, 0);
+                }
+                bidOrder.getAccount().addToAssetAndUnconfirmedAssetBalance(assetId, - quantity);
+                bidOrder.getAccount().addToBalance(quantity * price);
+                bidOrder.getAccount().addToUnconfirmedBalance(- quantity * (bidOrder.getPrice() - price));
+            }
+        });
+    }
+
     private final Long id;
     private final Account account;
     private final Long assetId;
@@ -72,12 +275,16 @@ public abstract class Order {
     private volatile int quantity;
 
     private Order(Long id, Account account, Long assetId, int quantity, long price) {
+        this(id, account, assetId, quantity, price, Nxt.getBlockchain().getLastBlock().getHeight());
+    }
+
+    private Order(Long id, Account account, Long assetId, int quantity, long price, long height) {
         this.id = id;
         this.account = account;
         this.assetId = assetId;
         this.quantity = quantity;
         this.price = price;
-        this.height = Nxt.getBlockchain().getLastBlock().getHeight();
+        this.height = height;
     }
 
     public Long getId() {
@@ -123,8 +330,10 @@ public abstract class Order {
 
     public static final class Ask extends Order implements Comparable<Ask> {
 
-        private static final ConcurrentMap<Long, Ask> askOrders = new ConcurrentHashMap<>();
+        // in id order, for paging through all orders
+        private static final ConcurrentNavigableMap<Long, Ask> askOrders = new ConcurrentSkipListMap<>();
         private static final ConcurrentMap<Long, SortedSet<Ask>> sortedAskOrders = new ConcurrentHashMap<>();
+        private static final Map<Long, SortedMap<Long, PriceLevel>> askLevels = new HashMap<>();
 
         private static final Collection<Ask> allAskOrders = Collections.unmodifiableCollection(askOrders.values());
 
@@ -132,6 +341,11 @@ public abstract class Order {
             return allAskOrders;
         }
 
+        // in id order, all of them if orderId is null
+        public static Collection<Ask> getAskOrdersAfter(Long orderId) {
+            return orderId == null ? allAskOrders : Collections.unmodifiableCollection(askOrders.tailMap(orderId, false).values());
+        }
+
         public static Ask getAskOrder(Long orderId) {
             return askOrders.get(orderId);
         }
@@ -142,23 +356,50 @@ public abstract class Order {
         }
 
         static void addOrder(Long transactionId, Account senderAccount, Long assetId, int quantity, long price) {
-            Ask order = new Ask(transactionId, senderAccount, assetId, quantity, price);
-            if (askOrders.putIfAbsent(order.getId(), order) != null) {
+            final Ask order = new Ask(transactionId, senderAccount, assetId, quantity, price);
+            if (! putOrder(order)) {
                 throw new IllegalStateException("Ask order id " + Convert.toUnsignedLong(order.getId()) + " already exists");
             }
-            SortedSet<Ask> sortedAssetAskOrders = sortedAskOrders.get(assetId);
+            StateJournal.record(new Runnable() {
+                @Override
+                public void run() {
+                    removeOrder(order.getId());
+                }
+            });
+            matchOrders(assetId);
+        }
+
+        private static void restoreOrder(Ask order) throws IOException {
+            if (! putOrder(order)) {
+                throw new IOException("Duplicate ask order " + Convert.toUnsignedLong(order.getId()) + " in snapshot");
+            }
+        }
+
+        private static boolean putOrder(Ask order) {
+            if (askOrders.putIfAbsent(order.getId(), order) != null) {
+                return false;
+            }
+            SortedSet<Ask> sortedAssetAskOrders = sortedAskOrders.get(order.getAssetId());
             if (sortedAssetAskOrders == null) {
                 sortedAssetAskOrders = new ConcurrentSkipListSet<>();
-                sortedAskOrders.put(assetId,sortedAssetAskOrders);
+                sortedAskOrders.put(order.getAssetId(), sortedAssetAskOrders);
             }
             sortedAssetAskOrders.add(order);
-            matchOrders(assetId);
+            updateLevel(askLevels, order, order.getQuantity(), 1);
+            return true;
         }
 
         static Ask removeOrder(Long orderId) {
-            Ask askOrder = askOrders.remove(orderId);
+            final Ask askOrder = askOrders.remove(orderId);
             if (askOrder != null) {
                 sortedAskOrders.get(askOrder.getAssetId()).remove(askOrder);
+                updateLevel(askLevels, askOrder, -askOrder.getQuantity(), -1);
+                StateJournal.record(new Runnable() {
+                    @Override
+                    public void run() {
+                        putOrder(askOrder);
+                    }
+                });
             }
             return askOrder;
         }
@@ -167,6 +408,10 @@ public abstract class Order {
             super(orderId, account, assetId, quantity, price);
         }
 
+        private Ask(Long orderId, Account account, Long assetId, int quantity, long price, long height) {
+            super(orderId, account, assetId, quantity, price, height);
+        }
+
         @Override
         public int compareTo(Ask o) {
             if (this.getPrice() < o.getPrice()) {
@@ -182,8 +427,10 @@ public abstract class Order {
 
     public static final class Bid extends Order implements Comparable<Bid> {
 
-        private static final ConcurrentMap<Long, Bid> bidOrders = new ConcurrentHashMap<>();
+        // in id order, for paging through all orders
+        private static final ConcurrentNavigableMap<Long, Bid> bidOrders = new ConcurrentSkipListMap<>();
         private static final ConcurrentMap<Long, SortedSet<Bid>> sortedBidOrders = new ConcurrentHashMap<>();
+        private static final Map<Long, SortedMap<Long, PriceLevel>> bidLevels = new HashMap<>();
 
         private static final Collection<Bid> allBidOrders = Collections.unmodifiableCollection(bidOrders.values());
 
@@ -191,6 +438,11 @@ public abstract class Order {
             return allBidOrders;
         }
 
+        // in id order, all of them if orderId is null
+        public static Collection<Bid> getBidOrdersAfter(Long orderId) {
+            return orderId == null ? allBidOrders : Collections.unmodifiableCollection(bidOrders.tailMap(orderId, false).values());
+        }
+
         public static Bid getBidOrder(Long orderId) {
             return bidOrders.get(orderId);
         }
@@ -201,23 +453,50 @@ public abstract class Order {
         }
 
         static void addOrder(Long transactionId, Account senderAccount, Long assetId, int quantity, long price) {
-            Bid order = new Bid(transactionId, senderAccount, assetId, quantity, price);
-            if (bidOrders.putIfAbsent(order.getId(), order) != null) {
+            final Bid order = new Bid(transactionId, senderAccount, assetId, quantity, price);
+            if (! putOrder(order)) {
                 throw new IllegalStateException("Bid order id " + Convert.toUnsignedLong(order.getId()) + " already exists");
             }
-            SortedSet<Bid> sortedAssetBidOrders = sortedBidOrders.get(assetId);
+            StateJournal.record(new Runnable() {
+                @Override
+                public void run() {
+                    removeOrder(order.getId());
+                }
+            });
+            matchOrders(assetId);
+        }
+
+        private static void restoreOrder(Bid order) throws IOException {
+            if (! putOrder(order)) {
+                throw new IOException("Duplicate bid order " + Convert.toUnsignedLong(order.getId()) + " in snapshot");
+            }
+        }
+
+        private static boolean putOrder(Bid order) {
+            if (bidOrders.putIfAbsent(order.getId(), order) != null) {
+                return false;
+            }
+            SortedSet<Bid> sortedAssetBidOrders = sortedBidOrders.get(order.getAssetId());
             if (sortedAssetBidOrders == null) {
                 sortedAssetBidOrders = new ConcurrentSkipListSet<>();
-                sortedBidOrders.put(assetId,sortedAssetBidOrders);
+                sortedBidOrders.put(order.getAssetId(), sortedAssetBidOrders);
             }
             sortedAssetBidOrders.add(order);
-            matchOrders(assetId);
+            updateLevel(bidLevels, order, order.getQuantity(), 1);
+            return true;
         }
 
         static Bid removeOrder(Long orderId) {
-            Bid bidOrder = bidOrders.remove(orderId);
+            final Bid bidOrder = bidOrders.remove(orderId);
             if (bidOrder != null) {
                 sortedBidOrders.get(bidOrder.getAssetId()).remove(bidOrder);
+                updateLevel(bidLevels, bidOrder, -bidOrder.getQuantity(), -1);
+                StateJournal.record(new Runnable() {
+                    @Override
+                    public void run() {
+                        putOrder(bidOrder);
+                    }
+                });
             }
             return bidOrder;
         }
@@ -226,6 +505,10 @@ public abstract class Order {
             super(orderId, account, assetId, quantity, price);
         }
 
+        private Bid(Long orderId, Account account, Long assetId, int quantity, long price, long height) {
+            super(orderId, account, assetId, quantity, price, height);
+        }
+
         @Override
         public int compareTo(Bid o) {
             if (this.getPrice() > o.getPrice()) {
@@ -238,4 +521,59 @@ public abstract class Order {
         }
 
     }
+
+    public static final class PriceLevel {
+
+        private final long price;
+        private final long quantity;
+        private final int count;
+
+        private PriceLevel(long price, long quantity, int count) {
+            this.price = price;
+            this.quantity = quantity;
+            this.count = count;
+        }
+
+        public long getPrice() {
+            return price;
+        }
+
+        public long getQuantity() {
+            return quantity;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+    }
+
+    public static final class OrderBook {
+
+        private final int height;
+        private final List<PriceLevel> askLevels;
+        private final List<PriceLevel> bidLevels;
+
+        private OrderBook(int height, List<PriceLevel> askLevels, List<PriceLevel> bidLevels) {
+            this.height = height;
+            this.askLevels = askLevels;
+            this.bidLevels = bidLevels;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        // lowest price first
+        public List<PriceLevel> getAskLevels() {
+            return askLevels;
+        }
+
+        // highest price first
+        public List<PriceLevel> getBidLevels() {
+            return bidLevels;
+        }
+
+    }
+
 }
@@ -2,8 +2,13 @@ package nxt;
 
 import nxt.util.Convert;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -34,10 +39,16 @@ public final class Poll {
 
     }
 
-    static void addPoll(Long id, String name, String description, String[] options, byte minNumberOfOptions, byte maxNumberOfOptions, boolean optionsAreBinary) {
+    static void addPoll(final Long id, String name, String description, String[] options, byte minNumberOfOptions, byte maxNumberOfOptions, boolean optionsAreBinary) {
         if (polls.putIfAbsent(id, new Poll(id, name, description, options, minNumberOfOptions, maxNumberOfOptions, optionsAreBinary)) != null) {
             throw new IllegalStateException("Poll with id " + Convert.toUnsignedLong(id) + " already exists");
         }
+        StateJournal.record(new Runnable() {
+            @Override
+            public void run() {
+                polls.remove(id);
+            }
+        });
     }
 
     public static Collection<Poll> getAllPolls() {
@@ -48,6 +59,50 @@ public final class Poll {
         polls.clear();
     }
 
+    static void writeSnapshot(DataOutputStream out) throws IOException {
+        List<Poll> pollList = new ArrayList<>(polls.values());
+        out.writeInt(pollList.size());
+        for (Poll poll : pollList) {
+            out.writeLong(poll.id);
+            Snapshot.writeString(out, poll.name);
+            Snapshot.writeString(out, poll.description);
+            out.writeInt(poll.options.length);
+            for (String option : poll.options) {
+                Snapshot.writeString(out, option);
+            }
+            out.writeByte(poll.minNumberOfOptions);
+            out.writeByte(poll.maxNumberOfOptions);
+            out.writeBoolean(poll.optionsAreBinary);
+            List<Map.Entry<Long, Long>> voterList = new ArrayList<>(poll.voters.entrySet());
+            out.writeInt(voterList.size());
+            for (Map.Entry<Long, Long> voter : voterList) {
+                out.writeLong(voter.getKey());
+                out.writeLong(voter.getValue());
+            }
+        }
+    }
+
+    static void readSnapshot(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Long id = in.readLong();
+            String name = Snapshot.readString(in);
+            String description = Snapshot.readString(in);
+            String[] options = new String[in.readInt()];
+            for (int j = 0; j < options.length; j++) {
+                options[j] = Snapshot.readString(in);
+            }
+            Poll poll = new Poll(id, name, description, options, in.readByte(), in.readByte(), in.readBoolean());
+            int votersCount = in.readInt();
+            for (int j = 0; j < votersCount; j++) {
+                poll.voters.put(in.readLong(), in.readLong());
+            }
+            if (polls.putIfAbsent(id, poll) != null) {
+                throw new IOException("Duplicate poll " + Convert.toUnsignedLong(id) + " in snapshot");
+            }
+        }
+    }
+
     public static Poll getPoll(Long id) {
         return polls.get(id);
     }
@@ -72,8 +127,18 @@ public final class Poll {
         return Collections.unmodifiableMap(voters);
     }
 
-    void addVoter(Long voterId, Long voteId) {
-        voters.put(voterId, voteId);
+    void addVoter(final Long voterId, Long voteId) {
+        final Long previousVoteId = voters.put(voterId, voteId);
+        StateJournal.record(new Runnable() {
+            @Override
+            public void run() {
+                if (previousVoteId == null) {
+                    voters.remove(voterId);
+                } else {
+                    voters.put(voterId, previousVoteId);
+                }
+            }
+        });
     }
 
 }
@@ -0,0 +1,227 @@
+package nxt;
+
+import nxt.crypto.Crypto;
+import nxt.util.Convert;
+import nxt.util.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+final class Snapshot {
+
+    private static final int MAGIC = 0x4e585453; // "NXTS"
+    private static final int FORMAT_VERSION = 1;
+    private static final int CHECKSUM_LENGTH = 32;
+    private static final Pattern FILE_NAME = Pattern.compile("snapshot-(\\d+)-(\\d+)\\.bin");
+
+    private static final int interval = Nxt.getIntProperty("nxt.snapshotInterval");
+    private static final int snapshotsToKeep = Math.max(1, Nxt.getIntProperty("nxt.snapshotsToKeep"));
+    private static final File directory;
+    static {
+        String dir = Constants.isTestnet ? Nxt.getStringProperty("nxt.testSnapshotDir") : Nxt.getStringProperty("nxt.snapshotDir");
+        directory = interval > 0 && dir != null ? new File(dir) : null;
+        if (directory != null && ! directory.isDirectory() && ! directory.mkdirs()) {
+            Logger.logMessage("Can't create snapshot directory " + directory.getAbsolutePath());
+        }
+    }
+
+    static boolean isEnabled() {
+        return directory != null;
+    }
+
+    // number of blocks covered by the snapshots kept on disk
+    static int getRetainedBlocks() {
+        return interval * snapshotsToKeep;
+    }
+
+    // to be called only while holding the blockchain lock, once the block and all unconfirmed transactions have been applied,
+    // returns null if no snapshot is due at this height
+    static byte[] take(BlockImpl block, Collection<TransactionImpl> unconfirmedTransactions) {
+        if (directory == null || block.getHeight() == 0 || block.getHeight() % interval != 0
+                || getFile(block).exists()) {
+            return null;
+        }
+        Map<Long, Long> unconfirmedAmounts = new HashMap<>();
+        Map<Long, Map<Long, Long>> unconfirmedAssetQuantities = new HashMap<>();
+        for (TransactionImpl transaction : unconfirmedTransactions) {
+            transaction.getType().updateUnconfirmedTotals(transaction, unconfirmedAmounts, unconfirmedAssetQuantities);
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(block.getHeight());
+            out.writeLong(block.getId());
+            Account.writeSnapshot(out, unconfirmedAmounts, unconfirmedAssetQuantities);
+            Alias.writeSnapshot(out);
+            Asset.writeSnapshot(out);
+            Order.writeSnapshot(out);
+            Poll.writeSnapshot(out);
+            Vote.writeSnapshot(out);
+            Trade.writeSnapshot(out);
+            TransactionProcessorImpl.getInstance().writeSnapshot(out);
+            out.write(Crypto.sha256().digest(bytes.toByteArray()));
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException|RuntimeException e) {
+            Logger.logMessage("Error creating snapshot at height " + block.getHeight(), e);
+            return null;
+        }
+    }
+
+    static void save(BlockImpl block, byte[] snapshot) {
+        File file = getFile(block);
+        File tmpFile = new File(directory, file.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmpFile)) {
+            out.write(snapshot);
+        } catch (IOException e) {
+            Logger.logMessage("Error writing snapshot " + tmpFile.getAbsolutePath(), e);
+            tmpFile.delete();
+            return;
+        }
+        if (! tmpFile.renameTo(file)) {
+            Logger.logMessage("Can't rename snapshot " + tmpFile.getAbsolutePath());
+            tmpFile.delete();
+            return;
+        }
+        Logger.logDebugMessage("Saved snapshot at height " + block.getHeight() + ", " + snapshot.length + " bytes");
+        List<File> files = listFiles();
+        for (int i = snapshotsToKeep; i < files.size(); i++) {
+            if (! files.get(i).delete()) {
+                Logger.logMessage("Can't delete old snapshot " + files.get(i).getAbsolutePath());
+            }
+        }
+    }
+
+    // to be called only while holding the blockchain lock and with all state cleared,
+    // returns the block the state was restored at, or null if no usable snapshot was found
+    static BlockImpl load() {
+        if (directory == null) {
+            return null;
+        }
+        for (File file : listFiles()) {
+            byte[] snapshot;
+            try {
+                snapshot = Files.readAllBytes(file.toPath());
+            } catch (IOException e) {
+                Logger.logMessage("Error reading snapshot " + file.getAbsolutePath(), e);
+                continue;
+            }
+            if (snapshot.length < CHECKSUM_LENGTH || ! Arrays.equals(
+                    Crypto.sha256().digest(Arrays.copyOf(snapshot, snapshot.length - CHECKSUM_LENGTH)),
+                    Arrays.copyOfRange(snapshot, snapshot.length - CHECKSUM_LENGTH, snapshot.length))) {
+                Logger.logMessage("Checksum failed for snapshot " + file.getAbsolutePath() + ", ignoring it");
+                continue;
+            }
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot, 0, snapshot.length - CHECKSUM_LENGTH))) {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                    Logger.logMessage("Unsupported snapshot format " + file.getAbsolutePath() + ", ignoring it");
+                    continue;
+                }
+                int height = in.readInt();
+                Long blockId = in.readLong();
+                BlockImpl block = BlockDb.findBlock(blockId);
+                if (block == null || block.getHeight() != height) {
+                    Logger.logDebugMessage("Snapshot " + file.getName() + " is not on the current blockchain, ignoring it");
+                    continue;
+                }
+                BlockchainImpl.getInstance().setLastBlock(block);
+                Account.readSnapshot(in);
+                Alias.readSnapshot(in);
+                Asset.readSnapshot(in);
+                Order.readSnapshot(in);
+                Poll.readSnapshot(in);
+                Vote.readSnapshot(in);
+                Trade.readSnapshot(in);
+                TransactionProcessorImpl.getInstance().readSnapshot(in);
+                if (in.available() != 0) {
+                    throw new IOException("Unexpected data at end of snapshot");
+                }
+                Logger.logMessage("Loaded snapshot at height " + height);
+                return block;
+            } catch (IOException|RuntimeException e) {
+                Logger.logMessage("Error loading snapshot " + file.getAbsolutePath(), e);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s == null ? null : s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static File getFile(BlockImpl block) {
+        return new File(directory, "snapshot-" + block.getHeight() + "-" + Convert.toUnsignedLong(block.getId()) + ".bin");
+    }
+
+    // newest first
+    private static List<File> listFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<File> result = new ArrayList<>();
+        final Map<File, Integer> heights = new HashMap<>();
+        for (File file : files) {
+            Matcher matcher = FILE_NAME.matcher(file.getName());
+            if (matcher.matches()) {
+                result.add(file);
+                heights.put(file, Integer.parseInt(matcher.group(1)));
+            }
+        }
+        Collections.sort(result, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return heights.get(o2).compareTo(heights.get(o1));
+            }
+        });
+        return result;
+    }
+
+    private Snapshot() {} // never
+
+}
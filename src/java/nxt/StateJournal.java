@@ -0,0 +1,66 @@
+package nxt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Records, for each of the most recently applied blocks, the state changes which can't be reverted from the
+// transactions alone (previous alias uris, filled and cancelled orders, trades, votes), so that popping a block
+// doesn't require a rescan. To be used only while holding the blockchain lock.
+final class StateJournal {
+
+    // forks deeper than this are never popped off
+    private static final int MAX_ROLLBACK = 720;
+
+    private static final Map<Long, List<Runnable>> journals = new HashMap<>();
+    private static final Deque<Long> blockIds = new ArrayDeque<>();
+    private static List<Runnable> current;
+
+    static void begin() {
+        current = new ArrayList<>();
+    }
+
+    static void commit(BlockImpl block) {
+        journals.put(block.getId(), current);
+        blockIds.addLast(block.getId());
+        current = null;
+        while (blockIds.size() > MAX_ROLLBACK) {
+            journals.remove(blockIds.removeFirst());
+        }
+    }
+
+    // state changes made outside of applying a block are not recorded
+    static void record(Runnable undo) {
+        if (current != null) {
+            current.add(undo);
+        }
+    }
+
+    static boolean isRecorded(Long blockId) {
+        return journals.containsKey(blockId);
+    }
+
+    // reverts the recorded changes in the reverse order, the block must be the last one committed
+    static void undo(BlockImpl block) {
+        List<Runnable> journal = journals.remove(block.getId());
+        if (journal == null) {
+            return;
+        }
+        blockIds.removeLastOccurrence(block.getId());
+        for (int i = journal.size() - 1; i >= 0; i--) {
+            journal.get(i).run();
+        }
+    }
+
+    static void clear() {
+        journals.clear();
+        blockIds.clear();
+        current = null;
+    }
+
+    private StateJournal() {} // never
+
+}
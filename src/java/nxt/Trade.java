@@ -3,11 +3,19 @@ package nxt;
 import nxt.util.Listener;
 import nxt.util.Listeners;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 public final class Trade {
@@ -18,13 +26,66 @@ public final class Trade {
 
     private static final Listeners<Trade,Event> listeners = new Listeners<>();
 
-    private static final ConcurrentMap<Long, List<Trade>> trades = new ConcurrentHashMap<>();
+    // in asset id order, for paging through the trades of all assets
+    private static final ConcurrentNavigableMap<Long, List<Trade>> trades = new ConcurrentSkipListMap<>();
     private static final Collection<List<Trade>> allTrades = Collections.unmodifiableCollection(trades.values());
 
     public static Collection<List<Trade>> getAllTrades() {
         return allTrades;
     }
 
+    // trades of all assets made at or after the timestamp
+    public static Collection<List<Trade>> getAllTrades(int timestamp) {
+        List<List<Trade>> result = new ArrayList<>();
+        for (List<Trade> assetTrades : trades.values()) {
+            result.add(((TradeList)assetTrades).getTradesFrom(timestamp));
+        }
+        return result;
+    }
+
+    // Trades of all assets made at or after the timestamp, in asset id order and then in the order they were made.
+    // If afterAssetId is not null, starts after the trade of that asset with index afterIndex.
+    public static Iterator<Trade> getAllTrades(final int timestamp, final Long afterAssetId, final int afterIndex) {
+        final Iterator<Map.Entry<Long, List<Trade>>> assetTrades = afterAssetId == null ? trades.entrySet().iterator()
+                : trades.tailMap(afterAssetId, true).entrySet().iterator();
+        return new Iterator<Trade>() {
+
+            private Iterator<Trade> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (! current.hasNext()) {
+                    if (! assetTrades.hasNext()) {
+                        return false;
+                    }
+                    Map.Entry<Long, List<Trade>> entry = assetTrades.next();
+                    TradeList tradeList = (TradeList)entry.getValue();
+                    int from = tradeList.indexFrom(timestamp);
+                    if (entry.getKey().equals(afterAssetId)) {
+                        from = Math.max(from, afterIndex + 1);
+                    }
+                    int to = tradeList.size();
+                    current = from < to ? tradeList.subList(from, to).iterator() : Collections.<Trade>emptyIterator();
+                }
+                return true;
+            }
+
+            @Override
+            public Trade next() {
+                if (! hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+        };
+    }
+
     public static boolean addListener(Listener<Trade> listener, Event eventType) {
         return listeners.addListener(listener, eventType);
     }
@@ -34,14 +95,20 @@ public final class Trade {
     }
 
     static void addTrade(Long assetId, int timeStamp, Long blockId, Long askOrderId, Long bidOrderId, int quantity, long price) {
-        List<Trade> assetTrades = trades.get(assetId);
+        TradeList assetTrades = (TradeList)trades.get(assetId);
         if (assetTrades == null) {
-            assetTrades = new CopyOnWriteArrayList<>();
-            // cfb: CopyOnWriteArrayList requires a lot of resources to grow but this happens only when a new block is pushed/applied, I can't decide if we should replace it with another class
+            assetTrades = new TradeList();
             trades.put(assetId, assetTrades);
         }
-        Trade trade = new Trade(blockId, timeStamp, assetId, askOrderId, bidOrderId, quantity, price);
+        final Trade trade = new Trade(blockId, timeStamp, assetId, askOrderId, bidOrderId, quantity, price);
         assetTrades.add(trade);
+        final TradeList journaledTrades = assetTrades;
+        StateJournal.record(new Runnable() {
+            @Override
+            public void run() {
+                journaledTrades.removeLast(trade);
+            }
+        });
         listeners.notify(trade, Event.TRADE);
     }
 
@@ -49,12 +116,45 @@ public final class Trade {
         trades.clear();
     }
 
+    static void writeSnapshot(DataOutputStream out) throws IOException {
+        List<Map.Entry<Long, List<Trade>>> tradeList = new ArrayList<>(trades.entrySet());
+        out.writeInt(tradeList.size());
+        for (Map.Entry<Long, List<Trade>> entry : tradeList) {
+            List<Trade> assetTrades = entry.getValue();
+            out.writeLong(entry.getKey());
+            out.writeInt(assetTrades.size());
+            for (Trade trade : assetTrades) {
+                out.writeLong(trade.blockId);
+                out.writeInt(trade.timestamp);
+                out.writeLong(trade.askOrderId);
+                out.writeLong(trade.bidOrderId);
+                out.writeInt(trade.quantity);
+                out.writeLong(trade.price);
+            }
+        }
+    }
+
+    static void readSnapshot(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Long assetId = in.readLong();
+            int tradesCount = in.readInt();
+            TradeList assetTrades = new TradeList();
+            for (int j = 0; j < tradesCount; j++) {
+                assetTrades.add(new Trade(in.readLong(), in.readInt(), assetId, in.readLong(), in.readLong(), in.readInt(), in.readLong()));
+            }
+            trades.put(assetId, assetTrades);
+        }
+    }
+
     private final int timestamp;
     private final Long assetId;
     private final Long blockId;
     private final Long askOrderId, bidOrderId;
     private final int quantity;
     private final long price;
+    // position among the trades of the asset, set when added
+    private int index;
 
     private Trade(Long blockId, int timestamp, Long assetId, Long askOrderId, Long bidOrderId, int quantity, long price) {
 
@@ -82,6 +182,8 @@ public final class Trade {
     
     public int getTimestamp() { return timestamp; }
 
+    public int getIndex() { return index; }
+
     public static List<Trade> getTrades(Long assetId) {
         List<Trade> assetTrades = trades.get(assetId);
         if (assetTrades != null) {
@@ -90,4 +192,83 @@ public final class Trade {
         return Collections.emptyList();
     }
 
+    // trades of the asset made at or after the timestamp
+    public static List<Trade> getTrades(Long assetId, int timestamp) {
+        TradeList assetTrades = (TradeList)trades.get(assetId);
+        if (assetTrades != null) {
+            return assetTrades.getTradesFrom(timestamp);
+        }
+        return Collections.emptyList();
+    }
+
+    // Trades of an asset in the order they were made, which is also timestamp order. Appending doesn't copy existing
+    // trades, and the list can be read concurrently with the single thread appending to it.
+    private static final class TradeList extends AbstractList<Trade> {
+
+        private static final int CHUNK_SIZE = 1024;
+
+        private final List<Trade[]> chunks = new CopyOnWriteArrayList<>();
+        private volatile int size;
+
+        @Override
+        public Trade get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+            }
+            return chunks.get(index / CHUNK_SIZE)[index % CHUNK_SIZE];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean add(Trade trade) {
+            int index = size;
+            if (index == chunks.size() * CHUNK_SIZE) {
+                chunks.add(new Trade[CHUNK_SIZE]);
+            }
+            trade.index = index;
+            chunks.get(index / CHUNK_SIZE)[index % CHUNK_SIZE] = trade;
+            size = index + 1;
+            return true;
+        }
+
+        void removeLast(Trade trade) {
+            int index = size - 1;
+            if (index < 0 || get(index) != trade) {
+                throw new IllegalStateException("Trade to remove is not the last one");
+            }
+            // shrink first, so that concurrent readers never see the cleared slot within size
+            size = index;
+            chunks.get(index / CHUNK_SIZE)[index % CHUNK_SIZE] = null;
+        }
+
+        List<Trade> getTradesFrom(int timestamp) {
+            int to = size;
+            return Collections.unmodifiableList(subList(indexFrom(timestamp, to), to));
+        }
+
+        // index of the first trade made at or after the timestamp
+        int indexFrom(int timestamp) {
+            return indexFrom(timestamp, size);
+        }
+
+        private int indexFrom(int timestamp, int to) {
+            int from = 0;
+            int high = to;
+            while (from < high) {
+                int middle = (from + high) >>> 1;
+                if (get(middle).getTimestamp() < timestamp) {
+                    from = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return from;
+        }
+
+    }
+
 }
@@ -2,6 +2,8 @@ package nxt;
 
 import nxt.util.Convert;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -49,14 +51,7 @@ final class TransactionDb {
     }
 
     static boolean hasTransaction(Long transactionId) {
-        try (Connection con = Db.getConnection();
-             PreparedStatement pstmt = con.prepareStatement("SELECT 1 FROM transaction WHERE id = ?")) {
-            pstmt.setLong(1, transactionId);
-            ResultSet rs = pstmt.executeQuery();
-            return rs.next();
-        } catch (SQLException e) {
-            throw new RuntimeException(e.toString(), e);
-        }
+        return IdIndex.transactionIds.contains(transactionId);
     }
 
     static TransactionImpl loadTransaction(Connection con, ResultSet rs) throws NxtException.ValidationException {
@@ -79,13 +74,22 @@ final class TransactionDb {
             int height = rs.getInt("height");
             Long id = rs.getLong("id");
             Long senderId = rs.getLong("sender_id");
-            Attachment attachment = (Attachment)rs.getObject("attachment");
+            // attachments are stored as their canonical bytes, only a database not yet past DbVersion update 25
+            // still has them as serialized objects
+            Object attachmentData = rs.getObject("attachment");
             byte[] hash = rs.getBytes("hash");
             int blockTimestamp = rs.getInt("block_timestamp");
 
             TransactionType transactionType = TransactionType.findTransactionType(type, subtype);
-            return new TransactionImpl(transactionType, timestamp, deadline, senderPublicKey, recipientId, amount, fee,
-                    referencedTransactionId, signature, blockId, height, id, senderId, attachment, hash, blockTimestamp);
+            TransactionImpl transaction = new TransactionImpl(transactionType, timestamp, deadline, senderPublicKey, recipientId,
+                    amount, fee, referencedTransactionId, signature, blockId, height, id, senderId,
+                    attachmentData instanceof Attachment ? (Attachment)attachmentData : null, hash, blockTimestamp);
+            if (attachmentData instanceof byte[]) {
+                ByteBuffer buffer = ByteBuffer.wrap((byte[])attachmentData);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                transactionType.doLoadAttachment(transaction, buffer);
+            }
+            return transaction;
 
         } catch (SQLException e) {
             throw new RuntimeException(e.toString(), e);
@@ -109,13 +113,24 @@ final class TransactionDb {
         }
     }
 
+    private static final String INSERT_TRANSACTION = "INSERT INTO transaction (id, deadline, sender_public_key, recipient_id, "
+            + "amount, fee, referenced_transaction_id, height, block_id, signature, timestamp, type, subtype, sender_id, attachment, "
+            + "hash, block_timestamp) "
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String INSERT_ACCOUNT_TRANSACTION = "INSERT INTO account_transaction (account_id, height, "
+            + "timestamp, type, subtype, transaction_id) VALUES (?, ?, ?, ?, ?, ?)";
+
     static void saveTransactions(Connection con, List<TransactionImpl> transactions) {
+        if (transactions.isEmpty()) {
+            return;
+        }
         try {
-            for (Transaction transaction : transactions) {
-                try (PreparedStatement pstmt = con.prepareStatement("INSERT INTO transaction (id, deadline, sender_public_key, recipient_id, "
-                        + "amount, fee, referenced_transaction_id, height, block_id, signature, timestamp, type, subtype, sender_id, attachment, "
-                        + "hash, block_timestamp) "
-                        + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+            PreparedStatement pstmt = Db.prepareStatement(con, INSERT_TRANSACTION);
+            PreparedStatement pstmtAccount = Db.prepareStatement(con, INSERT_ACCOUNT_TRANSACTION);
+            try {
+                for (Transaction transaction : transactions) {
+                    IdIndex.transactionIds.add(transaction.getId());
                     int i = 0;
                     pstmt.setLong(++i, transaction.getId());
                     pstmt.setShort(++i, transaction.getDeadline());
@@ -136,18 +151,38 @@ final class TransactionDb {
                     pstmt.setByte(++i, transaction.getType().getSubtype());
                     pstmt.setLong(++i, transaction.getSenderId());
                     if (transaction.getAttachment() != null) {
-                        pstmt.setObject(++i, transaction.getAttachment());
+                        pstmt.setBytes(++i, transaction.getAttachment().getBytes());
                     } else {
-                        pstmt.setNull(++i, Types.JAVA_OBJECT);
+                        pstmt.setNull(++i, Types.VARBINARY);
                     }
                     pstmt.setBytes(++i, Convert.parseHexString(transaction.getHash()));
                     pstmt.setInt(++i, transaction.getBlockTimestamp());
-                    pstmt.executeUpdate();
+                    pstmt.addBatch();
+                    addAccountTransaction(pstmtAccount, transaction.getSenderId(), transaction);
+                    if (! transaction.getRecipientId().equals(transaction.getSenderId())) {
+                        addAccountTransaction(pstmtAccount, transaction.getRecipientId(), transaction);
+                    }
                 }
+                pstmt.executeBatch();
+                pstmtAccount.executeBatch();
+            } finally {
+                Db.releaseStatement(pstmt);
+                Db.releaseStatement(pstmtAccount);
             }
         } catch (SQLException e) {
             throw new RuntimeException(e.toString(), e);
         }
     }
 
+    private static void addAccountTransaction(PreparedStatement pstmt, Long accountId, Transaction transaction) throws SQLException {
+        int i = 0;
+        pstmt.setLong(++i, accountId);
+        pstmt.setInt(++i, transaction.getHeight());
+        pstmt.setInt(++i, transaction.getTimestamp());
+        pstmt.setByte(++i, transaction.getType().getType());
+        pstmt.setByte(++i, transaction.getType().getSubtype());
+        pstmt.setLong(++i, transaction.getId());
+        pstmt.addBatch();
+    }
+
 }
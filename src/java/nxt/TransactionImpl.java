@@ -7,12 +7,16 @@ import org.json.simple.JSONObject;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 final class TransactionImpl implements Transaction {
 
+    private static final byte[] NO_SIGNATURE = new byte[64];
+
     private final short deadline;
     private final byte[] senderPublicKey;
     private final Long recipientId;
@@ -32,6 +36,8 @@ final class TransactionImpl implements Transaction {
     private volatile String stringId = null;
     private volatile Long senderId;
     private volatile String hash;
+    private volatile boolean hasValidSignature = false;
+    private volatile byte[] bytes;
 
     TransactionImpl(TransactionType type, int timestamp, short deadline, byte[] senderPublicKey, Long recipientId,
                     int amount, int fee, Long referencedTransactionId, byte[] signature) throws NxtException.ValidationException {
@@ -155,6 +161,7 @@ final class TransactionImpl implements Transaction {
 
     void setAttachment(Attachment attachment) {
         this.attachment = attachment;
+        this.bytes = null;
     }
 
     @Override
@@ -163,7 +170,7 @@ final class TransactionImpl implements Transaction {
             if (signature == null) {
                 throw new IllegalStateException("Transaction is not signed yet");
             }
-            byte[] hash = Crypto.sha256().digest(getBytes());
+            byte[] hash = Crypto.sha256().digest(getCanonicalBytes());
             BigInteger bigInteger = new BigInteger(1, new byte[] {hash[7], hash[6], hash[5], hash[4], hash[3], hash[2], hash[1], hash[0]});
             id = bigInteger.longValue();
             stringId = bigInteger.toString();
@@ -230,24 +237,32 @@ final class TransactionImpl implements Transaction {
 
     @Override
     public byte[] getBytes() {
-
-        ByteBuffer buffer = ByteBuffer.allocate(getSize());
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        buffer.put(type.getType());
-        buffer.put(type.getSubtype());
-        buffer.putInt(timestamp);
-        buffer.putShort(deadline);
-        buffer.put(senderPublicKey);
-        buffer.putLong(Convert.nullToZero(recipientId));
-        buffer.putInt(amount);
-        buffer.putInt(fee);
-        buffer.putLong(Convert.nullToZero(referencedTransactionId));
-        buffer.put(signature != null ? signature : new byte[64]);
-        if (attachment != null) {
-            buffer.put(attachment.getBytes());
+        return getCanonicalBytes().clone();
+    }
+
+    // serialized only once and shared by all callers, must not be modified
+    byte[] getCanonicalBytes() {
+        byte[] result = bytes;
+        if (result == null) {
+            ByteBuffer buffer = ByteBuffer.allocate(getSize());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(type.getType());
+            buffer.put(type.getSubtype());
+            buffer.putInt(timestamp);
+            buffer.putShort(deadline);
+            buffer.put(senderPublicKey);
+            buffer.putLong(Convert.nullToZero(recipientId));
+            buffer.putInt(amount);
+            buffer.putInt(fee);
+            buffer.putLong(Convert.nullToZero(referencedTransactionId));
+            buffer.put(signature != null ? signature : NO_SIGNATURE);
+            if (attachment != null) {
+                buffer.put(attachment.getBytes());
+            }
+            result = buffer.array();
+            bytes = result;
         }
-        return buffer.array();
-
+        return result;
     }
 
     @Override
@@ -277,17 +292,19 @@ final class TransactionImpl implements Transaction {
         if (signature != null) {
             throw new IllegalStateException("Transaction already signed");
         }
-        signature = Crypto.sign(getBytes(), secretPhrase);
+        signature = Crypto.sign(getCanonicalBytes(), secretPhrase);
+        bytes = null;
     }
 
     @Override
     public String getHash() {
         if (hash == null) {
-            byte[] data = getBytes();
-            for (int i = 64; i < 128; i++) {
-                data[i] = 0;
-            }
-            hash = Convert.toHexString(Crypto.sha256().digest(data));
+            byte[] data = getCanonicalBytes();
+            MessageDigest digest = Crypto.sha256();
+            digest.update(data, 0, 64);
+            digest.update(NO_SIGNATURE);
+            digest.update(data, 128, data.length - 128);
+            hash = Convert.toHexString(digest.digest());
         }
         return hash;
     }
@@ -307,11 +324,48 @@ final class TransactionImpl implements Transaction {
         if (account == null) {
             return false;
         }
+        return verifySignature() && account.setOrVerify(senderPublicKey, this.getHeight());
+    }
+
+    // stateless part of verify(), safe to call from any thread, only a successful result is remembered
+    boolean verifySignature() {
+        if (! hasValidSignature) {
+            hasValidSignature = Crypto.verify(signature, getUnsignedBytes(), senderPublicKey);
+        }
+        return hasValidSignature;
+    }
+
+    // verifySignature() of all the transactions as one batch, result[i] is the result for the i-th transaction
+    static boolean[] verifySignatures(List<TransactionImpl> transactions) {
+        byte[][] signatures = new byte[transactions.size()][];
+        byte[][] messages = new byte[transactions.size()][];
+        byte[][] publicKeys = new byte[transactions.size()][];
+        for (int i = 0; i < signatures.length; i++) {
+            TransactionImpl transaction = transactions.get(i);
+            signatures[i] = transaction.signature;
+            messages[i] = transaction.getUnsignedBytes();
+            publicKeys[i] = transaction.senderPublicKey;
+        }
+        boolean[] result = Crypto.verifyBatch(signatures, messages, publicKeys);
+        for (int i = 0; i < result.length; i++) {
+            if (result[i]) {
+                transactions.get(i).signatureVerified();
+            }
+        }
+        return result;
+    }
+
+    // to be called only after the signature has been verified against getUnsignedBytes()
+    void signatureVerified() {
+        hasValidSignature = true;
+    }
+
+    byte[] getUnsignedBytes() {
         byte[] data = getBytes();
         for (int i = 64; i < 128; i++) {
             data[i] = 0;
         }
-        return Crypto.verify(signature, data, senderPublicKey) && account.setOrVerify(senderPublicKey, this.getHeight());
+        return data;
     }
 
     void validateAttachment() throws NxtException.ValidationException {
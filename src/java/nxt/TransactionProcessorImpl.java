@@ -1,5 +1,6 @@
 package nxt;
 
+import nxt.peer.BinaryMessage;
 import nxt.peer.Peer;
 import nxt.peer.Peers;
 import nxt.util.Convert;
@@ -12,17 +13,25 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONStreamAware;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 final class TransactionProcessorImpl implements TransactionProcessor {
 
@@ -32,17 +41,45 @@ final class TransactionProcessorImpl implements TransactionProcessor {
         return instance;
     }
 
+    private static final int maxUnconfirmedTransactions = Nxt.getIntProperty("nxt.maxUnconfirmedTransactions");
+    private static final int maxUnconfirmedTransactionsPerSender = Nxt.getIntProperty("nxt.maxUnconfirmedTransactionsPerSender");
+
+    // highest fee per byte first, then oldest first, only uses fields which don't change while unconfirmed
+    static final Comparator<TransactionImpl> priorityComparator = new Comparator<TransactionImpl>() {
+        @Override
+        public int compare(TransactionImpl t1, TransactionImpl t2) {
+            long fee1 = (long)t1.getFee() * t2.getSize();
+            long fee2 = (long)t2.getFee() * t1.getSize();
+            if (fee1 != fee2) {
+                return fee1 > fee2 ? -1 : 1;
+            }
+            if (t1.getTimestamp() != t2.getTimestamp()) {
+                return t1.getTimestamp() < t2.getTimestamp() ? -1 : 1;
+            }
+            return t1.getId().compareTo(t2.getId());
+        }
+    };
+
     private final ConcurrentMap<Long, TransactionImpl> doubleSpendingTransactions = new ConcurrentHashMap<>();
+    // in the order added, for evicting the oldest once full, only modified while holding the blockchain lock
+    private final Deque<Long> doubleSpendingTransactionIds = new ArrayDeque<>();
     private final ConcurrentMap<Long, TransactionImpl> unconfirmedTransactions = new ConcurrentHashMap<>();
     private final ConcurrentMap<String, TransactionImpl> unconfirmedTransactionHashes = new ConcurrentHashMap<>();
     private final Collection<TransactionImpl> allUnconfirmedTransactions = Collections.unmodifiableCollection(unconfirmedTransactions.values());
+    private final ConcurrentSkipListSet<TransactionImpl> sortedUnconfirmedTransactions = new ConcurrentSkipListSet<>(priorityComparator);
+    private final Collection<TransactionImpl> allSortedUnconfirmedTransactions = Collections.unmodifiableCollection(sortedUnconfirmedTransactions);
+    // only modified while holding the blockchain lock
+    private final Map<Long, Integer> unconfirmedTransactionCounts = new HashMap<>();
     private final ConcurrentMap<Long, TransactionImpl> nonBroadcastedTransactions = new ConcurrentHashMap<>();
     private static class TransactionHashInfo {
         private final Long transactionId;
         private final int expiration;
         private TransactionHashInfo(Transaction transaction) {
-            this.transactionId = transaction.getId();
-            this.expiration = transaction.getExpiration();
+            this(transaction.getId(), transaction.getExpiration());
+        }
+        private TransactionHashInfo(Long transactionId, int expiration) {
+            this.transactionId = transactionId;
+            this.expiration = expiration;
         }
     }
     private final ConcurrentMap<String, TransactionHashInfo> transactionHashes = new ConcurrentHashMap<>();
@@ -57,15 +94,24 @@ final class TransactionProcessorImpl implements TransactionProcessor {
                 try {
 
                     int curTime = Convert.getEpochTime();
-                    List<Transaction> removedUnconfirmedTransactions = new ArrayList<>();
+                    List<TransactionImpl> expiredTransactions = new ArrayList<>();
+                    for (TransactionImpl transaction : unconfirmedTransactions.values()) {
+                        if (transaction.getExpiration() < curTime) {
+                            expiredTransactions.add(transaction);
+                        }
+                    }
+                    if (expiredTransactions.isEmpty()) {
+                        return;
+                    }
 
+                    List<Transaction> removedUnconfirmedTransactions = new ArrayList<>();
+                    long waitStart = System.nanoTime();
                     synchronized (BlockchainImpl.getInstance()) {
-                        Iterator<TransactionImpl> iterator = unconfirmedTransactions.values().iterator();
-                        while (iterator.hasNext()) {
-                            TransactionImpl transaction = iterator.next();
-                            if (transaction.getExpiration() < curTime) {
-                                iterator.remove();
-                                unconfirmedTransactionHashes.remove(transaction.getHash());
+                        LockMetrics.acquired(LockMetrics.Section.REMOVE_EXPIRED_TRANSACTIONS, waitStart);
+                        for (TransactionImpl transaction : expiredTransactions) {
+                            // may have been included in a block meanwhile
+                            if (unconfirmedTransactions.get(transaction.getId()) == transaction) {
+                                removeUnconfirmedTransaction(transaction.getId());
                                 transaction.undoUnconfirmed();
                                 removedUnconfirmedTransactions.add(transaction);
                             }
@@ -96,22 +142,19 @@ final class TransactionProcessorImpl implements TransactionProcessor {
 
             try {
                 try {
-                    JSONArray transactionsData = new JSONArray();
+                    List<Transaction> transactionList = new ArrayList<>();
 
                     int curTime = Convert.getEpochTime();
                     for (TransactionImpl transaction : nonBroadcastedTransactions.values()) {
                         if (TransactionDb.hasTransaction(transaction.getId()) || transaction.getExpiration() < curTime) {
                             nonBroadcastedTransactions.remove(transaction.getId());
                         } else if (transaction.getTimestamp() < curTime - 30) {
-                            transactionsData.add(transaction.getJSONObject());
+                            transactionList.add(transaction);
                         }
                     }
 
-                    if (transactionsData.size() > 0) {
-                        JSONObject peerRequest = new JSONObject();
-                        peerRequest.put("requestType", "processTransactions");
-                        peerRequest.put("transactions", transactionsData);
-                        Peers.sendToSomePeers(peerRequest);
+                    if (transactionList.size() > 0) {
+                        sendToPeers(transactionList);
                     }
 
                 } catch (Exception e) {
@@ -186,6 +229,11 @@ final class TransactionProcessorImpl implements TransactionProcessor {
         return allUnconfirmedTransactions;
     }
 
+    // in the order they should be included in a block
+    Collection<TransactionImpl> getSortedUnconfirmedTransactions() {
+        return allSortedUnconfirmedTransactions;
+    }
+
     @Override
     public Transaction getUnconfirmedTransaction(Long transactionId) {
         return unconfirmedTransactions.get(transactionId);
@@ -214,11 +262,15 @@ final class TransactionProcessorImpl implements TransactionProcessor {
 
     @Override
     public Transaction parseTransaction(byte[] bytes) throws NxtException.ValidationException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return parseTransaction(buffer);
+    }
 
-        try {
-            ByteBuffer buffer = ByteBuffer.wrap(bytes);
-            buffer.order(ByteOrder.LITTLE_ENDIAN);
+    // reads the transaction from the current position of the buffer, which must be in little-endian order
+    TransactionImpl parseTransaction(ByteBuffer buffer) throws NxtException.ValidationException {
 
+        try {
             byte type = buffer.get();
             byte subtype = buffer.get();
             int timestamp = buffer.getInt();
@@ -295,12 +347,34 @@ final class TransactionProcessorImpl implements TransactionProcessor {
     void clear() {
         unconfirmedTransactions.clear();
         unconfirmedTransactionHashes.clear();
+        sortedUnconfirmedTransactions.clear();
+        unconfirmedTransactionCounts.clear();
         doubleSpendingTransactions.clear();
+        doubleSpendingTransactionIds.clear();
         nonBroadcastedTransactions.clear();
         transactionHashes.clear();
     }
 
+    void writeSnapshot(DataOutputStream out) throws IOException {
+        List<Map.Entry<String, TransactionHashInfo>> hashList = new ArrayList<>(transactionHashes.entrySet());
+        out.writeInt(hashList.size());
+        for (Map.Entry<String, TransactionHashInfo> entry : hashList) {
+            Snapshot.writeBytes(out, Convert.parseHexString(entry.getKey()));
+            out.writeLong(entry.getValue().transactionId);
+            out.writeInt(entry.getValue().expiration);
+        }
+    }
+
+    void readSnapshot(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String hash = Convert.toHexString(Snapshot.readBytes(in));
+            transactionHashes.put(hash, new TransactionHashInfo(in.readLong(), in.readInt()));
+        }
+    }
+
     void apply(BlockImpl block) {
+        StateJournal.begin();
         block.apply();
         for (TransactionImpl transaction : block.getTransactions()) {
             if (! unconfirmedTransactions.containsKey(transaction.getId())) {
@@ -309,6 +383,7 @@ final class TransactionProcessorImpl implements TransactionProcessor {
             transaction.apply();
             transactionHashes.put(transaction.getHash(), new TransactionHashInfo(transaction));
         }
+        StateJournal.commit(block);
         purgeExpiredHashes(block.getTimestamp());
     }
 
@@ -320,11 +395,12 @@ final class TransactionProcessorImpl implements TransactionProcessor {
             if (transactionHashInfo != null && transactionHashInfo.transactionId.equals(transaction.getId())) {
                 transactionHashes.remove(transaction.getHash());
             }
-            unconfirmedTransactions.put(transaction.getId(), transaction);
-            unconfirmedTransactionHashes.put(transaction.getHash(), transaction);
+            // not subject to the pool limits, these were accepted once already
+            addUnconfirmedTransaction(transaction);
             transaction.undo();
             addedUnconfirmedTransactions.add(transaction);
         }
+        StateJournal.undo(block);
         if (addedUnconfirmedTransactions.size() > 0) {
             transactionListeners.notify(addedUnconfirmedTransactions, TransactionProcessor.Event.ADDED_UNCONFIRMED_TRANSACTIONS);
         }
@@ -348,9 +424,8 @@ final class TransactionProcessorImpl implements TransactionProcessor {
                     }
                 }
             }
-            TransactionImpl removedUnconfirmed = unconfirmedTransactions.remove(duplicateTransaction.getId());
+            TransactionImpl removedUnconfirmed = removeUnconfirmedTransaction(duplicateTransaction.getId());
             if (removedUnconfirmed != null) {
-                unconfirmedTransactionHashes.remove(removedUnconfirmed.getHash());
                 removedUnconfirmed.undoUnconfirmed();
                 transactionListeners.notify(Arrays.asList((Transaction)removedUnconfirmed), Event.REMOVED_UNCONFIRMED_TRANSACTIONS);
             }
@@ -364,9 +439,8 @@ final class TransactionProcessorImpl implements TransactionProcessor {
 
         for (Transaction transaction : block.getTransactions()) {
             addedConfirmedTransactions.add(transaction);
-            Transaction removedTransaction = unconfirmedTransactions.remove(transaction.getId());
+            Transaction removedTransaction = removeUnconfirmedTransaction(transaction.getId());
             if (removedTransaction != null) {
-                unconfirmedTransactionHashes.remove(transaction.getHash());
                 removedUnconfirmedTransactions.add(removedTransaction);
             }
             // TODO: Remove from double-spending transactions
@@ -388,6 +462,66 @@ final class TransactionProcessorImpl implements TransactionProcessor {
             transaction.undoUnconfirmed();
             iter.remove();
         }
+        unconfirmedTransactionHashes.clear();
+        sortedUnconfirmedTransactions.clear();
+        unconfirmedTransactionCounts.clear();
+    }
+
+    // to be called only while holding the blockchain lock
+    private void addUnconfirmedTransaction(TransactionImpl transaction) {
+        unconfirmedTransactions.put(transaction.getId(), transaction);
+        unconfirmedTransactionHashes.put(transaction.getHash(), transaction);
+        sortedUnconfirmedTransactions.add(transaction);
+        Integer count = unconfirmedTransactionCounts.get(transaction.getSenderId());
+        unconfirmedTransactionCounts.put(transaction.getSenderId(), count == null ? 1 : count + 1);
+    }
+
+    // to be called only while holding the blockchain lock
+    private TransactionImpl removeUnconfirmedTransaction(Long transactionId) {
+        TransactionImpl transaction = unconfirmedTransactions.remove(transactionId);
+        if (transaction != null) {
+            unconfirmedTransactionHashes.remove(transaction.getHash());
+            sortedUnconfirmedTransactions.remove(transaction);
+            Integer count = unconfirmedTransactionCounts.get(transaction.getSenderId());
+            if (count == null || count <= 1) {
+                unconfirmedTransactionCounts.remove(transaction.getSenderId());
+            } else {
+                unconfirmedTransactionCounts.put(transaction.getSenderId(), count - 1);
+            }
+        }
+        return transaction;
+    }
+
+    // Returns false if the transaction should be dropped, because its sender already has the maximum number of
+    // unconfirmed transactions, or because the pool is full of higher priority ones.
+    private boolean hasRoom(TransactionImpl transaction) {
+        Integer senderCount = unconfirmedTransactionCounts.get(transaction.getSenderId());
+        if (senderCount != null && senderCount >= maxUnconfirmedTransactionsPerSender) {
+            return false;
+        }
+        return unconfirmedTransactions.size() < maxUnconfirmedTransactions
+                || priorityComparator.compare(transaction, sortedUnconfirmedTransactions.last()) < 0;
+    }
+
+    // If the pool is full, evicts the lowest priority transaction, to be called only once the transaction taking its
+    // place has been applied, so that one which turns out to be a double spend can't evict anything.
+    private void makeRoom(List<Transaction> evictedTransactions) {
+        if (unconfirmedTransactions.size() < maxUnconfirmedTransactions) {
+            return;
+        }
+        TransactionImpl lowestPriorityTransaction = sortedUnconfirmedTransactions.last();
+        removeUnconfirmedTransaction(lowestPriorityTransaction.getId());
+        lowestPriorityTransaction.undoUnconfirmed();
+        evictedTransactions.add(lowestPriorityTransaction);
+    }
+
+    // keeps the most recent ones once full, so that a double spend received again is still recognized
+    private void addDoubleSpendingTransaction(TransactionImpl transaction) {
+        while (doubleSpendingTransactionIds.size() >= maxUnconfirmedTransactions) {
+            doubleSpendingTransactions.remove(doubleSpendingTransactionIds.removeFirst());
+        }
+        doubleSpendingTransactions.put(transaction.getId(), transaction);
+        doubleSpendingTransactionIds.addLast(transaction.getId());
     }
 
     private void purgeExpiredHashes(int blockTimestamp) {
@@ -399,11 +533,45 @@ final class TransactionProcessorImpl implements TransactionProcessor {
         }
     }
 
+    // in as many requests as needed to keep each within the size peers accept
+    private void sendToPeers(List<Transaction> transactions) {
+        int from = 0;
+        int length = 0;
+        for (int i = 0; i < transactions.size(); i++) {
+            int size = ((TransactionImpl) transactions.get(i)).getSize();
+            if (i > from && length + size > Peers.MAX_TRANSACTIONS_REQUEST_LENGTH) {
+                sendBatchToPeers(transactions.subList(from, i));
+                from = i;
+                length = 0;
+            }
+            length += size;
+        }
+        if (from < transactions.size()) {
+            sendBatchToPeers(transactions.subList(from, transactions.size()));
+        }
+    }
+
+    private void sendBatchToPeers(List<Transaction> transactions) {
+        JSONArray transactionsData = new JSONArray();
+        List<byte[]> transactionsBytes = new ArrayList<>();
+        for (Transaction transaction : transactions) {
+            transactionsData.add(transaction.getJSONObject());
+            transactionsBytes.add(transaction.getBytes());
+        }
+        JSONObject peerRequest = new JSONObject();
+        peerRequest.put("requestType", "processTransactions");
+        peerRequest.put("transactions", transactionsData);
+        JSONObject binaryPeerRequest = new JSONObject();
+        binaryPeerRequest.put("requestType", "processTransactions");
+        Peers.sendToSomePeers(BinaryMessage.request(binaryPeerRequest, "transactions", transactionsBytes, JSON.prepareRequest(peerRequest)));
+    }
+
     private void processPeerTransactions(JSONArray transactionsData, final boolean sendToPeers) {
         List<TransactionImpl> transactions = new ArrayList<>();
         for (Object transactionData : transactionsData) {
             try {
-                transactions.add(parseTransaction((JSONObject) transactionData));
+                transactions.add(transactionData instanceof byte[] ? (TransactionImpl) parseTransaction((byte[]) transactionData)
+                        : parseTransaction((JSONObject) transactionData));
             } catch (NxtException.ValidationException e) {
                 if (! (e instanceof TransactionType.NotYetEnabledException)) {
                     Logger.logDebugMessage("Dropping invalid transaction: " + e.getMessage());
@@ -417,27 +585,54 @@ final class TransactionProcessorImpl implements TransactionProcessor {
     }
 
     private List<Transaction> processTransactions(List<TransactionImpl> transactions, final boolean sendToPeers) {
-        JSONArray sendToPeersTransactionsData = new JSONArray();
+        List<Transaction> sendToPeersTransactions = new ArrayList<>();
         List<Transaction> addedUnconfirmedTransactions = new ArrayList<>();
         List<Transaction> addedDoubleSpendingTransactions = new ArrayList<>();
+        List<Transaction> evictedTransactions = new ArrayList<>();
 
+        // signature verification and the database lookups don't need the blockchain lock, only the account state
+        // checks and the balance changes do, so that incoming transactions hold up block processing as little as possible
+        List<TransactionImpl> newTransactions = new ArrayList<>();
         for (TransactionImpl transaction : transactions) {
-
             try {
-
                 int curTime = Convert.getEpochTime();
                 if (transaction.getTimestamp() > curTime + 15 || transaction.getExpiration() < curTime
                         || transaction.getDeadline() > 1440) {
                     continue;
                 }
+                Long id = transaction.getId();
+                if (unconfirmedTransactions.containsKey(id) || doubleSpendingTransactions.containsKey(id)
+                        || TransactionDb.hasTransaction(id)) {
+                    continue;
+                }
+                newTransactions.add(transaction);
+            } catch (RuntimeException e) {
+                Logger.logMessage("Error processing transaction", e);
+            }
+        }
+        boolean[] validSignatures = TransactionImpl.verifySignatures(newTransactions);
+        List<TransactionImpl> candidates = new ArrayList<>();
+        for (int i = 0; i < validSignatures.length; i++) {
+            if (validSignatures[i]) {
+                candidates.add(newTransactions.get(i));
+            }
+        }
+        if (candidates.isEmpty()) {
+            return addedUnconfirmedTransactions;
+        }
+
+        long waitStart = System.nanoTime();
+        synchronized (BlockchainImpl.getInstance()) {
+            LockMetrics.acquired(LockMetrics.Section.PROCESS_TRANSACTIONS, waitStart);
 
-                boolean doubleSpendingTransaction;
+            for (TransactionImpl transaction : candidates) {
 
-                synchronized (BlockchainImpl.getInstance()) {
+                try {
 
+                    // a block or another thread may have added the transaction since the checks above
                     Long id = transaction.getId();
-                    if (TransactionDb.hasTransaction(id) || unconfirmedTransactions.containsKey(id)
-                            || doubleSpendingTransactions.containsKey(id) || !transaction.verify()) {
+                    if (unconfirmedTransactions.containsKey(id) || doubleSpendingTransactions.containsKey(id)
+                            || TransactionDb.hasTransaction(id)) {
                         continue;
                     }
 
@@ -446,38 +641,48 @@ final class TransactionProcessorImpl implements TransactionProcessor {
                         continue;
                     }
 
-                    doubleSpendingTransaction = !transaction.applyUnconfirmed();
+                    // the signature is already known to be valid, this only sets or checks the sender public key
+                    if (! transaction.verify()) {
+                        continue;
+                    }
+
+                    if (! hasRoom(transaction)) {
+                        continue;
+                    }
+
+                    boolean doubleSpendingTransaction = !transaction.applyUnconfirmed();
 
                     if (doubleSpendingTransaction) {
-                        doubleSpendingTransactions.put(id, transaction);
+                        addDoubleSpendingTransaction(transaction);
                         addedDoubleSpendingTransactions.add(transaction);
                     } else {
+                        makeRoom(evictedTransactions);
                         if (sendToPeers) {
                             if (nonBroadcastedTransactions.containsKey(id)) {
                                 Logger.logDebugMessage("Received back transaction " + transaction.getStringId()
                                         + " that we generated, will not forward to peers");
                                 nonBroadcastedTransactions.remove(id);
                             } else {
-                                sendToPeersTransactionsData.add(transaction.getJSONObject());
+                                sendToPeersTransactions.add(transaction);
                             }
                         }
-                        unconfirmedTransactions.put(id, transaction);
-                        unconfirmedTransactionHashes.put(transaction.getHash(), transaction);
+                        addUnconfirmedTransaction(transaction);
                         addedUnconfirmedTransactions.add(transaction);
                     }
+
+                } catch (RuntimeException e) {
+                    Logger.logMessage("Error processing transaction", e);
                 }
 
-            } catch (RuntimeException e) {
-                Logger.logMessage("Error processing transaction", e);
             }
+        }
 
+        if (sendToPeersTransactions.size() > 0) {
+            sendToPeers(sendToPeersTransactions);
         }
 
-        if (sendToPeersTransactionsData.size() > 0) {
-            JSONObject peerRequest = new JSONObject();
-            peerRequest.put("requestType", "processTransactions");
-            peerRequest.put("transactions", sendToPeersTransactionsData);
-            Peers.sendToSomePeers(peerRequest);
+        if (evictedTransactions.size() > 0) {
+            transactionListeners.notify(evictedTransactions, Event.REMOVED_UNCONFIRMED_TRANSACTIONS);
         }
 
         if (addedUnconfirmedTransactions.size() > 0) {
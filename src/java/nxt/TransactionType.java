@@ -79,7 +79,13 @@ public abstract class TransactionType {
 
     public abstract byte getSubtype();
 
-    abstract void loadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException;
+    final void loadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {
+        doLoadAttachment(transaction, buffer);
+        validateAttachment(transaction);
+    }
+
+    // parses the attachment bytes without validating them against the current blockchain state
+    abstract void doLoadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException;
 
     abstract void loadAttachment(TransactionImpl transaction, JSONObject attachmentData) throws NxtException.ValidationException;
 
@@ -123,9 +129,40 @@ public abstract class TransactionType {
 
     abstract void undoAttachment(Transaction transaction, Account senderAccount, Account recipientAccount) throws UndoNotSupportedException;
 
+    // for state changes which only the StateJournal of the transaction's block can revert
+    static void checkJournal(Transaction transaction, String message) throws UndoNotSupportedException {
+        if (! StateJournal.isRecorded(transaction.getBlockId())) {
+            throw new UndoNotSupportedException(transaction, message);
+        }
+    }
+
     abstract void updateTotals(Transaction transaction, Map<Long, Long> accumulatedAmounts,
                                Map<Long, Map<Long, Long>> accumulatedAssetQuantities, Long accumulatedAmount);
 
+    // accumulates the amounts and asset quantities reserved by applyUnconfirmed
+    final void updateUnconfirmedTotals(Transaction transaction, Map<Long, Long> unconfirmedAmounts,
+                                       Map<Long, Map<Long, Long>> unconfirmedAssetQuantities) {
+        addToTotal(unconfirmedAmounts, transaction.getSenderId(), (transaction.getAmount() + transaction.getFee()) * 100L);
+        updateAttachmentUnconfirmedTotals(transaction, unconfirmedAmounts, unconfirmedAssetQuantities);
+    }
+
+    void updateAttachmentUnconfirmedTotals(Transaction transaction, Map<Long, Long> unconfirmedAmounts,
+                                           Map<Long, Map<Long, Long>> unconfirmedAssetQuantities) {}
+
+    private static void addToTotal(Map<Long, Long> totals, Long key, long amount) {
+        Long total = totals.get(key);
+        totals.put(key, total == null ? amount : total + amount);
+    }
+
+    private static void addToAssetTotal(Map<Long, Map<Long, Long>> assetTotals, Long accountId, Long assetId, long quantity) {
+        Map<Long, Long> accountAssetTotals = assetTotals.get(accountId);
+        if (accountAssetTotals == null) {
+            accountAssetTotals = new HashMap<>();
+            assetTotals.put(accountId, accountAssetTotals);
+        }
+        addToTotal(accountAssetTotals, assetId, quantity);
+    }
+
     boolean isDuplicate(Transaction transaction, Map<TransactionType, Set<String>> duplicates) {
         return false;
     }
@@ -147,9 +184,7 @@ public abstract class TransactionType {
             }
 
             @Override
-            final void loadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {
-                validateAttachment(transaction);
-            }
+            final void doLoadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {}
 
             @Override
             final void loadAttachment(TransactionImpl transaction, JSONObject attachmentData) throws NxtException.ValidationException {
@@ -217,7 +252,7 @@ public abstract class TransactionType {
             }
 
             @Override
-            void loadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {
+            void doLoadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {
                 int messageLength = buffer.getInt();
                 if (messageLength > Constants.MAX_ARBITRARY_MESSAGE_LENGTH) {
                     throw new NxtException.ValidationException("Invalid arbitrary message length: " + messageLength);
@@ -225,7 +260,6 @@ public abstract class TransactionType {
                 byte[] message = new byte[messageLength];
                 buffer.get(message);
                 transaction.setAttachment(new Attachment.MessagingArbitraryMessage(message));
-                validateAttachment(transaction);
             }
 
             @Override
@@ -262,7 +296,7 @@ public abstract class TransactionType {
             }
 
             @Override
-            void loadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {
+            void doLoadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {
                 int aliasLength = buffer.get();
                 if (aliasLength > Constants.MAX_ALIAS_LENGTH * 3) {
                     throw new NxtException.ValidationException("Max alias length exceeded");
@@ -278,7 +312,6 @@ public abstract class TransactionType {
                 try {
                     transaction.setAttachment(new Attachment.MessagingAliasAssignment(new String(alias, "UTF-8"),
                             new String(uri, "UTF-8")));
-                    validateAttachment(transaction);
                 } catch (RuntimeException|UnsupportedEncodingException e) {
                     throw new NxtException.ValidationException(e.toString());
                 }
@@ -300,8 +333,8 @@ public abstract class TransactionType {
 
             @Override
             void undoAttachment(Transaction transaction, Account senderAccount, Account recipientAccount) throws UndoNotSupportedException {
-                // can't tell whether Alias existed before and what was its previous uri
-                throw new UndoNotSupportedException(transaction, "Reversal of alias assignment not supported");
+                // can't tell whether Alias existed before and what was its previous uri, unless the journal recorded it
+                checkJournal(transaction, "Reversal of alias assignment not supported");
             }
 
             @Override
@@ -347,7 +380,7 @@ public abstract class TransactionType {
             }
 
             @Override
-            void loadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {
+            void doLoadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {
 
                 String pollName, pollDescription;
                 String[] pollOptions;
@@ -407,7 +440,6 @@ public abstract class TransactionType {
 
                 transaction.setAttachment(new Attachment.MessagingPollCreation(pollName, pollDescription, pollOptions,
                         minNumberOfOptions, maxNumberOfOptions, optionsAreBinary));
-                validateAttachment(transaction);
 
             }
 
@@ -440,7 +472,7 @@ public abstract class TransactionType {
 
             @Override
             void undoAttachment(Transaction transaction, Account senderAccount, Account recipientAccount) throws UndoNotSupportedException {
-                throw new UndoNotSupportedException(transaction, "Reversal of poll creation not supported");
+                checkJournal(transaction, "Reversal of poll creation not supported");
             }
 
             @Override
@@ -470,7 +502,7 @@ public abstract class TransactionType {
             }
 
             @Override
-            void loadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {
+            void doLoadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {
 
                 Long pollId;
                 byte[] pollVote;
@@ -488,7 +520,6 @@ public abstract class TransactionType {
                 }
 
                 transaction.setAttachment(new Attachment.MessagingVoteCasting(pollId, pollVote));
-                validateAttachment(transaction);
 
             }
 
@@ -519,7 +550,7 @@ public abstract class TransactionType {
 
             @Override
             void undoAttachment(Transaction transaction, Account senderAccount, Account recipientAccount) throws UndoNotSupportedException {
-                throw new UndoNotSupportedException(transaction, "Reversal of vote casting not supported");
+                checkJournal(transaction, "Reversal of vote casting not supported");
             }
 
             @Override
@@ -556,7 +587,7 @@ public abstract class TransactionType {
             }
 
             @Override
-            void loadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {
+            void doLoadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {
                 int nameLength = buffer.get();
                 if (nameLength > 3 * Constants.MAX_ASSET_NAME_LENGTH) {
                     throw new NxtException.ValidationException("Max asset name length exceeded");
@@ -573,7 +604,6 @@ public abstract class TransactionType {
                 try {
                     transaction.setAttachment(new Attachment.ColoredCoinsAssetIssuance(new String(name, "UTF-8").intern(),
                             new String(description, "UTF-8").intern(), quantity));
-                    validateAttachment(transaction);
                 } catch (RuntimeException|UnsupportedEncodingException e) {
                     throw new NxtException.ValidationException("Error in asset issuance", e);
                 }
@@ -647,7 +677,7 @@ public abstract class TransactionType {
             }
 
             @Override
-            void loadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {
+            void doLoadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {
                 Long assetId = Convert.zeroToNull(buffer.getLong());
                 int quantity = buffer.getInt();
                 int commentLength = buffer.getShort();
@@ -658,7 +688,6 @@ public abstract class TransactionType {
                 buffer.get(comment);
                 try {
                     transaction.setAttachment(new Attachment.ColoredCoinsAssetTransfer(assetId, quantity, new String(comment, "UTF-8").intern()));
-                    validateAttachment(transaction);
                 } catch (UnsupportedEncodingException e) {
                     throw new NxtException.ValidationException("Error in asset transfer", e);
                 }
@@ -704,6 +733,13 @@ public abstract class TransactionType {
                 senderAccount.addToUnconfirmedAssetBalance(attachment.getAssetId(), attachment.getQuantity());
             }
 
+            @Override
+            void updateAttachmentUnconfirmedTotals(Transaction transaction, Map<Long, Long> unconfirmedAmounts,
+                                                   Map<Long, Map<Long, Long>> unconfirmedAssetQuantities) {
+                Attachment.ColoredCoinsAssetTransfer attachment = (Attachment.ColoredCoinsAssetTransfer)transaction.getAttachment();
+                addToAssetTotal(unconfirmedAssetQuantities, transaction.getSenderId(), attachment.getAssetId(), attachment.getQuantity());
+            }
+
 
             @Override
             void updateTotals(Transaction transaction, Map<Long, Long> accumulatedAmounts,
@@ -740,12 +776,11 @@ public abstract class TransactionType {
             abstract Attachment.ColoredCoinsOrderPlacement makeAttachment(Long asset, int quantity, long price);
 
             @Override
-            final void loadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {
+            final void doLoadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {
                 Long assetId = Convert.zeroToNull(buffer.getLong());
                 int quantity = buffer.getInt();
                 long price = buffer.getLong();
                 transaction.setAttachment(makeAttachment(assetId, quantity, price));
-                validateAttachment(transaction);
             }
 
             @Override
@@ -804,6 +839,10 @@ public abstract class TransactionType {
 
             @Override
             void undoAttachment(Transaction transaction, Account senderAccount, Account recipientAccount) throws UndoNotSupportedException {
+                if (StateJournal.isRecorded(transaction.getBlockId())) {
+                    // the journal removes the order and reverts any trades it took part in
+                    return;
+                }
                 Attachment.ColoredCoinsAskOrderPlacement attachment = (Attachment.ColoredCoinsAskOrderPlacement)transaction.getAttachment();
                 Order.Ask askOrder = Order.Ask.removeOrder(transaction.getId());
                 if (askOrder == null || askOrder.getQuantity() != attachment.getQuantity() || ! askOrder.getAssetId().equals(attachment.getAssetId())) {
@@ -818,6 +857,13 @@ public abstract class TransactionType {
                 senderAccount.addToUnconfirmedAssetBalance(attachment.getAssetId(), attachment.getQuantity());
             }
 
+            @Override
+            void updateAttachmentUnconfirmedTotals(Transaction transaction, Map<Long, Long> unconfirmedAmounts,
+                                                   Map<Long, Map<Long, Long>> unconfirmedAssetQuantities) {
+                Attachment.ColoredCoinsAskOrderPlacement attachment = (Attachment.ColoredCoinsAskOrderPlacement)transaction.getAttachment();
+                addToAssetTotal(unconfirmedAssetQuantities, transaction.getSenderId(), attachment.getAssetId(), attachment.getQuantity());
+            }
+
             @Override
             void updateTotals(Transaction transaction, Map<Long, Long> accumulatedAmounts,
                              Map<Long, Map<Long, Long>> accumulatedAssetQuantities, Long accumulatedAmount) {
@@ -867,6 +913,10 @@ public abstract class TransactionType {
 
             @Override
             void undoAttachment(Transaction transaction, Account senderAccount, Account recipientAccount) throws UndoNotSupportedException {
+                if (StateJournal.isRecorded(transaction.getBlockId())) {
+                    // the journal removes the order and reverts any trades it took part in
+                    return;
+                }
                 Attachment.ColoredCoinsBidOrderPlacement attachment = (Attachment.ColoredCoinsBidOrderPlacement)transaction.getAttachment();
                 Order.Bid bidOrder = Order.Bid.removeOrder(transaction.getId());
                 if (bidOrder == null || bidOrder.getQuantity() != attachment.getQuantity() || ! bidOrder.getAssetId().equals(attachment.getAssetId())) {
@@ -881,6 +931,13 @@ public abstract class TransactionType {
                 senderAccount.addToUnconfirmedBalance(attachment.getQuantity() * attachment.getPrice());
             }
 
+            @Override
+            void updateAttachmentUnconfirmedTotals(Transaction transaction, Map<Long, Long> unconfirmedAmounts,
+                                                   Map<Long, Map<Long, Long>> unconfirmedAssetQuantities) {
+                Attachment.ColoredCoinsBidOrderPlacement attachment = (Attachment.ColoredCoinsBidOrderPlacement) transaction.getAttachment();
+                addToTotal(unconfirmedAmounts, transaction.getSenderId(), attachment.getQuantity() * attachment.getPrice());
+            }
+
             @Override
             void updateTotals(Transaction transaction, Map<Long, Long> accumulatedAmounts,
                              Map<Long, Map<Long, Long>> accumulatedAssetQuantities, Long accumulatedAmount) {
@@ -918,7 +975,7 @@ public abstract class TransactionType {
 
             @Override
             final void undoAttachment(Transaction transaction, Account senderAccount, Account recipientAccount) throws UndoNotSupportedException {
-                throw new UndoNotSupportedException(transaction, "Reversal of order cancellation not supported");
+                checkJournal(transaction, "Reversal of order cancellation not supported");
             }
 
             @Override
@@ -934,9 +991,8 @@ public abstract class TransactionType {
             }
 
             @Override
-            void loadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {
+            void doLoadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {
                 transaction.setAttachment(new Attachment.ColoredCoinsAskOrderCancellation(Convert.zeroToNull(buffer.getLong())));
-                validateAttachment(transaction);
             }
 
             @Override
@@ -948,9 +1004,17 @@ public abstract class TransactionType {
             @Override
             void applyAttachment(Transaction transaction, Account senderAccount, Account recipientAccount) {
                 Attachment.ColoredCoinsAskOrderCancellation attachment = (Attachment.ColoredCoinsAskOrderCancellation)transaction.getAttachment();
-                Order order = Order.Ask.removeOrder(attachment.getOrderId());
+                final Order order = Order.Ask.removeOrder(attachment.getOrderId());
                 if (order != null) {
-                    senderAccount.addToUnconfirmedAssetBalance(order.getAssetId(), order.getQuantity());
+                    final Account account = senderAccount;
+                    final int quantity = order.getQuantity();
+                    account.addToUnconfirmedAssetBalance(order.getAssetId(), quantity);
+                    StateJournal.record(new Runnable() {
+                        @Override
+                        public void run() {
+                            account.addToUnconfirmedAssetBalance(order.getAssetId(), - quantity);
+                        }
+                    });
                 }
             }
 
@@ -964,9 +1028,8 @@ public abstract class TransactionType {
             }
 
             @Override
-            void loadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {
+            void doLoadAttachment(TransactionImpl transaction, ByteBuffer buffer) throws NxtException.ValidationException {
                 transaction.setAttachment(new Attachment.ColoredCoinsBidOrderCancellation(Convert.zeroToNull(buffer.getLong())));
-                validateAttachment(transaction);
             }
 
             @Override
@@ -978,9 +1041,17 @@ public abstract class TransactionType {
             @Override
             void applyAttachment(Transaction transaction, Account senderAccount, Account recipientAccount) {
                 Attachment.ColoredCoinsBidOrderCancellation attachment = (Attachment.ColoredCoinsBidOrderCancellation)transaction.getAttachment();
-                Order order = Order.Bid.removeOrder(attachment.getOrderId());
+                final Order order = Order.Bid.removeOrder(attachment.getOrderId());
                 if (order != null) {
-                    senderAccount.addToUnconfirmedBalance(order.getQuantity() * order.getPrice());
+                    final Account account = senderAccount;
+                    final long amount = order.getQuantity() * order.getPrice();
+                    account.addToUnconfirmedBalance(amount);
+                    StateJournal.record(new Runnable() {
+                        @Override
+                        public void run() {
+                            account.addToUnconfirmedBalance(- amount);
+                        }
+                    });
                 }
             }
 
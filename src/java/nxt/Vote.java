@@ -2,7 +2,12 @@ package nxt;
 
 import nxt.util.Convert;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -25,11 +30,17 @@ public final class Vote {
 
     }
 
-    static Vote addVote(Long id, Long pollId, Long voterId, byte[] vote) {
+    static Vote addVote(final Long id, Long pollId, Long voterId, byte[] vote) {
         Vote voteData = new Vote(id, pollId, voterId, vote);
         if (votes.putIfAbsent(id, voteData) != null) {
             throw new IllegalStateException("Vote with id " + Convert.toUnsignedLong(id) + " already exists");
         }
+        StateJournal.record(new Runnable() {
+            @Override
+            public void run() {
+                votes.remove(id);
+            }
+        });
         return voteData;
     }
 
@@ -41,6 +52,24 @@ public final class Vote {
         votes.clear();
     }
 
+    static void writeSnapshot(DataOutputStream out) throws IOException {
+        List<Vote> voteList = new ArrayList<>(votes.values());
+        out.writeInt(voteList.size());
+        for (Vote vote : voteList) {
+            out.writeLong(vote.id);
+            out.writeLong(vote.pollId);
+            out.writeLong(vote.voterId);
+            Snapshot.writeBytes(out, vote.vote);
+        }
+    }
+
+    static void readSnapshot(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            addVote(in.readLong(), in.readLong(), in.readLong(), Snapshot.readBytes(in));
+        }
+    }
+
     public static Vote getVote(Long id) {
         return votes.get(id);
     }
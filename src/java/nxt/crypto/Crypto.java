@@ -6,7 +6,11 @@ import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 
 public final class Crypto {
 
@@ -17,6 +21,18 @@ public final class Crypto {
         }
     };
 
+    private static final ThreadLocal<MessageDigest> verifyDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return sha256();
+        }
+    };
+
+    // signatures verified by one task of verifyBatch, to keep the task overhead small relative to the curve operations
+    private static final int BATCH_TASK_SIZE = 16;
+
+    private static final ForkJoinPool verificationPool = new ForkJoinPool();
+
     private Crypto() {} //never
 
     public static MessageDigest getMessageDigest(String algorithm) {
@@ -94,9 +110,10 @@ public final class Crypto {
             System.arraycopy(signature, 0, v, 0, 32);
             byte[] h = new byte[32];
             System.arraycopy(signature, 32, h, 0, 32);
-            Curve25519.verify(Y, v, h, publicKey);
+            Curve25519.verify(Y, v, h, PublicKeyCache.getVerifyKey(publicKey));
 
-            MessageDigest digest = Crypto.sha256();
+            MessageDigest digest = verifyDigest.get();
+            digest.reset();
             byte[] m = digest.digest(message);
             digest.update(m);
             byte[] h2 = digest.digest(Y);
@@ -110,6 +127,36 @@ public final class Crypto {
 
     }
 
+    // verifies the signatures in parallel on all available processors, result[i] is the result of verifying signatures[i]
+    public static boolean[] verifyBatch(final byte[][] signatures, final byte[][] messages, final byte[][] publicKeys) {
+        if (signatures.length != messages.length || signatures.length != publicKeys.length) {
+            throw new IllegalArgumentException("Signature, message and public key counts don't match");
+        }
+        final boolean[] result = new boolean[signatures.length];
+        if (signatures.length <= BATCH_TASK_SIZE) {
+            for (int i = 0; i < signatures.length; i++) {
+                result[i] = verify(signatures[i], messages[i], publicKeys[i]);
+            }
+            return result;
+        }
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int start = 0; start < signatures.length; start += BATCH_TASK_SIZE) {
+            final int from = start;
+            final int to = Math.min(start + BATCH_TASK_SIZE, signatures.length);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int i = from; i < to; i++) {
+                        result[i] = verify(signatures[i], messages[i], publicKeys[i]);
+                    }
+                    return null;
+                }
+            });
+        }
+        verificationPool.invokeAll(tasks);
+        return result;
+    }
+
     private static void xorProcess(byte[] data, int position, int length, byte[] myPrivateKey, byte[] theirPublicKey, byte[] nonce) {
 
         byte[] seed = new byte[32];
@@ -161,11 +161,61 @@ final class Curve25519 {
      *   P  [in]  public key
      */
     public static void verify(byte[] Y, byte[] v, byte[] h, byte[] P) {
+        verify(Y, v, h, new VerifyKey(P));
+    }
+
+    /* The part of verify() depending only on the public key, can be reused
+     * for any number of signatures by the same key, from any thread. */
+    static final class VerifyKey {
+
+        private final long10[] p = new long10[]{new long10(),new long10()};
+        private final long10[] s = new long10[]{new long10(),new long10()};
+
+        VerifyKey(byte[] P) {
+            long10[]
+                    t1=new long10[]{new long10(),new long10()},
+                    t2=new long10[]{new long10(),new long10()};
+            int j;
+
+            /* set p[0] to G and p[1] to P  */
+
+            set(p[0], 9);
+            unpack(p[1], P);
+
+            /* set s[0] to P+G and s[1] to P-G  */
+
+            /* s[0] = (Py^2 + Gy^2 - 2 Py Gy)/(Px - Gx)^2 - Px - Gx - 486662  */
+            /* s[1] = (Py^2 + Gy^2 + 2 Py Gy)/(Px - Gx)^2 - Px - Gx - 486662  */
+
+            x_to_y2(t1[0], t2[0], p[1]);	/* t2[0] = Py^2  */
+            sqrt(t1[0], t2[0]);	/* t1[0] = Py or -Py  */
+            j = is_negative(t1[0]);		/*      ... check which  */
+            t2[0]._0 += 39420360;		/* t2[0] = Py^2 + Gy^2  */
+            mul(t2[1], BASE_2Y, t1[0]);/* t2[1] = 2 Py Gy or -2 Py Gy  */
+            sub(t1[j], t2[0], t2[1]);	/* t1[0] = Py^2 + Gy^2 - 2 Py Gy  */
+            add(t1[1-j], t2[0], t2[1]);/* t1[1] = Py^2 + Gy^2 + 2 Py Gy  */
+            cpy(t2[0], p[1]);		/* t2[0] = Px  */
+            t2[0]._0 -= 9;			/* t2[0] = Px - Gx  */
+            sqr(t2[1], t2[0]);		/* t2[1] = (Px - Gx)^2  */
+            recip(t2[0], t2[1], 0);	/* t2[0] = 1/(Px - Gx)^2  */
+            mul(s[0], t1[0], t2[0]);	/* s[0] = t1[0]/(Px - Gx)^2  */
+            sub(s[0], s[0], p[1]);	/* s[0] = t1[0]/(Px - Gx)^2 - Px  */
+            s[0]._0 -= 9 + 486662;		/* s[0] = X(P+G)  */
+            mul(s[1], t1[1], t2[0]);	/* s[1] = t1[1]/(Px - Gx)^2  */
+            sub(s[1], s[1], p[1]);	/* s[1] = t1[1]/(Px - Gx)^2 - Px  */
+            s[1]._0 -= 9 + 486662;		/* s[1] = X(P-G)  */
+            mul_small(s[0], s[0], 1);	/* reduce s[0] */
+            mul_small(s[1], s[1], 1);	/* reduce s[1] */
+        }
+
+    }
+
+    static void verify(byte[] Y, byte[] v, byte[] h, VerifyKey key) {
         /* Y = v abs(P) + h G  */
         byte[] d=new byte[32];
         long10[]
-                p=new long10[]{new long10(),new long10()},
-                s=new long10[]{new long10(),new long10()},
+                p=key.p,
+                s=key.s,
                 yx=new long10[]{new long10(),new long10(),new long10()},
                 yz=new long10[]{new long10(),new long10(),new long10()},
                 t1=new long10[]{new long10(),new long10(),new long10()},
@@ -173,37 +223,6 @@ final class Curve25519 {
 
         int vi = 0, hi = 0, di = 0, nvh=0, i, j, k;
 
-        /* set p[0] to G and p[1] to P  */
-
-        set(p[0], 9);
-        unpack(p[1], P);
-
-        /* set s[0] to P+G and s[1] to P-G  */
-
-        /* s[0] = (Py^2 + Gy^2 - 2 Py Gy)/(Px - Gx)^2 - Px - Gx - 486662  */
-        /* s[1] = (Py^2 + Gy^2 + 2 Py Gy)/(Px - Gx)^2 - Px - Gx - 486662  */
-
-        x_to_y2(t1[0], t2[0], p[1]);	/* t2[0] = Py^2  */
-        sqrt(t1[0], t2[0]);	/* t1[0] = Py or -Py  */
-        j = is_negative(t1[0]);		/*      ... check which  */
-        t2[0]._0 += 39420360;		/* t2[0] = Py^2 + Gy^2  */
-        mul(t2[1], BASE_2Y, t1[0]);/* t2[1] = 2 Py Gy or -2 Py Gy  */
-        sub(t1[j], t2[0], t2[1]);	/* t1[0] = Py^2 + Gy^2 - 2 Py Gy  */
-        add(t1[1-j], t2[0], t2[1]);/* t1[1] = Py^2 + Gy^2 + 2 Py Gy  */
-        cpy(t2[0], p[1]);		/* t2[0] = Px  */
-        t2[0]._0 -= 9;			/* t2[0] = Px - Gx  */
-        sqr(t2[1], t2[0]);		/* t2[1] = (Px - Gx)^2  */
-        recip(t2[0], t2[1], 0);	/* t2[0] = 1/(Px - Gx)^2  */
-        mul(s[0], t1[0], t2[0]);	/* s[0] = t1[0]/(Px - Gx)^2  */
-        sub(s[0], s[0], p[1]);	/* s[0] = t1[0]/(Px - Gx)^2 - Px  */
-        s[0]._0 -= 9 + 486662;		/* s[0] = X(P+G)  */
-        mul(s[1], t1[1], t2[0]);	/* s[1] = t1[1]/(Px - Gx)^2  */
-        sub(s[1], s[1], p[1]);	/* s[1] = t1[1]/(Px - Gx)^2 - Px  */
-        s[1]._0 -= 9 + 486662;		/* s[1] = X(P-G)  */
-        mul_small(s[0], s[0], 1);	/* reduce s[0] */
-        mul_small(s[1], s[1], 1);	/* reduce s[1] */
-
-
         /* prepare the chain  */
         for (i = 0; i < 32; i++) {
             vi = (vi >> 8) ^ (v[i] & 0xFF) ^ ((v[i] & 0xFF) << 1);
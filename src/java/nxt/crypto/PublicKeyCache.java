@@ -0,0 +1,113 @@
+package nxt.crypto;
+
+import nxt.Nxt;
+import org.json.simple.JSONObject;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded cache of the values derived from a public key: the account id, and the curve points used to verify
+// signatures made with the key, so that repeat senders skip both the hashing and the point decoding.
+public final class PublicKeyCache {
+
+    private static final int cacheSize = Nxt.getIntProperty("nxt.publicKeyCacheSize");
+
+    private static final Map<Key, Entry> cache = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            return size() > cacheSize;
+        }
+    };
+
+    private static final AtomicLong lookups = new AtomicLong();
+    private static final AtomicLong hits = new AtomicLong();
+
+    // the first 8 bytes of the SHA-256 hash of the public key, as a little-endian long
+    public static Long getAccountId(byte[] publicKey) {
+        return getEntry(publicKey).accountId;
+    }
+
+    static Curve25519.VerifyKey getVerifyKey(byte[] publicKey) {
+        Entry entry = getEntry(publicKey);
+        Curve25519.VerifyKey verifyKey = entry.verifyKey;
+        if (verifyKey == null) {
+            verifyKey = new Curve25519.VerifyKey(publicKey);
+            entry.verifyKey = verifyKey;
+        }
+        return verifyKey;
+    }
+
+    private static Entry getEntry(byte[] publicKey) {
+        lookups.incrementAndGet();
+        Key key = new Key(publicKey);
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+            return entry;
+        }
+        MessageDigest digest = Crypto.sha256();
+        byte[] publicKeyHash = digest.digest(publicKey);
+        long accountId = 0;
+        for (int i = 7; i >= 0; i--) {
+            accountId = (accountId << 8) | (publicKeyHash[i] & 0xFF);
+        }
+        entry = new Entry(accountId);
+        synchronized (cache) {
+            cache.put(new Key(key.bytes.clone()), entry);
+        }
+        return entry;
+    }
+
+    public static JSONObject getJSONObject() {
+        JSONObject json = new JSONObject();
+        json.put("lookups", lookups.get());
+        json.put("hits", hits.get());
+        synchronized (cache) {
+            json.put("size", cache.size());
+        }
+        json.put("capacity", cacheSize);
+        return json;
+    }
+
+    private static final class Key {
+
+        private final byte[] bytes;
+        private final int hashCode;
+
+        private Key(byte[] bytes) {
+            this.bytes = bytes;
+            this.hashCode = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(bytes, ((Key)o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+    }
+
+    private static final class Entry {
+
+        private final Long accountId;
+        private volatile Curve25519.VerifyKey verifyKey;
+
+        private Entry(long accountId) {
+            this.accountId = accountId;
+        }
+
+    }
+
+    private PublicKeyCache() {} // never
+
+}
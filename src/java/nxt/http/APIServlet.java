@@ -96,6 +96,7 @@ public final class APIServlet extends HttpServlet {
         map.put("getAskOrderIds", GetAskOrderIds.instance);
         map.put("getBidOrder", GetBidOrder.instance);
         map.put("getBidOrderIds", GetBidOrderIds.instance);
+        map.put("getOrderBook", GetOrderBook.instance);
         map.put("issueAsset", IssueAsset.instance);
         map.put("listAccountAliases", ListAccountAliases.instance);
         map.put("markHost", MarkHost.instance);
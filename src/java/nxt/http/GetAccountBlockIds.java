@@ -1,17 +1,16 @@
 package nxt.http;
 
 import nxt.Account;
-import nxt.Block;
 import nxt.Nxt;
 import nxt.util.Convert;
-import nxt.util.DbIterator;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
 import org.json.simple.JSONStreamAware;
 
 import javax.servlet.http.HttpServletRequest;
+import java.util.List;
 
 import static nxt.http.JSONResponses.INCORRECT_ACCOUNT;
+import static nxt.http.JSONResponses.INCORRECT_CURSOR;
+import static nxt.http.JSONResponses.INCORRECT_LIMIT;
 import static nxt.http.JSONResponses.INCORRECT_TIMESTAMP;
 import static nxt.http.JSONResponses.MISSING_ACCOUNT;
 import static nxt.http.JSONResponses.MISSING_TIMESTAMP;
@@ -22,7 +21,7 @@ public final class GetAccountBlockIds extends APIServlet.APIRequestHandler {
     static final GetAccountBlockIds instance = new GetAccountBlockIds();
 
     private GetAccountBlockIds() {
-        super("account", "timestamp");
+        super("account", "timestamp", "cursor", "limit");
     }
 
     @Override
@@ -56,18 +55,35 @@ public final class GetAccountBlockIds extends APIServlet.APIRequestHandler {
             return INCORRECT_TIMESTAMP;
         }
 
-        JSONArray blockIds = new JSONArray();
-        try (DbIterator<? extends Block> iterator = Nxt.getBlockchain().getBlocks(accountData, timestamp)) {
-            while (iterator.hasNext()) {
-                Block block = iterator.next();
-                blockIds.add(block.getStringId());
+        // the id of the last block of the previous page
+        Long afterBlockId = null;
+        String cursor = req.getParameter("cursor");
+        if (cursor != null) {
+            try {
+                afterBlockId = Convert.parseUnsignedLong(cursor);
+            } catch (RuntimeException e) {
+                return INCORRECT_CURSOR;
             }
         }
+        int limit = StreamingResponse.getLimit(req);
+        if (limit < 0) {
+            return INCORRECT_LIMIT;
+        }
+
+        List<Long> blockIds = Nxt.getBlockchain().getBlockIds(accountData, timestamp, afterBlockId, StreamingResponse.getDatabaseLimit(limit));
+        return new StreamingResponse<Long>("blockIds", blockIds.iterator(), StreamingResponse.getDatabaseLimit(limit) - 1) {
 
-        JSONObject response = new JSONObject();
-        response.put("blockIds", blockIds);
+            @Override
+            Object toJSON(Long blockId) {
+                return Convert.toUnsignedLong(blockId);
+            }
+
+            @Override
+            String getCursor(Long blockId) {
+                return Convert.toUnsignedLong(blockId);
+            }
 
-        return response;
+        };
     }
 
 }
@@ -2,16 +2,15 @@ package nxt.http;
 
 import nxt.Account;
 import nxt.Nxt;
-import nxt.Transaction;
 import nxt.util.Convert;
-import nxt.util.DbIterator;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
 import org.json.simple.JSONStreamAware;
 
 import javax.servlet.http.HttpServletRequest;
+import java.util.List;
 
 import static nxt.http.JSONResponses.INCORRECT_ACCOUNT;
+import static nxt.http.JSONResponses.INCORRECT_AFTER_TRANSACTION;
+import static nxt.http.JSONResponses.INCORRECT_LIMIT;
 import static nxt.http.JSONResponses.INCORRECT_TIMESTAMP;
 import static nxt.http.JSONResponses.MISSING_ACCOUNT;
 import static nxt.http.JSONResponses.MISSING_TIMESTAMP;
@@ -22,7 +21,7 @@ public final class GetAccountTransactionIds extends APIServlet.APIRequestHandler
     static final GetAccountTransactionIds instance = new GetAccountTransactionIds();
 
     private GetAccountTransactionIds() {
-        super("account", "timestamp", "type", "subtype");
+        super("account", "timestamp", "type", "subtype", "afterTransaction", "limit");
     }
 
     @Override
@@ -69,17 +68,37 @@ public final class GetAccountTransactionIds extends APIServlet.APIRequestHandler
             subtype = -1;
         }
 
-        JSONArray transactionIds = new JSONArray();
-        try (DbIterator<? extends Transaction> iterator = Nxt.getBlockchain().getTransactions(account, type, subtype, timestamp)) {
-            while (iterator.hasNext()) {
-                Transaction transaction = iterator.next();
-                transactionIds.add(transaction.getStringId());
+        Long afterTransactionId = null;
+        String afterTransactionValue = req.getParameter("afterTransaction");
+        if (afterTransactionValue != null) {
+            try {
+                afterTransactionId = Convert.parseUnsignedLong(afterTransactionValue);
+            } catch (RuntimeException e) {
+                return INCORRECT_AFTER_TRANSACTION;
             }
         }
 
-        JSONObject response = new JSONObject();
-        response.put("transactionIds", transactionIds);
-        return response;
+        // paged by afterTransaction instead of by cursor, nextCursor is the afterTransaction of the next page
+        int limit = StreamingResponse.getLimit(req);
+        if (limit < 0) {
+            return INCORRECT_LIMIT;
+        }
+
+        List<Long> transactionIds = Nxt.getBlockchain().getTransactionIds(account, type, subtype, timestamp, afterTransactionId,
+                StreamingResponse.getDatabaseLimit(limit));
+        return new StreamingResponse<Long>("transactionIds", transactionIds.iterator(), StreamingResponse.getDatabaseLimit(limit) - 1) {
+
+            @Override
+            Object toJSON(Long transactionId) {
+                return Convert.toUnsignedLong(transactionId);
+            }
+
+            @Override
+            String getCursor(Long transactionId) {
+                return Convert.toUnsignedLong(transactionId);
+            }
+
+        };
 
     }
 
@@ -2,54 +2,69 @@ package nxt.http;
 
 import nxt.Order;
 import nxt.util.Convert;
-import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONStreamAware;
 
 import javax.servlet.http.HttpServletRequest;
-import java.util.Collection;
+import java.util.Comparator;
+
+import static nxt.http.JSONResponses.INCORRECT_CURSOR;
+import static nxt.http.JSONResponses.INCORRECT_LIMIT;
 
 public final class GetAllOpenOrders extends APIServlet.APIRequestHandler {
 
     static final GetAllOpenOrders instance = new GetAllOpenOrders();
 
+    private static final Comparator<Order> idComparator = new Comparator<Order>() {
+        @Override
+        public int compare(Order o1, Order o2) {
+            return o1.getId().compareTo(o2.getId());
+        }
+    };
+
+    private GetAllOpenOrders() {
+        super("cursor", "limit");
+    }
+
     @Override
     JSONStreamAware processRequest(HttpServletRequest req) {
 
-        JSONObject response = new JSONObject();
-        JSONArray ordersData = new JSONArray();
+        // the id of the last order of the previous page, ask and bid orders are returned together in id order
+        Long afterOrderId = null;
+        String cursor = req.getParameter("cursor");
+        if (cursor != null) {
+            try {
+                afterOrderId = Convert.parseUnsignedLong(cursor);
+            } catch (RuntimeException e) {
+                return INCORRECT_CURSOR;
+            }
+        }
+        int limit = StreamingResponse.getLimit(req);
+        if (limit < 0) {
+            return INCORRECT_LIMIT;
+        }
 
-        try {
-            Collection<Order.Ask> askOrders = Order.Ask.getAllAskOrders();
-            Collection<Order.Bid> bidOrders = Order.Bid.getAllBidOrders();
+        return new StreamingResponse<Order>("openOrders", StreamingResponse.merge(Order.Ask.getAskOrdersAfter(afterOrderId).iterator(),
+                Order.Bid.getBidOrdersAfter(afterOrderId).iterator(), idComparator), limit) {
 
-            for (Order.Ask order : askOrders) {
+            @Override
+            Object toJSON(Order order) {
                 JSONObject orderData = new JSONObject();
-                orderData.put("type", "ask");
+                orderData.put("type", order instanceof Order.Ask ? "ask" : "bid");
                 orderData.put("asset", Convert.toUnsignedLong(order.getAssetId()));
                 orderData.put("account", Convert.toUnsignedLong(order.getAccount().getId()));
                 orderData.put("quantity", order.getQuantity());
                 orderData.put("price", order.getPrice());
                 orderData.put("height", order.getHeight());
-                ordersData.add(orderData);
-            }
-            for (Order.Bid order : bidOrders) {
-                JSONObject orderData = new JSONObject();
-                orderData.put("type", "bid");
-                orderData.put("asset", Convert.toUnsignedLong(order.getAssetId()));
-                orderData.put("account", Convert.toUnsignedLong(order.getAccount().getId()));
-                orderData.put("quantity", order.getQuantity());
-                orderData.put("price", order.getPrice());
-                orderData.put("height", order.getHeight());
-                ordersData.add(orderData);
+                return orderData;
             }
 
-        } catch (RuntimeException e) {
-            response.put("error", e.toString());
-        }
+            @Override
+            String getCursor(Order order) {
+                return Convert.toUnsignedLong(order.getId());
+            }
 
-        response.put("openOrders", ordersData);
-        return response;
+        };
     }
 
 }
@@ -2,14 +2,13 @@ package nxt.http;
 
 import nxt.Trade;
 import nxt.util.Convert;
-import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONStreamAware;
 
 import javax.servlet.http.HttpServletRequest;
-import java.util.Collection;
-import java.util.List;
 
+import static nxt.http.JSONResponses.INCORRECT_CURSOR;
+import static nxt.http.JSONResponses.INCORRECT_LIMIT;
 import static nxt.http.JSONResponses.INCORRECT_TIMESTAMP;
 import static nxt.http.JSONResponses.MISSING_TIMESTAMP;
 
@@ -18,7 +17,7 @@ public final class GetAllTrades extends APIServlet.APIRequestHandler {
     static final GetAllTrades instance = new GetAllTrades();
 
     private GetAllTrades() {
-        super("timestamp");
+        super("timestamp", "cursor", "limit");
     }
     
     @Override
@@ -39,34 +38,45 @@ public final class GetAllTrades extends APIServlet.APIRequestHandler {
             return INCORRECT_TIMESTAMP;
         }
 
-        JSONObject response = new JSONObject();
-        
-        JSONArray tradesData = new JSONArray();
+        // asset id and index of the last trade of the previous page, as "asset:index"
+        Long afterAssetId = null;
+        int afterIndex = -1;
+        String cursor = req.getParameter("cursor");
+        if (cursor != null) {
+            try {
+                int separator = cursor.indexOf(':');
+                afterAssetId = Convert.parseUnsignedLong(cursor.substring(0, separator));
+                afterIndex = Integer.parseInt(cursor.substring(separator + 1));
+            } catch (RuntimeException e) {
+                return INCORRECT_CURSOR;
+            }
+        }
+        int limit = StreamingResponse.getLimit(req);
+        if (limit < 0) {
+            return INCORRECT_LIMIT;
+        }
 
-        try {
-            Collection<List<Trade>> trades = Trade.getAllTrades();
+        return new StreamingResponse<Trade>("trades", Trade.getAllTrades(timestamp, afterAssetId, afterIndex), limit) {
 
-            for (List<Trade> assetTrades : trades) {
-                for (Trade trade : assetTrades) {
-                    if (trade.getTimestamp() >= timestamp) {
-                        JSONObject tradeData = new JSONObject();
-                        tradeData.put("timestamp", trade.getTimestamp());
-                        tradeData.put("quantity", trade.getQuantity());
-                        tradeData.put("price", trade.getPrice());
-                        tradeData.put("asset", Convert.toUnsignedLong(trade.getAssetId()));
-                        tradeData.put("askOrder", Convert.toUnsignedLong(trade.getAskOrderId()));
-                        tradeData.put("bidOrder", Convert.toUnsignedLong(trade.getBidOrderId()));
-                        tradeData.put("block", Convert.toUnsignedLong(trade.getBlockId()));
-                        tradesData.add(tradeData);
-                    }
-                }
+            @Override
+            Object toJSON(Trade trade) {
+                JSONObject tradeData = new JSONObject();
+                tradeData.put("timestamp", trade.getTimestamp());
+                tradeData.put("quantity", trade.getQuantity());
+                tradeData.put("price", trade.getPrice());
+                tradeData.put("asset", Convert.toUnsignedLong(trade.getAssetId()));
+                tradeData.put("askOrder", Convert.toUnsignedLong(trade.getAskOrderId()));
+                tradeData.put("bidOrder", Convert.toUnsignedLong(trade.getBidOrderId()));
+                tradeData.put("block", Convert.toUnsignedLong(trade.getBlockId()));
+                return tradeData;
+            }
+
+            @Override
+            String getCursor(Trade trade) {
+                return Convert.toUnsignedLong(trade.getAssetId()) + ":" + trade.getIndex();
             }
-        } catch (RuntimeException e) {
-            response.put("error", e.toString());
-        }
 
-        response.put("trades", tradesData);
-        return response;
+        };
     }
 
 }
@@ -2,29 +2,52 @@ package nxt.http;
 
 import nxt.Asset;
 import nxt.util.Convert;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
 import org.json.simple.JSONStreamAware;
 
 import javax.servlet.http.HttpServletRequest;
 
+import static nxt.http.JSONResponses.INCORRECT_CURSOR;
+import static nxt.http.JSONResponses.INCORRECT_LIMIT;
+
 public final class GetAssetIds extends APIServlet.APIRequestHandler {
 
     static final GetAssetIds instance = new GetAssetIds();
 
-    private GetAssetIds() {}
+    private GetAssetIds() {
+        super("cursor", "limit");
+    }
 
     @Override
     JSONStreamAware processRequest(HttpServletRequest req) {
 
-        JSONArray assetIds = new JSONArray();
-        for (Asset asset : Asset.getAllAssets()) {
-            assetIds.add(Convert.toUnsignedLong(asset.getId()));
+        // the id of the last asset of the previous page
+        Long afterAssetId = null;
+        String cursor = req.getParameter("cursor");
+        if (cursor != null) {
+            try {
+                afterAssetId = Convert.parseUnsignedLong(cursor);
+            } catch (RuntimeException e) {
+                return INCORRECT_CURSOR;
+            }
+        }
+        int limit = StreamingResponse.getLimit(req);
+        if (limit < 0) {
+            return INCORRECT_LIMIT;
         }
 
-        JSONObject response = new JSONObject();
-        response.put("assetIds", assetIds);
-        return response;
+        return new StreamingResponse<Asset>("assetIds", Asset.getAssetsAfter(afterAssetId).iterator(), limit) {
+
+            @Override
+            Object toJSON(Asset asset) {
+                return Convert.toUnsignedLong(asset.getId());
+            }
+
+            @Override
+            String getCursor(Asset asset) {
+                return Convert.toUnsignedLong(asset.getId());
+            }
+
+        };
     }
 
 }
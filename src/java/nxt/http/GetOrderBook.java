@@ -0,0 +1,83 @@
+package nxt.http;
+
+import nxt.Asset;
+import nxt.Order;
+import nxt.util.Convert;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.List;
+
+import static nxt.http.JSONResponses.INCORRECT_ASSET;
+import static nxt.http.JSONResponses.INCORRECT_DEPTH;
+import static nxt.http.JSONResponses.MISSING_ASSET;
+import static nxt.http.JSONResponses.UNKNOWN_ASSET;
+
+public final class GetOrderBook extends APIServlet.APIRequestHandler {
+
+    static final GetOrderBook instance = new GetOrderBook();
+
+    private static final int DEFAULT_DEPTH = 20;
+    private static final int MAX_DEPTH = 1000;
+
+    private GetOrderBook() {
+        super("asset", "depth");
+    }
+
+    @Override
+    JSONStreamAware processRequest(HttpServletRequest req) {
+
+        String asset = req.getParameter("asset");
+        if (asset == null) {
+            return MISSING_ASSET;
+        }
+
+        Long assetId;
+        try {
+            assetId = Convert.parseUnsignedLong(asset);
+        } catch (RuntimeException e) {
+            return INCORRECT_ASSET;
+        }
+
+        if (Asset.getAsset(assetId) == null) {
+            return UNKNOWN_ASSET;
+        }
+
+        int depth = DEFAULT_DEPTH;
+        String depthValue = req.getParameter("depth");
+        if (depthValue != null) {
+            try {
+                depth = Integer.parseInt(depthValue);
+                if (depth < 1 || depth > MAX_DEPTH) {
+                    return INCORRECT_DEPTH;
+                }
+            } catch (NumberFormatException e) {
+                return INCORRECT_DEPTH;
+            }
+        }
+
+        Order.OrderBook orderBook = Order.getOrderBook(assetId, depth);
+
+        JSONObject response = new JSONObject();
+        response.put("height", orderBook.getHeight());
+        response.put("asks", levelsJSON(orderBook.getAskLevels()));
+        response.put("bids", levelsJSON(orderBook.getBidLevels()));
+        return response;
+
+    }
+
+    private static JSONArray levelsJSON(List<Order.PriceLevel> levels) {
+        JSONArray levelsData = new JSONArray();
+        for (Order.PriceLevel level : levels) {
+            JSONObject levelData = new JSONObject();
+            levelData.put("price", level.getPrice());
+            levelData.put("quantity", level.getQuantity());
+            levelData.put("orders", level.getCount());
+            levelsData.add(levelData);
+        }
+        return levelsData;
+    }
+
+}
@@ -41,6 +41,8 @@ public final class GetPeer extends APIServlet.APIRequestHandler {
         response.put("weight", peer.getWeight());
         response.put("downloadedVolume", peer.getDownloadedVolume());
         response.put("uploadedVolume", peer.getUploadedVolume());
+        response.put("uncompressedDownloadedVolume", peer.getUncompressedDownloadedVolume());
+        response.put("uncompressedUploadedVolume", peer.getUncompressedUploadedVolume());
         response.put("application", peer.getApplication());
         response.put("version", peer.getVersion());
         response.put("platform", peer.getPlatform());
@@ -4,11 +4,14 @@ import nxt.Account;
 import nxt.Alias;
 import nxt.Asset;
 import nxt.Generator;
+import nxt.IdIndex;
+import nxt.LockMetrics;
 import nxt.Nxt;
 import nxt.Order;
 import nxt.Poll;
 import nxt.Trade;
 import nxt.Vote;
+import nxt.crypto.PublicKeyCache;
 import nxt.peer.Peer;
 import nxt.peer.Peers;
 import nxt.util.Convert;
@@ -61,6 +64,10 @@ public final class GetState extends APIServlet.APIRequestHandler {
         response.put("numberOfUnlockedAccounts", Generator.getAllGenerators().size());
         Peer lastBlockchainFeeder = Nxt.getBlockchainProcessor().getLastBlockchainFeeder();
         response.put("lastBlockchainFeeder", lastBlockchainFeeder == null ? null : lastBlockchainFeeder.getAnnouncedAddress());
+        response.put("blockIdIndex", IdIndex.getBlockIdIndex().getJSONObject());
+        response.put("transactionIdIndex", IdIndex.getTransactionIdIndex().getJSONObject());
+        response.put("blockchainLock", LockMetrics.getJSONObject());
+        response.put("publicKeyCache", PublicKeyCache.getJSONObject());
         response.put("availableProcessors", Runtime.getRuntime().availableProcessors());
         response.put("maxMemory", Runtime.getRuntime().maxMemory());
         response.put("totalMemory", Runtime.getRuntime().totalMemory());
@@ -11,6 +11,7 @@ import javax.servlet.http.HttpServletRequest;
 import java.util.List;
 
 import static nxt.http.JSONResponses.INCORRECT_ASSET;
+import static nxt.http.JSONResponses.INCORRECT_TIMESTAMP;
 import static nxt.http.JSONResponses.MISSING_ASSET;
 import static nxt.http.JSONResponses.UNKNOWN_ASSET;
 
@@ -19,7 +20,7 @@ public final class GetTrades extends APIServlet.APIRequestHandler {
     static final GetTrades instance = new GetTrades();
 
     private GetTrades() {
-        super("asset", "firstIndex", "lastIndex");
+        super("asset", "timestamp", "firstIndex", "lastIndex");
     }
 
     @Override
@@ -40,6 +41,19 @@ public final class GetTrades extends APIServlet.APIRequestHandler {
             return INCORRECT_ASSET;
         }
 
+        int timestamp = 0;
+        String timestampValue = req.getParameter("timestamp");
+        if (timestampValue != null) {
+            try {
+                timestamp = Integer.parseInt(timestampValue);
+                if (timestamp < 0) {
+                    return INCORRECT_TIMESTAMP;
+                }
+            } catch (NumberFormatException e) {
+                return INCORRECT_TIMESTAMP;
+            }
+        }
+
         int firstIndex, lastIndex;
         try {
             firstIndex = Integer.parseInt(req.getParameter("firstIndex"));
@@ -59,7 +73,7 @@ public final class GetTrades extends APIServlet.APIRequestHandler {
 
         JSONArray tradesData = new JSONArray();
         try {
-            List<Trade> trades = Trade.getTrades(assetId);
+            List<Trade> trades = Trade.getTrades(assetId, timestamp);
             for (int i = firstIndex; i <= lastIndex && i < trades.size(); i++) {
                 Trade trade = trades.get(i);
 
@@ -32,6 +32,10 @@ public final class JSONResponses {
     public static final JSONStreamAware INCORRECT_ACCOUNT = incorrect("account");
     public static final JSONStreamAware MISSING_TIMESTAMP = missing("timestamp");
     public static final JSONStreamAware INCORRECT_TIMESTAMP = incorrect("timestamp");
+    public static final JSONStreamAware INCORRECT_AFTER_TRANSACTION = incorrect("afterTransaction");
+    public static final JSONStreamAware INCORRECT_LIMIT = incorrect("limit");
+    public static final JSONStreamAware INCORRECT_CURSOR = incorrect("cursor");
+    public static final JSONStreamAware INCORRECT_DEPTH = incorrect("depth");
     public static final JSONStreamAware UNKNOWN_ACCOUNT = unknown("account");
     public static final JSONStreamAware UNKNOWN_ALIAS = unknown("alias");
     public static final JSONStreamAware MISSING_ASSET = missing("asset");
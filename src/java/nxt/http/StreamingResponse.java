@@ -0,0 +1,134 @@
+package nxt.http;
+
+import org.json.simple.JSONStreamAware;
+import org.json.simple.JSONValue;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Response consisting of a single json array, which is written out element by element while iterating over the
+// results, instead of being built in memory first. Supports paging with the limit request parameter, "nextCursor" is
+// included in the response if there are more elements after the returned ones, and the cursor request parameter
+// set to it returns the following ones. Cursors are keys of the last returned element, not offsets, so that paging
+// doesn't skip or repeat elements when others are added or removed meanwhile.
+// The iterator must not hold database resources while the response is written, results from the database are to be
+// read one page at a time, into memory, before the response is created.
+abstract class StreamingResponse<T> implements JSONStreamAware {
+
+    // pages read from the database are never larger, even if no limit is requested
+    static final int MAX_DATABASE_LIMIT = 10000;
+
+    // returns -1 if the limit parameter is invalid, 0 means no limit
+    static int getLimit(HttpServletRequest req) {
+        String value = req.getParameter("limit");
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(-1, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // the limit for a database query, one more than the page size, to know if there are more elements after it
+    static int getDatabaseLimit(int limit) {
+        return (limit == 0 ? MAX_DATABASE_LIMIT : Math.min(limit, MAX_DATABASE_LIMIT)) + 1;
+    }
+
+    // elements of both sorted iterators, in the order of the comparator
+    static <T> Iterator<T> merge(final Iterator<? extends T> first, final Iterator<? extends T> second,
+                                 final Comparator<? super T> comparator) {
+        return new Iterator<T>() {
+
+            private T nextFirst = first.hasNext() ? first.next() : null;
+            private T nextSecond = second.hasNext() ? second.next() : null;
+
+            @Override
+            public boolean hasNext() {
+                return nextFirst != null || nextSecond != null;
+            }
+
+            @Override
+            public T next() {
+                T result;
+                if (nextFirst != null && (nextSecond == null || comparator.compare(nextFirst, nextSecond) <= 0)) {
+                    result = nextFirst;
+                    nextFirst = first.hasNext() ? first.next() : null;
+                } else if (nextSecond != null) {
+                    result = nextSecond;
+                    nextSecond = second.hasNext() ? second.next() : null;
+                } else {
+                    throw new NoSuchElementException();
+                }
+                return result;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+        };
+    }
+
+    private final String name;
+    private final Iterator<? extends T> iterator;
+    private final int limit;
+
+    StreamingResponse(String name, Iterator<? extends T> iterator, int limit) {
+        this.name = name;
+        this.iterator = iterator;
+        this.limit = limit;
+    }
+
+    abstract Object toJSON(T element);
+
+    // value of the cursor parameter which returns the elements following this one
+    abstract String getCursor(T element);
+
+    @Override
+    public void writeJSONString(Writer out) throws IOException {
+        out.write("{\"");
+        out.write(JSONValue.escape(name));
+        out.write("\":[");
+        int count = 0;
+        T last = null;
+        boolean hasMore = false;
+        String error = null;
+        try {
+            while (iterator.hasNext()) {
+                if (limit > 0 && count == limit) {
+                    hasMore = true;
+                    break;
+                }
+                T element = iterator.next();
+                if (count > 0) {
+                    out.write(',');
+                }
+                JSONValue.writeJSONString(toJSON(element), out);
+                last = element;
+                count += 1;
+            }
+        } catch (RuntimeException e) {
+            error = e.toString();
+        }
+        out.write(']');
+        if (hasMore) {
+            out.write(",\"nextCursor\":\"");
+            out.write(JSONValue.escape(getCursor(last)));
+            out.write('"');
+        }
+        if (error != null) {
+            out.write(",\"error\":\"");
+            out.write(JSONValue.escape(error));
+            out.write('"');
+        }
+        out.write('}');
+    }
+
+}
@@ -0,0 +1,157 @@
+package nxt.peer;
+
+import nxt.Block;
+import nxt.Constants;
+import nxt.Transaction;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+import org.json.simple.JSONValue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+// Compact encoding of the peer messages carrying blocks and transactions, used instead of json with peers
+// announcing binaryProtocol support. A binary message is a small json header followed by a list of byte arrays,
+// which the receiving side finds under payloadKey in the header. Transactions are sent as their canonical bytes,
+// blocks as their canonical bytes followed by the length prefixed canonical bytes of each of their transactions.
+public final class BinaryMessage implements JSONStreamAware {
+
+    static final String CONTENT_TYPE = "application/x-nxt-binary";
+
+    private static final int MAX_HEADER_LENGTH = 65536;
+    // a block with its transactions, each prefixed with its length
+    private static final int MAX_BLOCK_LENGTH = Constants.BLOCK_HEADER_LENGTH + Constants.MAX_PAYLOAD_LENGTH
+            + 4 * Constants.MAX_NUMBER_OF_TRANSACTIONS;
+    // a larger transaction could never be included in a block
+    private static final int MAX_TRANSACTION_LENGTH = Constants.MAX_PAYLOAD_LENGTH;
+    // getNextBlocks sends at most 1440 blocks of at most 1 MB in total, not counting the transaction length prefixes
+    private static final int MAX_BLOCKS = 1440;
+    private static final int MAX_BLOCKS_LENGTH = 2 * 1048576;
+    // processTransactions and getUnconfirmedTransactions send at most MAX_TRANSACTIONS_RESPONSE_LENGTH bytes of
+    // transactions, and no transaction is shorter than 128 bytes
+    private static final int MAX_TRANSACTIONS = Peers.MAX_TRANSACTIONS_RESPONSE_LENGTH / 128;
+    private static final int MAX_TRANSACTIONS_LENGTH = Peers.MAX_TRANSACTIONS_RESPONSE_LENGTH;
+
+    public static BinaryMessage request(JSONObject header, String payloadKey, List<byte[]> payload, JSONStreamAware json) {
+        header.put("protocol", 1);
+        return new BinaryMessage(header, payloadKey, payload, json);
+    }
+
+    public static byte[] getBlockBytes(Block block) {
+        byte[] blockBytes = block.getBytes();
+        List<? extends Transaction> transactions = block.getTransactions();
+        byte[][] transactionBytes = new byte[transactions.size()][];
+        int length = blockBytes.length;
+        for (int i = 0; i < transactionBytes.length; i++) {
+            transactionBytes[i] = transactions.get(i).getBytes();
+            length += 4 + transactionBytes[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(blockBytes);
+        for (byte[] bytes : transactionBytes) {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+        return buffer.array();
+    }
+
+    private final JSONObject header;
+    private final String payloadKey;
+    private final List<byte[]> payload;
+    private final JSONStreamAware json;
+
+    BinaryMessage(JSONObject header, String payloadKey, List<byte[]> payload, JSONStreamAware json) {
+        this.header = header;
+        this.payloadKey = payloadKey;
+        this.payload = payload;
+        this.json = json;
+    }
+
+    // json form of the same message, for peers which don't support the binary protocol
+    @Override
+    public void writeJSONString(Writer out) throws IOException {
+        if (json == null) {
+            throw new IOException("No json form available for " + header.get("requestType") + " binary message");
+        }
+        json.writeJSONString(out);
+    }
+
+    void write(OutputStream outputStream) throws IOException {
+        DataOutputStream out = new DataOutputStream(outputStream);
+        byte[] headerBytes = header.toJSONString().getBytes("UTF-8");
+        out.writeInt(headerBytes.length);
+        out.write(headerBytes);
+        out.writeUTF(payloadKey);
+        out.writeInt(payload.size());
+        for (byte[] bytes : payload) {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        out.flush();
+    }
+
+    static JSONObject read(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        byte[] headerBytes = new byte[checkLength(in.readInt(), MAX_HEADER_LENGTH)];
+        in.readFully(headerBytes);
+        Object header = JSONValue.parse(new String(headerBytes, "UTF-8"));
+        if (! (header instanceof JSONObject)) {
+            throw new IOException("Invalid binary message header");
+        }
+        JSONObject message = (JSONObject) header;
+        String payloadKey = in.readUTF();
+        int maxElements;
+        int maxElementLength;
+        int maxLength;
+        switch (payloadKey) {
+            case "block":
+                maxElements = 1;
+                maxElementLength = MAX_BLOCK_LENGTH;
+                maxLength = MAX_BLOCK_LENGTH;
+                break;
+            case "nextBlocks":
+                maxElements = MAX_BLOCKS;
+                maxElementLength = MAX_BLOCK_LENGTH;
+                maxLength = MAX_BLOCKS_LENGTH;
+                break;
+            case "transactions":
+            case "unconfirmedTransactions":
+                maxElements = MAX_TRANSACTIONS;
+                maxElementLength = MAX_TRANSACTION_LENGTH;
+                maxLength = MAX_TRANSACTIONS_LENGTH;
+                break;
+            default:
+                throw new IOException("Unknown binary message payload " + payloadKey);
+        }
+        int count = checkLength(in.readInt(), maxElements);
+        JSONArray payload = new JSONArray();
+        int remaining = maxLength;
+        for (int i = 0; i < count; i++) {
+            // checked against what is left of the total before allocating
+            int length = checkLength(in.readInt(), Math.min(maxElementLength, remaining));
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            payload.add(bytes);
+            remaining -= length;
+        }
+        message.put(payloadKey, payload);
+        return message;
+    }
+
+    private static int checkLength(int length, int maxLength) throws IOException {
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Invalid length " + length + " in binary message");
+        }
+        return length;
+    }
+
+}
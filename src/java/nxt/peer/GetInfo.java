@@ -41,6 +41,9 @@ final class GetInfo extends PeerServlet.PeerRequestHandler {
 
         peerImpl.setShareAddress(Boolean.TRUE.equals(request.get("shareAddress")));
 
+        peerImpl.setBinaryProtocol(request.get("binaryProtocol") != null);
+        peerImpl.setGzip(Boolean.TRUE.equals(request.get("gzip")));
+
         //peerImpl.setState(Peer.State.CONNECTED);
         Peers.notifyListeners(peerImpl, Peers.Event.ADDED_ACTIVE_PEER);
 
@@ -23,10 +23,38 @@ final class GetNextBlocks extends PeerServlet.PeerRequestHandler {
 
         JSONObject response = new JSONObject();
 
+        List<Block> nextBlocks = getNextBlocks(request);
+
+        JSONArray nextBlocksArray = new JSONArray();
+        for (Block nextBlock : nextBlocks) {
+            nextBlocksArray.add(nextBlock.getJSONObject());
+        }
+        response.put("nextBlocks", nextBlocksArray);
+
+        return response;
+    }
+
+    @Override
+    JSONStreamAware processBinaryRequest(JSONObject request, Peer peer) {
+
+        List<byte[]> nextBlocksBytes = new ArrayList<>();
+        for (Block nextBlock : getNextBlocks(request)) {
+            nextBlocksBytes.add(BinaryMessage.getBlockBytes(nextBlock));
+        }
+
+        return new BinaryMessage(new JSONObject(), "nextBlocks", nextBlocksBytes, null);
+    }
+
+    private List<Block> getNextBlocks(JSONObject request) {
+
         List<Block> nextBlocks = new ArrayList<>();
         int totalLength = 0;
         Long blockId = Convert.parseUnsignedLong((String) request.get("blockId"));
-        List<? extends Block> blocks = Nxt.getBlockchain().getBlocksAfter(blockId, 1440);
+        int limit = 1440;
+        if (request.get("limit") instanceof Number) {
+            limit = Math.max(1, Math.min(limit, ((Number) request.get("limit")).intValue()));
+        }
+        List<? extends Block> blocks = Nxt.getBlockchain().getBlocksAfter(blockId, limit);
 
         for (Block block : blocks) {
             int length = Constants.BLOCK_HEADER_LENGTH + block.getPayloadLength();
@@ -37,13 +65,7 @@ final class GetNextBlocks extends PeerServlet.PeerRequestHandler {
             totalLength += length;
         }
 
-        JSONArray nextBlocksArray = new JSONArray();
-        for (Block nextBlock : nextBlocks) {
-            nextBlocksArray.add(nextBlock.getJSONObject());
-        }
-        response.put("nextBlocks", nextBlocksArray);
-
-        return response;
+        return nextBlocks;
     }
 
 }
@@ -6,6 +6,9 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONStreamAware;
 
+import java.util.ArrayList;
+import java.util.List;
+
 final class GetUnconfirmedTransactions extends PeerServlet.PeerRequestHandler {
 
     static final GetUnconfirmedTransactions instance = new GetUnconfirmedTransactions();
@@ -19,7 +22,7 @@ final class GetUnconfirmedTransactions extends PeerServlet.PeerRequestHandler {
         JSONObject response = new JSONObject();
 
         JSONArray transactionsData = new JSONArray();
-        for (Transaction transaction : Nxt.getTransactionProcessor().getAllUnconfirmedTransactions()) {
+        for (Transaction transaction : getTransactions()) {
 
             transactionsData.add(transaction.getJSONObject());
 
@@ -30,4 +33,30 @@ final class GetUnconfirmedTransactions extends PeerServlet.PeerRequestHandler {
         return response;
     }
 
+    @Override
+    JSONStreamAware processBinaryRequest(JSONObject request, Peer peer) {
+
+        List<byte[]> transactionsBytes = new ArrayList<>();
+        for (Transaction transaction : getTransactions()) {
+            transactionsBytes.add(transaction.getBytes());
+        }
+
+        return new BinaryMessage(new JSONObject(), "unconfirmedTransactions", transactionsBytes, null);
+    }
+
+    // as many as fit in a response peers accept, the rest are pulled from other peers or pushed later
+    private List<Transaction> getTransactions() {
+        List<Transaction> transactions = new ArrayList<>();
+        int totalLength = 0;
+        for (Transaction transaction : Nxt.getTransactionProcessor().getAllUnconfirmedTransactions()) {
+            int length = transaction.getBytes().length;
+            if (totalLength + length > Peers.MAX_TRANSACTIONS_RESPONSE_LENGTH) {
+                break;
+            }
+            transactions.add(transaction);
+            totalLength += length;
+        }
+        return transactions;
+    }
+
 }
@@ -48,6 +48,10 @@ public interface Peer extends Comparable<Peer> {
 
     long getUploadedVolume();
 
+    long getUncompressedDownloadedVolume();
+
+    long getUncompressedUploadedVolume();
+
     JSONObject send(JSONStreamAware request);
 
 }
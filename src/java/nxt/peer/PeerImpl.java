@@ -13,12 +13,15 @@ import org.json.simple.JSONObject;
 import org.json.simple.JSONStreamAware;
 import org.json.simple.JSONValue;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringWriter;
@@ -34,6 +37,8 @@ import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 final class PeerImpl implements Peer {
 
@@ -50,6 +55,10 @@ final class PeerImpl implements Peer {
     private volatile State state;
     private volatile long downloadedVolume;
     private volatile long uploadedVolume;
+    private volatile long uncompressedDownloadedVolume;
+    private volatile long uncompressedUploadedVolume;
+    private volatile boolean binaryProtocol;
+    private volatile boolean gzip;
 
     PeerImpl(String peerAddress, String announcedAddress) {
         this.peerAddress = peerAddress;
@@ -89,9 +98,15 @@ final class PeerImpl implements Peer {
         return downloadedVolume;
     }
 
-    void updateDownloadedVolume(long volume) {
+    @Override
+    public long getUncompressedDownloadedVolume() {
+        return uncompressedDownloadedVolume;
+    }
+
+    void updateDownloadedVolume(long volume, long uncompressedVolume) {
         synchronized (this) {
             downloadedVolume += volume;
+            uncompressedDownloadedVolume += uncompressedVolume;
         }
         Peers.notifyListeners(this, Peers.Event.DOWNLOADED_VOLUME);
     }
@@ -101,9 +116,15 @@ final class PeerImpl implements Peer {
         return uploadedVolume;
     }
 
-    void updateUploadedVolume(long volume) {
+    @Override
+    public long getUncompressedUploadedVolume() {
+        return uncompressedUploadedVolume;
+    }
+
+    void updateUploadedVolume(long volume, long uncompressedVolume) {
         synchronized (this) {
             uploadedVolume += volume;
+            uncompressedUploadedVolume += uncompressedVolume;
         }
         Peers.notifyListeners(this, Peers.Event.UPLOADED_VOLUME);
     }
@@ -151,6 +172,14 @@ final class PeerImpl implements Peer {
         this.shareAddress = shareAddress;
     }
 
+    void setBinaryProtocol(boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+    }
+
+    void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
     @Override
     public String getAnnouncedAddress() {
         return announcedAddress;
@@ -268,20 +297,53 @@ final class PeerImpl implements Peer {
             connection.setConnectTimeout(Peers.connectTimeout);
             connection.setReadTimeout(Peers.readTimeout);
 
+            if (Peers.enableBinaryProtocol) {
+                connection.setRequestProperty("Accept", BinaryMessage.CONTENT_TYPE + ", text/plain");
+            }
+            boolean sendBinary = binaryProtocol && Peers.enableBinaryProtocol && request instanceof BinaryMessage;
+            if (sendBinary) {
+                connection.setRequestProperty("Content-Type", BinaryMessage.CONTENT_TYPE);
+            }
+            // only compress requests to peers which announced they can handle it, older peers just ignore Accept-Encoding
+            boolean sendGzip = gzip && Peers.enableGzip;
+            if (Peers.enableGzip) {
+                connection.setRequestProperty("Accept-Encoding", "gzip");
+            }
+            if (sendGzip) {
+                connection.setRequestProperty("Content-Encoding", "gzip");
+            }
+
             CountingOutputStream cos = new CountingOutputStream(connection.getOutputStream());
-            try (Writer writer = new BufferedWriter(new OutputStreamWriter(cos, "UTF-8"))) {
-                request.writeJSONString(writer);
+            CountingOutputStream ucos = sendGzip ? new CountingOutputStream(new GZIPOutputStream(cos)) : cos;
+            if (sendBinary) {
+                try (OutputStream outputStream = new BufferedOutputStream(ucos)) {
+                    ((BinaryMessage) request).write(outputStream);
+                }
+            } else {
+                try (Writer writer = new BufferedWriter(new OutputStreamWriter(ucos, "UTF-8"))) {
+                    request.writeJSONString(writer);
+                }
             }
-            updateUploadedVolume(cos.getCount());
+            updateUploadedVolume(cos.getCount(), ucos.getCount());
 
             if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
 
-                if ((Peers.communicationLoggingMask & Peers.LOGGING_MASK_200_RESPONSES) != 0) {
+                CountingInputStream cis = new CountingInputStream(connection.getInputStream());
+                CountingInputStream ucis = "gzip".equalsIgnoreCase(connection.getContentEncoding())
+                        ? new CountingInputStream(new GZIPInputStream(cis), Peers.MAX_GZIP_RESPONSE_LENGTH) : cis;
+                String contentType = connection.getContentType();
+                if (contentType != null && contentType.startsWith(BinaryMessage.CONTENT_TYPE)) {
+
+                    try (InputStream inputStream = new BufferedInputStream(ucis)) {
+                        response = BinaryMessage.read(inputStream);
+                    }
+
+                } else if ((Peers.communicationLoggingMask & Peers.LOGGING_MASK_200_RESPONSES) != 0) {
                     // inefficient
                     ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
                     byte[] buffer = new byte[65536];
                     int numberOfBytes;
-                    try (InputStream inputStream = connection.getInputStream()) {
+                    try (InputStream inputStream = ucis) {
                         while ((numberOfBytes = inputStream.read(buffer)) > 0) {
                             byteArrayOutputStream.write(buffer, 0, numberOfBytes);
                         }
@@ -289,18 +351,16 @@ final class PeerImpl implements Peer {
                     String responseValue = byteArrayOutputStream.toString("UTF-8");
                     log += " >>> " + responseValue;
                     showLog = true;
-                    updateDownloadedVolume(responseValue.getBytes("UTF-8").length);
                     response = (JSONObject) JSONValue.parse(responseValue);
 
                 } else {
 
-                    CountingInputStream cis = new CountingInputStream(connection.getInputStream());
-                    try (Reader reader = new BufferedReader(new InputStreamReader(cis, "UTF-8"))) {
+                    try (Reader reader = new BufferedReader(new InputStreamReader(ucis, "UTF-8"))) {
                         response = (JSONObject)JSONValue.parse(reader);
                     }
-                    updateDownloadedVolume(cis.getCount());
 
                 }
+                updateDownloadedVolume(cis.getCount(), ucis.getCount());
 
             } else {
 
@@ -314,6 +374,7 @@ final class PeerImpl implements Peer {
                     setState(State.NON_CONNECTED);
                 }
                 response = null;
+                connection.disconnect();
 
             }
 
@@ -325,19 +386,23 @@ final class PeerImpl implements Peer {
                 log += " >>> " + e.toString();
                 showLog = true;
             }
-            if (state == State.CONNECTED) {
+            if (e instanceof CountingInputStream.LimitExceededException) {
+                Logger.logDebugMessage("Too large gzip response from " + peerAddress + ", blacklisting");
+                blacklist();
+            } else if (state == State.CONNECTED) {
                 setState(State.DISCONNECTED);
             }
             response = null;
+            if (connection != null) {
+                connection.disconnect();
+            }
         }
 
         if (showLog) {
             Logger.logMessage(log + "\n");
         }
 
-        if (connection != null) {
-            connection.disconnect();
-        }
+        // after a successful request the connection is not disconnected, so that it can be kept alive and reused
 
         return response;
 
@@ -360,6 +425,8 @@ final class PeerImpl implements Peer {
             version = (String)response.get("version");
             platform = (String)response.get("platform");
             shareAddress = Boolean.TRUE.equals(response.get("shareAddress"));
+            binaryProtocol = response.get("binaryProtocol") != null;
+            gzip = Boolean.TRUE.equals(response.get("gzip"));
             if (announcedAddress == null) {
                 setAnnouncedAddress(peerAddress);
                 Logger.logDebugMessage("Connected to peer without announced address, setting to " + peerAddress);
@@ -12,21 +12,31 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public final class PeerServlet extends HttpServlet {
 
     abstract static class PeerRequestHandler {
         abstract JSONStreamAware processRequest(JSONObject request, Peer peer);
+        // called instead of processRequest if the peer accepts binary responses
+        JSONStreamAware processBinaryRequest(JSONObject request, Peer peer) {
+            return processRequest(request, peer);
+        }
     }
 
     private static final Map<String,PeerRequestHandler> peerRequestHandlers;
@@ -76,8 +86,22 @@ public final class PeerServlet extends HttpServlet {
 
             JSONObject request;
             CountingInputStream cis = new CountingInputStream(req.getInputStream());
-            try (Reader reader = new BufferedReader(new InputStreamReader(cis, "UTF-8"))) {
-                request = (JSONObject) JSONValue.parse(reader);
+            CountingInputStream ucis = "gzip".equalsIgnoreCase(req.getHeader("Content-Encoding"))
+                    ? new CountingInputStream(new GZIPInputStream(cis), Peers.MAX_GZIP_REQUEST_LENGTH) : cis;
+            try {
+                if (req.getContentType() != null && req.getContentType().startsWith(BinaryMessage.CONTENT_TYPE)) {
+                    try (InputStream inputStream = new BufferedInputStream(ucis)) {
+                        request = BinaryMessage.read(inputStream);
+                    }
+                } else {
+                    try (Reader reader = new BufferedReader(new InputStreamReader(ucis, "UTF-8"))) {
+                        request = (JSONObject) JSONValue.parse(reader);
+                    }
+                }
+            } catch (CountingInputStream.LimitExceededException e) {
+                Logger.logDebugMessage("Too large gzip request from " + peer.getPeerAddress() + ", blacklisting");
+                peer.blacklist();
+                return;
             }
             if (request == null) {
                 return;
@@ -86,7 +110,7 @@ public final class PeerServlet extends HttpServlet {
             if (peer.getState() == Peer.State.DISCONNECTED) {
                 peer.setState(Peer.State.CONNECTED);
             }
-            peer.updateDownloadedVolume(cis.getCount());
+            peer.updateDownloadedVolume(cis.getCount(), ucis.getCount());
             if (! peer.analyzeHallmark(peer.getPeerAddress(), (String)request.get("hallmark"))) {
                 peer.blacklist();
                 return;
@@ -95,7 +119,12 @@ public final class PeerServlet extends HttpServlet {
             if (request.get("protocol") != null && ((Number)request.get("protocol")).intValue() == 1) {
                 PeerRequestHandler peerRequestHandler = peerRequestHandlers.get(request.get("requestType"));
                 if (peerRequestHandler != null) {
-                    response = peerRequestHandler.processRequest(request, peer);
+                    String accept = req.getHeader("Accept");
+                    if (Peers.enableBinaryProtocol && accept != null && accept.contains(BinaryMessage.CONTENT_TYPE)) {
+                        response = peerRequestHandler.processBinaryRequest(request, peer);
+                    } else {
+                        response = peerRequestHandler.processRequest(request, peer);
+                    }
                 } else {
                     response = UNSUPPORTED_REQUEST_TYPE;
                 }
@@ -111,14 +140,26 @@ public final class PeerServlet extends HttpServlet {
             response = json;
         }
 
-        resp.setContentType("text/plain; charset=UTF-8");
+        resp.setContentType(response instanceof BinaryMessage ? BinaryMessage.CONTENT_TYPE : "text/plain; charset=UTF-8");
+        String acceptEncoding = req.getHeader("Accept-Encoding");
+        boolean sendGzip = Peers.enableGzip && acceptEncoding != null && acceptEncoding.contains("gzip");
+        if (sendGzip) {
+            resp.setHeader("Content-Encoding", "gzip");
+        }
         CountingOutputStream cos = new CountingOutputStream(resp.getOutputStream());
-        try (Writer writer = new BufferedWriter(new OutputStreamWriter(cos, "UTF-8"))) {
-            response.writeJSONString(writer);
+        CountingOutputStream ucos = sendGzip ? new CountingOutputStream(new GZIPOutputStream(cos)) : cos;
+        if (response instanceof BinaryMessage) {
+            try (OutputStream outputStream = new BufferedOutputStream(ucos)) {
+                ((BinaryMessage) response).write(outputStream);
+            }
+        } else {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(ucos, "UTF-8"))) {
+                response.writeJSONString(writer);
+            }
         }
 
         if (peer != null) {
-            peer.updateUploadedVolume(cos.getCount());
+            peer.updateUploadedVolume(cos.getCount(), ucos.getCount());
         }
     }
 
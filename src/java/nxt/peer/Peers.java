@@ -58,6 +58,15 @@ public final class Peers {
     static final int readTimeout;
     static final int blacklistingPeriod;
 
+    // limits on the decompressed size of gzip requests and responses, well above the largest valid ones even in json
+    // form: a processBlock request, a processTransactions one with at most MAX_TRANSACTIONS_REQUEST_LENGTH bytes of
+    // transactions, a getNextBlocks response with at most 1 MB of blocks, or a getUnconfirmedTransactions one with at
+    // most MAX_TRANSACTIONS_RESPONSE_LENGTH bytes of transactions
+    static final int MAX_GZIP_REQUEST_LENGTH = 1048576;
+    static final int MAX_GZIP_RESPONSE_LENGTH = 8 * 1048576;
+    public static final int MAX_TRANSACTIONS_REQUEST_LENGTH = 131072;
+    static final int MAX_TRANSACTIONS_RESPONSE_LENGTH = 1048576;
+
     static final int DEFAULT_PEER_PORT = 7874;
     static final int TESTNET_PEER_PORT = 6874;
     private static final String myPlatform;
@@ -70,6 +79,8 @@ public final class Peers {
     private static final int pushThreshold;
     private static final int pullThreshold;
     private static final int sendToPeersLimit;
+    static final boolean enableBinaryProtocol;
+    static final boolean enableGzip;
 
     static final JSONStreamAware myPeerInfoRequest;
     static final JSONStreamAware myPeerInfoResponse;
@@ -94,6 +105,8 @@ public final class Peers {
             throw new RuntimeException("Port " + TESTNET_PEER_PORT + " should only be used for testnet!!!");
         }
         shareMyAddress = Nxt.getBooleanProperty("nxt.shareMyAddress");
+        enableBinaryProtocol = Nxt.getBooleanProperty("nxt.enableBinaryPeerProtocol");
+        enableGzip = Nxt.getBooleanProperty("nxt.enablePeerGzip");
         myHallmark = Nxt.getStringProperty("nxt.myHallmark");
         if (Peers.myHallmark != null && Peers.myHallmark.length() > 0) {
             try {
@@ -131,6 +144,12 @@ public final class Peers {
         json.put("version", Nxt.VERSION);
         json.put("platform", Peers.myPlatform);
         json.put("shareAddress", Peers.shareMyAddress);
+        if (Peers.enableBinaryProtocol) {
+            json.put("binaryProtocol", 1);
+        }
+        if (Peers.enableGzip) {
+            json.put("gzip", true);
+        }
         Logger.logDebugMessage("My peer info:\n" + json.toJSONString());
         myPeerInfoResponse = JSON.prepare(json);
         json.put("requestType", "getInfo");
@@ -442,8 +461,15 @@ public final class Peers {
     }
 
     public static void sendToSomePeers(final JSONObject request) {
+        sendToSomePeers(JSON.prepareRequest(request));
+    }
+
+    // the binary form is only sent to peers supporting it, the others get the json form
+    public static void sendToSomePeers(final BinaryMessage request) {
+        sendToSomePeers((JSONStreamAware)request);
+    }
 
-        final JSONStreamAware jsonRequest = JSON.prepareRequest(request);
+    private static void sendToSomePeers(final JSONStreamAware jsonRequest) {
 
         int successful = 0;
         List<Future<JSONObject>> expectedResponses = new ArrayList<>();
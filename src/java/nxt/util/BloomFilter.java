@@ -0,0 +1,66 @@
+package nxt.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// lock-free for concurrent readers, elements can't be removed
+public final class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final int numberOfBits;
+    private final int numberOfHashes;
+    private final int capacity;
+
+    public BloomFilter(int capacity, double falsePositiveProbability) {
+        long m = (long)Math.ceil(-capacity * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+        this.numberOfBits = (int)Math.max(64, Math.min(m, Integer.MAX_VALUE - 63));
+        this.numberOfHashes = Math.max(1, (int)Math.round((double)numberOfBits / capacity * Math.log(2)));
+        this.bits = new AtomicLongArray((numberOfBits + 63) / 64);
+        this.capacity = capacity;
+    }
+
+    public void add(long element) {
+        long hash = mix(element);
+        int h1 = (int)hash;
+        int h2 = (int)(hash >>> 32);
+        for (int i = 0; i < numberOfHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numberOfBits;
+            int index = bit >>> 6;
+            long mask = 1L << bit;
+            long word;
+            do {
+                word = bits.get(index);
+                if ((word & mask) != 0) {
+                    break;
+                }
+            } while (! bits.compareAndSet(index, word, word | mask));
+        }
+    }
+
+    public boolean mightContain(long element) {
+        long hash = mix(element);
+        int h1 = (int)hash;
+        int h2 = (int)(hash >>> 32);
+        for (int i = 0; i < numberOfHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numberOfBits;
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    // MurmurHash3 finalizer
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
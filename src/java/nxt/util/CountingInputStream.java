@@ -6,17 +6,32 @@ import java.io.InputStream;
 
 public class CountingInputStream extends FilterInputStream {
 
+    public static final class LimitExceededException extends IOException {
+
+        private LimitExceededException(long limit) {
+            super("More than " + limit + " bytes read");
+        }
+
+    }
+
+    private final long limit;
     private long count;
 
     public CountingInputStream(InputStream in) {
+        this(in, Long.MAX_VALUE);
+    }
+
+    // reading more than limit bytes throws LimitExceededException
+    public CountingInputStream(InputStream in, long limit) {
         super(in);
+        this.limit = limit;
     }
 
     @Override
     public int read() throws IOException {
         int read = super.read();
         if (read >= 0) {
-            count += 1;
+            count(1);
         }
         return read;
     }
@@ -25,7 +40,7 @@ public class CountingInputStream extends FilterInputStream {
     public int read(byte[] b, int off, int len) throws IOException {
         int read = super.read(b, off, len);
         if (read >= 0) {
-            count += read;
+            count(read);
         }
         return read;
     }
@@ -34,11 +49,18 @@ public class CountingInputStream extends FilterInputStream {
     public long skip(long n) throws IOException {
         long skipped = super.skip(n);
         if (skipped >= 0) {
-            count += skipped;
+            count(skipped);
         }
         return skipped;
     }
 
+    private void count(long n) throws LimitExceededException {
+        count += n;
+        if (count > limit) {
+            throw new LimitExceededException(limit);
+        }
+    }
+
     public long getCount() {
         return count;
     }